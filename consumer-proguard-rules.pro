@@ -6,4 +6,8 @@
 }
 -keepclassmembers,allowshrinking,allowobfuscation class com.android.volley.CacheDispatcher {
     void processRequest();
+    void processRequest(com.android.volley.Request);
+}
+-keepclassmembers,allowshrinking,allowobfuscation class com.android.volley.SharedDispatcherPool$Worker {
+    void processTask();
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Network} which can also perform requests without blocking the calling thread.
+ */
+public interface AsyncNetwork extends Network {
+
+    /** Callback interface for the result of an asynchronous request. */
+    interface OnRequestComplete {
+        /** Called with the response once the request has completed successfully. */
+        void onSuccess(NetworkResponse networkResponse);
+
+        /** Called once the request has failed and will not be retried. */
+        void onError(VolleyError volleyError);
+    }
+
+    /**
+     * Starts performing the specified request and returns without waiting for it to complete.
+     * Exactly one method of the callback is invoked once it does, on a thread of the network's
+     * choosing.
+     *
+     * @param request Request to process
+     * @param callback Callback to notify when the request completes
+     */
+    void performRequest(Request<?> request, OnRequestComplete callback);
+}
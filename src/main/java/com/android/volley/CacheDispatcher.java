@@ -17,6 +17,7 @@
 package com.android.volley;
 
 import android.os.Process;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -31,7 +32,8 @@ import java.util.concurrent.BlockingQueue;
  * Any deliverable response is posted back to the caller via a
  * {@link ResponseDelivery}.  Cache misses and responses that require
  * refresh are enqueued on the specified network queue for processing
- * by a {@link NetworkDispatcher}.
+ * by a {@link NetworkDispatcher}. {@link Request#isPrefetch Prefetches} are never
+ * delivered; they only go to the network when their cache entry is missing or stale.
  */
 public class CacheDispatcher extends Thread {
 
@@ -55,6 +57,9 @@ public class CacheDispatcher extends Thread {
     /** Manage list of waiting requests and de-duplicate requests with same cache key. */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /** Initializes the cache, which may be shared with other dispatchers. */
+    private final CacheInitializer mCacheInitializer;
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -67,10 +72,24 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheInitializer(cache));
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread which is one of several sharing a cache.
+     * Requests with the same cache key must always be added to the same dispatcher's queue, so
+     * that duplicates are still held back while one of them is on the network.
+     *
+     * @param cacheInitializer Initializer shared by all dispatchers of the cache
+     */
+    /* package */ CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer cacheInitializer) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mCacheInitializer = cacheInitializer;
         mWaitingRequestManager = new WaitingRequestManager(this);
     }
 
@@ -89,7 +108,7 @@ public class CacheDispatcher extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        initializeCache();
 
         while (true) {
             try {
@@ -111,6 +130,19 @@ public class CacheDispatcher extends Thread {
         // Get a request from the cache triage queue, blocking until
         // at least one is available.
         final Request<?> request = mCacheQueue.take();
+        processRequest(request);
+    }
+
+    /** Initializes the cache unless this or another dispatcher sharing it already has. */
+    /* package */ void initializeCache() {
+        mCacheInitializer.initialize();
+    }
+
+    /**
+     * Resolves a request taken from the cache queue, on the calling thread. Used directly by
+     * {@link SharedDispatcherPool} workers, which must {@link #initializeCache} first.
+     */
+    /* package */ void processRequest(final Request<?> request) throws InterruptedException {
         request.addMarker("cache-queue-take");
 
         // If the request has been canceled, don't bother dispatching it.
@@ -119,6 +151,21 @@ public class CacheDispatcher extends Thread {
             return;
         }
 
+        // If the response is no longer wanted, don't bother looking it up.
+        if (request.isPastDeadline()) {
+            request.addMarker("cache-discard-deadline");
+            if (request.isPrefetch()) {
+                request.finish("prefetch-failed");
+            } else {
+                mDelivery.postError(request, new DeadlineExceededError());
+            }
+            RequestQueue requestQueue = request.getRequestQueue();
+            if (requestQueue != null) {
+                requestQueue.onDeadlineExceeded(false);
+            }
+            return;
+        }
+
         // Attempt to retrieve this item from cache.
         Cache.Entry entry = mCache.get(request.getCacheKey());
         if (entry == null) {
@@ -140,6 +187,20 @@ public class CacheDispatcher extends Thread {
             return;
         }
 
+        // A prefetch has nothing left to do unless the entry needs refreshing.
+        if (request.isPrefetch()) {
+            if (!entry.refreshNeeded()) {
+                request.finish("prefetch-cache-hit");
+                return;
+            }
+            request.addMarker("cache-hit-refresh-needed");
+            request.setCacheEntry(entry);
+            if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
+                mNetworkQueue.put(request);
+            }
+            return;
+        }
+
         // We have a cache hit; parse its data for delivery back to the request.
         request.addMarker("cache-hit");
         Response<?> response = request.parseNetworkResponse(
@@ -180,6 +241,83 @@ public class CacheDispatcher extends Thread {
         }
     }
 
+    /**
+     * Resolves a request from the cache on the calling thread, for
+     * {@link RequestQueue#execute}. Returns the response of a fresh cache hit. Otherwise waits
+     * until no request with the same cache key is in flight, looks again in case that request
+     * has just cached a response, and returns null once the caller is to send the request
+     * itself. The request is then marked as in flight, so that duplicates wait for it.
+     */
+    /* package */ <T> Response<T> executeFromCache(Request<T> request)
+            throws InterruptedException {
+        initializeCache();
+        Response<T> response = lookUp(request);
+        if (response != null || !mWaitingRequestManager.awaitTurn(request)) {
+            return response;
+        }
+        // The duplicate we waited for may have cached a fresh response.
+        response = lookUp(request);
+        if (response != null) {
+            // Hand the response to any requests which started waiting for this one.
+            mWaitingRequestManager.onResponseReceived(request, response);
+        }
+        return response;
+    }
+
+    /**
+     * Returns the response of a fresh cache hit, or null if the request must go to the network,
+     * with any entry to refresh attached to it.
+     */
+    private <T> Response<T> lookUp(Request<T> request) {
+        Cache.Entry entry = mCache.get(request.getCacheKey());
+        if (entry == null) {
+            request.addMarker("cache-miss");
+            return null;
+        }
+        if (entry.isExpired() || entry.refreshNeeded()) {
+            // Only one response can be returned, so a soft-expired entry is refreshed first.
+            request.addMarker(entry.isExpired() ? "cache-hit-expired" : "cache-hit-refresh-needed");
+            request.setCacheEntry(entry);
+            return null;
+        }
+        request.addMarker("cache-hit");
+        Response<T> response = request.parseNetworkResponse(
+                new NetworkResponse(entry.data, entry.responseHeaders));
+        request.addMarker("cache-hit-parsed");
+        return response;
+    }
+
+    /**
+     * Initializes a cache exactly once, however many dispatchers share it. Dispatchers which
+     * find the initialization in progress block until it has completed.
+     */
+    /* package */ static class CacheInitializer {
+
+        private final Cache mCache;
+
+        private boolean mInitialized = false;
+
+        /** How long the cache took to initialize, or -1 until it has. */
+        private volatile long mInitializationTimeMs = -1;
+
+        CacheInitializer(Cache cache) {
+            mCache = cache;
+        }
+
+        synchronized void initialize() {
+            if (!mInitialized) {
+                long startTimeMs = SystemClock.elapsedRealtime();
+                mCache.initialize();
+                mInitializationTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+                mInitialized = true;
+            }
+        }
+
+        long getInitializationTimeMs() {
+            return mInitializationTimeMs;
+        }
+    }
+
     private static class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
 
         /**
@@ -194,6 +332,13 @@ public class CacheDispatcher extends Thread {
          */
         private final Map<String, List<Request<?>>> mWaitingRequests = new HashMap<>();
 
+        /**
+         * The request in flight for each cache key with an entry in {@link #mWaitingRequests}.
+         * It inherits the highest priority of the requests waiting for it, so that a waiting
+         * request is never held back by a lower priority one which is still queued.
+         */
+        private final Map<String, Request<?>> mInFlightRequests = new HashMap<>();
+
         private final CacheDispatcher mCacheDispatcher;
 
         WaitingRequestManager(CacheDispatcher cacheDispatcher) {
@@ -211,6 +356,8 @@ public class CacheDispatcher extends Thread {
             List<Request<?>> waitingRequests;
             synchronized (this) {
                 waitingRequests = mWaitingRequests.remove(cacheKey);
+                mInFlightRequests.remove(cacheKey);
+                notifyAll();
             }
             if (waitingRequests != null) {
                 if (VolleyLog.DEBUG) {
@@ -236,6 +383,10 @@ public class CacheDispatcher extends Thread {
                 }
                 Request<?> nextInLine = waitingRequests.remove(0);
                 mWaitingRequests.put(cacheKey, waitingRequests);
+                mInFlightRequests.put(cacheKey, nextInLine);
+                for (Request<?> waiting : waitingRequests) {
+                    nextInLine.inheritPriority(waiting.getEffectivePriority());
+                }
                 nextInLine.setNetworkRequestCompleteListener(this);
                 try {
                     mCacheDispatcher.mNetworkQueue.put(nextInLine);
@@ -246,7 +397,39 @@ public class CacheDispatcher extends Thread {
                     // Quit the current CacheDispatcher thread.
                     mCacheDispatcher.quit();
                 }
+            } else {
+                mInFlightRequests.remove(cacheKey);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits on the calling thread until no request with the cache key of the given one is
+         * in flight, then marks the given one as in flight, as {@link #maybeAddToWaitingRequests}
+         * does for a request which is not held back. The request in flight meanwhile inherits
+         * the priority of the given one.
+         *
+         * @return Whether the caller had to wait
+         */
+        synchronized boolean awaitTurn(Request<?> request) throws InterruptedException {
+            String cacheKey = request.getCacheKey();
+            boolean waited = false;
+            while (mWaitingRequests.containsKey(cacheKey)) {
+                if (!waited) {
+                    request.addMarker("waiting-for-response");
+                    waited = true;
+                }
+                Request<?> inFlight = mInFlightRequests.get(cacheKey);
+                if (inFlight != null) {
+                    DispatchQueue.inheritPriority(mCacheDispatcher.mNetworkQueue, inFlight,
+                            request.getEffectivePriority());
+                }
+                wait();
             }
+            mWaitingRequests.put(cacheKey, null);
+            mInFlightRequests.put(cacheKey, request);
+            request.setNetworkRequestCompleteListener(this);
+            return waited;
         }
 
         /**
@@ -255,9 +438,20 @@ public class CacheDispatcher extends Thread {
          * @return whether the request was queued. If false, we should continue issuing the request
          * over the network. If true, we should put the request on hold to be processed when
          * the in-flight request finishes.
+         *
+         * <p>A prefetch is finished instead of waiting, since the request in flight will cache
+         * the response, and is never itself waited for, so as not to hold back requests which
+         * are wanted now.
          */
         private synchronized boolean maybeAddToWaitingRequests(Request<?> request) {
             String cacheKey = request.getCacheKey();
+            if (request.isPrefetch()) {
+                if (mWaitingRequests.containsKey(cacheKey)) {
+                    request.finish("prefetch-already-in-flight");
+                    return true;
+                }
+                return false;
+            }
             // Insert request into stage if there's already a request with the same cache key
             // in flight.
             if (mWaitingRequests.containsKey(cacheKey)) {
@@ -269,6 +463,11 @@ public class CacheDispatcher extends Thread {
                 request.addMarker("waiting-for-response");
                 stagedRequests.add(request);
                 mWaitingRequests.put(cacheKey, stagedRequests);
+                Request<?> inFlight = mInFlightRequests.get(cacheKey);
+                if (inFlight != null) {
+                    DispatchQueue.inheritPriority(mCacheDispatcher.mNetworkQueue, inFlight,
+                            request.getEffectivePriority());
+                }
                 if (VolleyLog.DEBUG) {
                     VolleyLog.d("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
@@ -277,6 +476,7 @@ public class CacheDispatcher extends Thread {
                 // Insert 'null' queue for this cacheKey, indicating there is now a request in
                 // flight.
                 mWaitingRequests.put(cacheKey, null);
+                mInFlightRequests.put(cacheKey, request);
                 request.setNetworkRequestCompleteListener(this);
                 if (VolleyLog.DEBUG) {
                     VolleyLog.d("new request, sending to network %s", cacheKey);
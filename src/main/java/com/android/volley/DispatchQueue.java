@@ -0,0 +1,1682 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The priority queue backing the cache and network queues of a {@link RequestQueue}.
+ *
+ * <p>Records the time at which each request is queued, so that dispatchers can tell how long
+ * work has been waiting, and notifies an optional {@link Listener} whenever a request is added.
+ * Takers which poll several queues in turn can ask to be notified whenever a request may have
+ * become available instead.
+ *
+ * <p>A queue created with host tracking keeps one priority queue per URL host and counts the
+ * requests of each host that have been taken but not yet {@link #release released}. Hosts can
+ * be given a limit on the number of such in-flight requests; a taker then skips the requests of
+ * a host at its limit and receives the highest priority request among the remaining hosts.
+ * Hosts can also be paused for a while, e.g. when a server asks clients to back off, and
+ * rate-limited by {@link TokenBucket token buckets} set per host pattern or per request tag. A
+ * request over its rate limit holds back the requests queued behind it for the same host.
+ *
+ * <p>Requests can be added with a delay, such as retries backing off. They are held aside, not
+ * counted in the queue's size, until the delay has passed; takers wait until then without
+ * needing a thread of their own to move them.
+ *
+ * <p>{@link Request#isPrefetch Prefetches} go after all other requests, and are taken only
+ * while no other request is queued and, with host tracking, fewer than a given number of
+ * requests are in flight.
+ *
+ * <p>Requests are ordered by {@link Request#getEffectivePriority effective priority}, which a
+ * queued request may {@link #inheritPriority inherit} from requests waiting for its response,
+ * unless another order or a {@link RequestScheduler} is set.
+ *
+ * <p>A taker may ask for requests of at least a given priority only, e.g. a dispatcher reserved
+ * for urgent requests. It considers the highest ranked request of each host.
+ */
+class DispatchQueue extends AbstractQueue<Request<?>> implements BlockingQueue<Request<?>> {
+
+    /** Callback interface for requests being added to the queue. */
+    interface Listener {
+        /** Called after a request has been added to the given queue. */
+        void onRequestQueued(DispatchQueue queue);
+    }
+
+    /** Callback interface for takers which wait on several queues instead of blocking in one. */
+    interface AvailabilityListener {
+        /**
+         * Called, with the queue locked, whenever a request may have become available to take.
+         * Must not lock another queue.
+         */
+        void onRequestAvailable(DispatchQueue queue);
+    }
+
+    /** Bucket key for requests without a host, and for all requests without host tracking. */
+    private static final String NO_HOST = "";
+
+    /**
+     * Orders requests by priority, then by earliest deadline, then by sequence number. Requests
+     * without a deadline go after those with one of the same priority.
+     */
+    static final Comparator<Request<?>> EARLIEST_DEADLINE_FIRST = new Comparator<Request<?>>() {
+        @Override
+        public int compare(Request<?> left, Request<?> right) {
+            Request.Priority leftPriority = left.getEffectivePriority();
+            Request.Priority rightPriority = right.getEffectivePriority();
+            if (leftPriority != rightPriority) {
+                return rightPriority.ordinal() - leftPriority.ordinal();
+            }
+            long leftDeadline = left.getDeadline();
+            long rightDeadline = right.getDeadline();
+            if (leftDeadline != rightDeadline) {
+                if (leftDeadline == 0) {
+                    return 1;
+                }
+                if (rightDeadline == 0) {
+                    return -1;
+                }
+                return leftDeadline < rightDeadline ? -1 : 1;
+            }
+            return left.getSequence() - right.getSequence();
+        }
+    };
+
+    /**
+     * Returns an order in which a request's priority rises by one level for every
+     * {@code agingIntervalMs} it has been queued, so that requests of low priority are not
+     * starved by a steady stream of higher priority ones. {@link Request.Priority#IMMEDIATE}
+     * requests still go before all others.
+     *
+     * <p>Since all requests age at the same rate, the order between two queued requests never
+     * changes: a request ranks by the time it was queued less its priority times the interval.
+     * The order is therefore a fixed key which the priority queues maintain as usual. The time
+     * is the one at which the request was first queued, so a request keeps its age when it
+     * moves from a cache queue to the network queue.
+     */
+    static Comparator<Request<?>> agingComparator(final long agingIntervalMs) {
+        if (agingIntervalMs <= 0) {
+            throw new IllegalArgumentException("agingIntervalMs must be positive");
+        }
+        return new Comparator<Request<?>>() {
+            @Override
+            public int compare(Request<?> left, Request<?> right) {
+                boolean leftImmediate =
+                        left.getEffectivePriority() == Request.Priority.IMMEDIATE;
+                boolean rightImmediate =
+                        right.getEffectivePriority() == Request.Priority.IMMEDIATE;
+                if (leftImmediate != rightImmediate) {
+                    return leftImmediate ? -1 : 1;
+                }
+                long leftKey = agingKey(left, agingIntervalMs);
+                long rightKey = agingKey(right, agingIntervalMs);
+                if (leftKey != rightKey) {
+                    return leftKey < rightKey ? -1 : 1;
+                }
+                return left.getSequence() - right.getSequence();
+            }
+        };
+    }
+
+    private static long agingKey(Request<?> request, long agingIntervalMs) {
+        return request.getFirstQueuedTimeMs()
+                - request.getEffectivePriority().ordinal() * agingIntervalMs;
+    }
+
+    /**
+     * Returns the given order with prefetches moved after all other requests.
+     *
+     * @param order The order, or null for {@link Request#compareTo}
+     */
+    private static Comparator<Request<?>> prefetchesLast(final Comparator<Request<?>> order) {
+        return new Comparator<Request<?>>() {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            @Override
+            public int compare(Request<?> left, Request<?> right) {
+                boolean leftPrefetch = left.isPrefetch();
+                if (leftPrefetch != right.isPrefetch()) {
+                    return leftPrefetch ? 1 : -1;
+                }
+                if (order != null) {
+                    return order.compare(left, right);
+                }
+                return ((Request) left).compareTo(right);
+            }
+        };
+    }
+
+    /** Number of recent wait times kept per priority for percentiles. */
+    private static final int WAIT_TIME_SAMPLES = 1024;
+
+    /** The queued and in-flight requests of a single host. */
+    private static class HostBucket {
+        final String host;
+        final PriorityQueue<Request<?>> queued;
+        int inFlight;
+
+        /** The last head found over its rate limit, so each request is counted once. */
+        Request<?> rateLimitedHead;
+
+        /** The request {@link #nextBucket} chose to take from this bucket. */
+        Request<?> next;
+
+        HostBucket(String host, Comparator<Request<?>> comparator) {
+            this.host = host;
+            queued = new PriorityQueue<>(11, comparator);
+        }
+    }
+
+    /** A request which cannot be taken before a given time. */
+    private static class DelayedRequest {
+        final Request<?> request;
+        final long readyAtMs;
+
+        DelayedRequest(Request<?> request, long readyAtMs) {
+            this.request = request;
+            this.readyAtMs = readyAtMs;
+        }
+    }
+
+    private static final Comparator<DelayedRequest> READY_TIME_ORDER =
+            new Comparator<DelayedRequest>() {
+                @Override
+                public int compare(DelayedRequest left, DelayedRequest right) {
+                    return left.readyAtMs < right.readyAtMs
+                            ? -1 : (left.readyAtMs == right.readyAtMs ? 0 : 1);
+                }
+            };
+
+    /** Guards all state below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled when a request may have become available to a taker. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /** Signalled when a request has left the queue, making room in a bounded queue. */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /** Whether requests are bucketed by host and in-flight requests counted. */
+    private final boolean mTrackHosts;
+
+    /** Queued and in-flight requests by host. */
+    // @GuardedBy("mLock")
+    private final Map<String, HostBucket> mBuckets = new HashMap<>();
+
+    /** Requests added with a delay which has not yet passed, soonest first. */
+    // @GuardedBy("mLock")
+    private final PriorityQueue<DelayedRequest> mDelayed =
+            new PriorityQueue<>(11, READY_TIME_ORDER);
+
+    /** Times until which hosts are paused, by host. */
+    // @GuardedBy("mLock")
+    private final Map<String, Long> mPausedUntilMs = new HashMap<>();
+
+    /** Rate limits by host pattern, in the order they were set. */
+    // @GuardedBy("mLock")
+    private final Map<String, TokenBucket> mHostRateLimits = new LinkedHashMap<>();
+
+    /** The rate limit matching each host seen so far, or null if none does. */
+    // @GuardedBy("mLock")
+    private final Map<String, TokenBucket> mRateLimitByHost = new HashMap<>();
+
+    /** Rate limits by request tag, compared by identity. */
+    // @GuardedBy("mLock")
+    private final Map<Object, TokenBucket> mTagRateLimits = new IdentityHashMap<>();
+
+    /** Number of requests which had to wait for their rate limit. */
+    // @GuardedBy("mLock")
+    private long mRateLimitedCount;
+
+    /** Total number of queued requests across all buckets. */
+    // @GuardedBy("mLock")
+    private int mSize;
+
+    /** Number of queued requests which are prefetches. */
+    // @GuardedBy("mLock")
+    private int mPrefetchCount;
+
+    /** Total number of in-flight requests across all hosts, with host tracking. */
+    // @GuardedBy("mLock")
+    private int mInFlight;
+
+    /** Prefetches are taken only while fewer requests than this are in flight. */
+    // @GuardedBy("mLock")
+    private int mPrefetchInFlightLimit = 1;
+
+    /** Largest number of requests that have been queued at once. */
+    // @GuardedBy("mLock")
+    private int mPeakSize;
+
+    /** Number of requests {@link #admit} accepts before the queue is full; 0 if unbounded. */
+    // @GuardedBy("mLock")
+    private int mCapacity;
+
+    /** Limit of in-flight requests for hosts without a specific limit; 0 if unlimited. */
+    // @GuardedBy("mLock")
+    private int mDefaultMaxInFlightPerHost;
+
+    /** Host-specific limits of in-flight requests. */
+    // @GuardedBy("mLock")
+    private final Map<String, Integer> mMaxInFlightByHost = new HashMap<>();
+
+    /** Number of requests taken from this queue. */
+    // @GuardedBy("mLock")
+    private long mTakenCount;
+
+    /** Total time the taken requests spent waiting in this queue. */
+    // @GuardedBy("mLock")
+    private long mTotalWaitTimeMs;
+
+    /** Longest time a taken request spent waiting in this queue. */
+    // @GuardedBy("mLock")
+    private long mMaxWaitTimeMs;
+
+    /** Wait times of the most recently taken requests, by priority ordinal. */
+    // @GuardedBy("mLock")
+    private final long[][] mRecentWaitTimesMs =
+            new long[Request.Priority.values().length][WAIT_TIME_SAMPLES];
+
+    /** Number of requests taken, by priority ordinal. */
+    // @GuardedBy("mLock")
+    private final long[] mTakenCountByPriority = new long[Request.Priority.values().length];
+
+    /** The scheduler ordering this queue and notified of its requests; null if none. */
+    // @GuardedBy("mLock")
+    private RequestScheduler mScheduler;
+
+    /** Order in which requests are taken, with prefetches last. */
+    // @GuardedBy("mLock")
+    private Comparator<Request<?>> mOrder = prefetchesLast(null);
+
+    /** Number of takers waiting for requests of a minimum priority. */
+    // @GuardedBy("mLock")
+    private int mSelectiveTakers;
+
+    /** Notified whenever a request is added; may be null. */
+    private volatile Listener mListener;
+
+    /** Notified whenever a request may have become available to take; may be null. */
+    private volatile AvailabilityListener mAvailabilityListener;
+
+    /** Creates a queue without host tracking. */
+    DispatchQueue() {
+        this(false);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param trackHosts Whether to bucket requests by host and count in-flight requests, which
+     *     must then be passed to {@link #release} once they are done
+     */
+    DispatchQueue(boolean trackHosts) {
+        mTrackHosts = trackHosts;
+    }
+
+    /** Sets the listener to notify whenever a request is added to this queue. */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the listener to notify whenever a request may have become available to take, for
+     * takers which only {@link #poll()} this queue.
+     */
+    void setAvailabilityListener(AvailabilityListener listener) {
+        mAvailabilityListener = listener;
+    }
+
+    /**
+     * Sets the order in which requests are taken, re-ordering any requests already queued.
+     * Properties of a request the order depends on must not change while it is queued.
+     *
+     * @param comparator The order, or null to use {@link Request#compareTo}
+     */
+    void setComparator(Comparator<Request<?>> comparator) {
+        mLock.lock();
+        try {
+            mOrder = prefetchesLast(comparator);
+            for (Map.Entry<String, HostBucket> entry : mBuckets.entrySet()) {
+                HostBucket bucket = new HostBucket(entry.getKey(), mOrder);
+                bucket.queued.addAll(entry.getValue().queued);
+                bucket.inFlight = entry.getValue().inFlight;
+                entry.setValue(bucket);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the scheduler deciding the order in which requests are taken, which is notified as
+     * requests are added, taken and removed. Requests already queued are passed to
+     * {@link RequestScheduler#onQueued} first.
+     *
+     * @param scheduler The scheduler, or null to use {@link Request#compareTo}
+     */
+    void setScheduler(RequestScheduler scheduler) {
+        mLock.lock();
+        try {
+            mScheduler = scheduler;
+            if (scheduler != null) {
+                for (HostBucket bucket : mBuckets.values()) {
+                    for (Request<?> request : bucket.queued) {
+                        scheduler.onQueued(request);
+                    }
+                }
+            }
+            setComparator(scheduler);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of in-flight requests for hosts without a specific limit.
+     *
+     * @param maxInFlight The limit, or 0 for no limit
+     */
+    void setMaxInFlightPerHost(int maxInFlight) {
+        checkHostTracking();
+        mLock.lock();
+        try {
+            mDefaultMaxInFlightPerHost = maxInFlight;
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of in-flight requests for the given host.
+     *
+     * @param maxInFlight The limit, or 0 for no limit
+     */
+    void setMaxInFlightPerHost(String host, int maxInFlight) {
+        checkHostTracking();
+        mLock.lock();
+        try {
+            mMaxInFlightByHost.put(host, maxInFlight);
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of in-flight requests below which prefetches may be taken. Only applies
+     * with host tracking.
+     *
+     * @param maxInFlight The limit; 1 takes prefetches only while nothing is in flight
+     */
+    void setPrefetchInFlightLimit(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        mLock.lock();
+        try {
+            mPrefetchInFlightLimit = maxInFlight;
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns whether any request other than a prefetch is queued. */
+    boolean hasQueuedNonPrefetch() {
+        mLock.lock();
+        try {
+            return mSize > mPrefetchCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void checkHostTracking() {
+        if (!mTrackHosts) {
+            throw new IllegalStateException("Host limits require a host-tracking queue");
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        request.setQueuedTimeMs(SystemClock.elapsedRealtime());
+        String key = keyFor(request);
+        mLock.lock();
+        try {
+            enqueue(key, request);
+            signalTaker();
+        } finally {
+            mLock.unlock();
+        }
+        notifyListener();
+        return true;
+    }
+
+    /**
+     * Adds a request which cannot be taken until the given delay has passed.
+     *
+     * @param delayMs The delay; the request is added immediately if it is not positive
+     */
+    void offerDelayed(Request<?> request, long delayMs) {
+        if (delayMs <= 0) {
+            offer(request);
+            return;
+        }
+        mLock.lock();
+        try {
+            mDelayed.add(new DelayedRequest(request, SystemClock.elapsedRealtime() + delayMs));
+            // Takers waiting for a later delay to pass must wait for this one instead.
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the queued requests of the given host from being taken for the given time. Extends,
+     * but never shortens, a pause already in effect.
+     */
+    void pauseHost(String host, long durationMs) {
+        checkHostTracking();
+        long untilMs = SystemClock.elapsedRealtime() + durationMs;
+        mLock.lock();
+        try {
+            Long pausedUntilMs = mPausedUntilMs.get(host);
+            if (pausedUntilMs == null || pausedUntilMs < untilMs) {
+                mPausedUntilMs.put(host, untilMs);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the rate at which requests for hosts matching the pattern are taken. All matching
+     * hosts share the limit. Replaces any limit previously set for the same pattern.
+     *
+     * @param hostPattern A host, or a pattern such as {@code *.example.com} matching the
+     *     subdomains of a domain
+     * @param rateLimit The limit, or null to remove it
+     */
+    void setHostRateLimit(String hostPattern, TokenBucket rateLimit) {
+        checkHostTracking();
+        mLock.lock();
+        try {
+            if (rateLimit != null) {
+                mHostRateLimits.put(hostPattern, rateLimit);
+            } else {
+                mHostRateLimits.remove(hostPattern);
+            }
+            mRateLimitByHost.clear();
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the rate at which requests with the given tag are taken.
+     *
+     * @param rateLimit The limit, or null to remove it
+     */
+    void setTagRateLimit(Object tag, TokenBucket rateLimit) {
+        mLock.lock();
+        try {
+            if (rateLimit != null) {
+                mTagRateLimits.put(tag, rateLimit);
+            } else {
+                mTagRateLimits.remove(tag);
+            }
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests which had to wait in this queue for their rate limit. */
+    long getRateLimitedCount() {
+        mLock.lock();
+        try {
+            return mRateLimitedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Raises the priority the request is taken at to the given one, if that is higher, moving
+     * the request forward if it is queued. See {@link Request#inheritPriority}.
+     */
+    void inheritPriority(Request<?> request, Request.Priority priority) {
+        String key = keyFor(request);
+        mLock.lock();
+        try {
+            Request.Priority current = request.getEffectivePriority();
+            if (current != null && current.ordinal() >= priority.ordinal()) {
+                return;
+            }
+            // The request must leave its priority queue while its order changes.
+            HostBucket bucket = mBuckets.get(key);
+            boolean queued = bucket != null && bucket.queued.remove(request);
+            request.inheritPriority(priority);
+            if (queued) {
+                bucket.queued.add(request);
+                // A taker reserved for urgent requests may want it now.
+                signalTaker();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Raises the priority of a request which may be queued on the given queue, as
+     * {@link #inheritPriority(Request, Request.Priority)} does for a dispatch queue.
+     */
+    static void inheritPriority(BlockingQueue<Request<?>> queue, Request<?> request,
+            Request.Priority priority) {
+        if (priority == null) {
+            return;
+        }
+        if (queue instanceof DispatchQueue) {
+            ((DispatchQueue) queue).inheritPriority(request, priority);
+            return;
+        }
+        boolean queued = queue.remove(request);
+        request.inheritPriority(priority);
+        if (queued) {
+            queue.add(request);
+        }
+    }
+
+    /** Returns the number of requests waiting for their delay to pass. */
+    int getDelayedCount() {
+        mLock.lock();
+        try {
+            return mDelayed.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds all of the given requests while holding the lock once, waking up takers and
+     * notifying the listener once rather than per request.
+     */
+    @Override
+    public boolean addAll(Collection<? extends Request<?>> requests) {
+        if (requests == this) {
+            throw new IllegalArgumentException();
+        }
+        if (requests.isEmpty()) {
+            return false;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        List<String> keys = new ArrayList<>(requests.size());
+        for (Request<?> request : requests) {
+            if (request == null) {
+                throw new NullPointerException();
+            }
+            request.setQueuedTimeMs(nowMs);
+            keys.add(keyFor(request));
+        }
+        mLock.lock();
+        try {
+            int i = 0;
+            for (Request<?> request : requests) {
+                enqueue(keys.get(i++), request);
+            }
+            signalAllTakers();
+        } finally {
+            mLock.unlock();
+        }
+        notifyListener();
+        return true;
+    }
+
+    /**
+     * Sets the number of requests {@link #admit} accepts before the queue is full. Requests
+     * added through the {@link BlockingQueue} methods are never refused.
+     *
+     * @param capacity The capacity, or 0 for no limit
+     */
+    void setCapacity(int capacity) {
+        mLock.lock();
+        try {
+            mCapacity = capacity;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a request unless the queue is at its capacity, in which case the given policy
+     * decides which request is refused.
+     *
+     * @param policy What to do if the queue is full
+     * @param timeoutMs How long to wait for room under {@link RequestQueue.QueueFullPolicy#BLOCK}
+     * @return null if the request was added without refusing any, or else the refused request:
+     *     either the given one or a queued one it displaced
+     */
+    Request<?> admit(Request<?> request, RequestQueue.QueueFullPolicy policy, long timeoutMs)
+            throws InterruptedException {
+        request.setQueuedTimeMs(SystemClock.elapsedRealtime());
+        String key = keyFor(request);
+        Request<?> refused = null;
+        mLock.lockInterruptibly();
+        try {
+            if (mCapacity > 0 && mSize >= mCapacity) {
+                switch (policy) {
+                    case REJECT_NEWEST:
+                        return request;
+                    case DROP_LOWEST_PRIORITY:
+                        refused = lowestRanked();
+                        if (refused == null || compare(request, refused) >= 0) {
+                            return request;
+                        }
+                        remove(refused);
+                        break;
+                    case BLOCK:
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                        while (mCapacity > 0 && mSize >= mCapacity) {
+                            if (nanos <= 0) {
+                                return request;
+                            }
+                            nanos = mNotFull.awaitNanos(nanos);
+                        }
+                        break;
+                }
+            }
+            enqueue(key, request);
+            signalTaker();
+        } finally {
+            mLock.unlock();
+        }
+        notifyListener();
+        return refused;
+    }
+
+    /** Returns the queued request which would be taken last. */
+    // @GuardedBy("mLock")
+    private Request<?> lowestRanked() {
+        Request<?> lowest = null;
+        for (HostBucket bucket : mBuckets.values()) {
+            for (Request<?> request : bucket.queued) {
+                if (lowest == null || compare(request, lowest) > 0) {
+                    lowest = request;
+                }
+            }
+        }
+        return lowest;
+    }
+
+    // @GuardedBy("mLock")
+    private void enqueue(String key, Request<?> request) {
+        HostBucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new HostBucket(key, mOrder);
+            mBuckets.put(key, bucket);
+        }
+        if (mScheduler != null) {
+            mScheduler.onQueued(request);
+        }
+        bucket.queued.add(request);
+        mSize++;
+        if (request.isPrefetch()) {
+            mPrefetchCount++;
+        }
+        mPeakSize = Math.max(mPeakSize, mSize);
+    }
+
+    /**
+     * Wakes up a taker for a request which has become available. Wakes up all of them if some
+     * only take requests of a minimum priority, since the one woken might not take it.
+     */
+    // @GuardedBy("mLock")
+    private void signalTaker() {
+        if (mSelectiveTakers > 0) {
+            mAvailable.signalAll();
+        } else {
+            mAvailable.signal();
+        }
+        notifyAvailable();
+    }
+
+    /** Wakes up all takers, since requests may have become available to them. */
+    // @GuardedBy("mLock")
+    private void signalAllTakers() {
+        mAvailable.signalAll();
+        notifyAvailable();
+    }
+
+    // @GuardedBy("mLock")
+    private void notifyAvailable() {
+        AvailabilityListener listener = mAvailabilityListener;
+        if (listener != null) {
+            listener.onRequestAvailable(this);
+        }
+    }
+
+    private void notifyListener() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRequestQueued(this);
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        return take(null);
+    }
+
+    /**
+     * Takes the next request of at least the given priority, waiting until there is one.
+     * Prefetches are never taken this way.
+     *
+     * @param minPriority The lowest priority to take, or null to take any request
+     */
+    Request<?> take(Request.Priority minPriority) throws InterruptedException {
+        mLock.lockInterruptibly();
+        if (minPriority != null) {
+            mSelectiveTakers++;
+        }
+        try {
+            Request<?> request;
+            while ((request = dequeue(minPriority)) == null) {
+                long wakeUpDelayMs = getWakeUpDelayMs();
+                if (wakeUpDelayMs < 0) {
+                    mAvailable.await();
+                } else {
+                    mAvailable.await(wakeUpDelayMs, TimeUnit.MILLISECONDS);
+                }
+            }
+            return request;
+        } finally {
+            if (minPriority != null) {
+                mSelectiveTakers--;
+            }
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue(null)) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long wakeUpDelayMs = getWakeUpDelayMs();
+                if (wakeUpDelayMs < 0) {
+                    nanos = mAvailable.awaitNanos(nanos);
+                } else {
+                    long waitNanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(wakeUpDelayMs));
+                    nanos -= waitNanos - mAvailable.awaitNanos(waitNanos);
+                }
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue(null);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request the next {@link #take()} would return, without removing it. This is a
+     * pure read: requests whose delay has passed are only considered once a taker has moved
+     * them into the queue, and a request held back by a rate limit is not recorded as such.
+     */
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            long nowMs = SystemClock.elapsedRealtime();
+            Request<?> best = null;
+            for (Map.Entry<String, HostBucket> entry : mBuckets.entrySet()) {
+                Request<?> next =
+                        nextRequest(entry.getKey(), entry.getValue(), null, nowMs, false);
+                if (next != null && (best == null || compare(next, best) < 0)) {
+                    best = next;
+                }
+            }
+            if (best != null && best.isPrefetch() && !mayTakePrefetch()) {
+                return null;
+            }
+            return best;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long a taker which found nothing to {@link #poll()} should wait before polling
+     * again, since a delay or a host pause ends by then, or -1 to wait until notified.
+     */
+    long getNextWakeUpDelayMs() {
+        mLock.lock();
+        try {
+            return getWakeUpDelayMs();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a request previously taken from this queue as no longer in flight, allowing another
+     * request for its host to be taken. Has no effect without host tracking.
+     */
+    void release(Request<?> request) {
+        if (!mTrackHosts) {
+            return;
+        }
+        String key = keyFor(request);
+        mLock.lock();
+        try {
+            HostBucket bucket = mBuckets.get(key);
+            if (bucket == null || bucket.inFlight == 0) {
+                return;
+            }
+            bucket.inFlight--;
+            mInFlight--;
+            if (bucket.inFlight == 0 && bucket.queued.isEmpty()) {
+                mBuckets.remove(key);
+                if (mPrefetchCount > 0) {
+                    // A prefetch for another host may now be below the in-flight limit.
+                    signalTaker();
+                }
+            } else {
+                signalTaker();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // @GuardedBy("mLock")
+    private Request<?> dequeue(Request.Priority minPriority) {
+        HostBucket bucket = nextBucket(minPriority);
+        if (bucket == null) {
+            return null;
+        }
+        Request<?> request = bucket.next;
+        bucket.next = null;
+        if (request == bucket.queued.peek()) {
+            bucket.queued.poll();
+        } else {
+            bucket.queued.remove(request);
+        }
+        mSize--;
+        if (request.isPrefetch()) {
+            mPrefetchCount--;
+        }
+        mNotFull.signal();
+        takeRateLimitTokens(bucket.host, request);
+        if (mTrackHosts) {
+            bucket.inFlight++;
+            mInFlight++;
+        }
+        long waitTimeMs = SystemClock.elapsedRealtime() - request.getQueuedTimeMs();
+        mTakenCount++;
+        mTotalWaitTimeMs += waitTimeMs;
+        mMaxWaitTimeMs = Math.max(mMaxWaitTimeMs, waitTimeMs);
+        if (mScheduler != null) {
+            mScheduler.onTaken(request, waitTimeMs);
+        }
+        Request.Priority priority = request.getPriority();
+        if (priority != null) {
+            int ordinal = priority.ordinal();
+            int sample = (int) (mTakenCountByPriority[ordinal]++ % WAIT_TIME_SAMPLES);
+            mRecentWaitTimesMs[ordinal][sample] = waitTimeMs;
+        }
+        return request;
+    }
+
+    /**
+     * Returns the bucket whose {@link HostBucket#next next} request should be taken: the one
+     * holding the highest priority takeable request among hosts below their in-flight limit, or
+     * null if there is none. A prefetch is only returned while it may be taken.
+     *
+     * @param minPriority The lowest priority of request to consider, or null for any
+     */
+    // @GuardedBy("mLock")
+    private HostBucket nextBucket(Request.Priority minPriority) {
+        long nowMs = SystemClock.elapsedRealtime();
+        promoteDelayed(nowMs);
+        HostBucket best = null;
+        for (Map.Entry<String, HostBucket> entry : mBuckets.entrySet()) {
+            HostBucket bucket = entry.getValue();
+            Request<?> next = nextRequest(entry.getKey(), bucket, minPriority, nowMs, true);
+            if (next == null) {
+                continue;
+            }
+            if (best == null || compare(next, best.next) < 0) {
+                best = bucket;
+            }
+            bucket.next = next;
+        }
+        if (best != null && best.next.isPrefetch() && !mayTakePrefetch()) {
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the request to take from the bucket, or null if none may be taken now: the head,
+     * unless its host is at its limit or paused, or the head is over its rate limits. A tag's
+     * limit only holds back requests with that tag, so the highest ranked request in the bucket
+     * within its limits is then taken instead.
+     *
+     * @param record Whether to record a head held back by its rate limit
+     */
+    // @GuardedBy("mLock")
+    private Request<?> nextRequest(String host, HostBucket bucket, Request.Priority minPriority,
+            long nowMs, boolean record) {
+        Request<?> head = bucket.queued.peek();
+        if (head == null || isBelow(head, minPriority) || isAtLimit(host, bucket)
+                || isPaused(host, nowMs)) {
+            return null;
+        }
+        if (!isRateLimited(bucket, head, nowMs, record)) {
+            return head;
+        }
+        if (getTagRateLimitWaitMs(head, nowMs) == 0) {
+            // The host itself is over its limit.
+            return null;
+        }
+        Request<?> best = null;
+        for (Request<?> request : bucket.queued) {
+            if (request == head || isBelow(request, minPriority)
+                    || getRateLimitWaitMs(bucket.host, request, nowMs) > 0) {
+                continue;
+            }
+            if (best == null || compare(request, best) < 0) {
+                best = request;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBelow(Request<?> request, Request.Priority minPriority) {
+        if (minPriority == null) {
+            return false;
+        }
+        Request.Priority priority = request.getEffectivePriority();
+        return request.isPrefetch() || priority == null
+                || priority.ordinal() < minPriority.ordinal();
+    }
+
+    /** Returns whether no other request is queued and few enough are in flight for a prefetch. */
+    // @GuardedBy("mLock")
+    private boolean mayTakePrefetch() {
+        return mSize == mPrefetchCount && (!mTrackHosts || mInFlight < mPrefetchInFlightLimit);
+    }
+
+    /** Moves requests whose delay has passed into their buckets. */
+    // @GuardedBy("mLock")
+    private void promoteDelayed(long nowMs) {
+        DelayedRequest delayed;
+        while ((delayed = mDelayed.peek()) != null && delayed.readyAtMs <= nowMs) {
+            mDelayed.poll();
+            delayed.request.setQueuedTimeMs(nowMs);
+            enqueue(keyFor(delayed.request), delayed.request);
+        }
+    }
+
+    // @GuardedBy("mLock")
+    private boolean isPaused(String host, long nowMs) {
+        if (mPausedUntilMs.isEmpty()) {
+            return false;
+        }
+        Long pausedUntilMs = mPausedUntilMs.get(host);
+        if (pausedUntilMs == null) {
+            return false;
+        }
+        if (pausedUntilMs <= nowMs) {
+            mPausedUntilMs.remove(host);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the head of the bucket must wait for its rate limit, recording the first
+     * time it is found to if {@code record} is set.
+     */
+    // @GuardedBy("mLock")
+    private boolean isRateLimited(HostBucket bucket, Request<?> head, long nowMs,
+            boolean record) {
+        if (getRateLimitWaitMs(bucket.host, head, nowMs) == 0) {
+            return false;
+        }
+        if (record && bucket.rateLimitedHead != head) {
+            bucket.rateLimitedHead = head;
+            mRateLimitedCount++;
+            head.addMarker("rate-limited");
+        }
+        return true;
+    }
+
+    /** Returns how long the request must wait for its rate limits, or 0 if it need not. */
+    // @GuardedBy("mLock")
+    private long getRateLimitWaitMs(String host, Request<?> request, long nowMs) {
+        if (mHostRateLimits.isEmpty() && mTagRateLimits.isEmpty()) {
+            return 0;
+        }
+        boolean immediate = request.getEffectivePriority() == Request.Priority.IMMEDIATE;
+        long waitMs = 0;
+        TokenBucket hostRateLimit = getHostRateLimit(host);
+        if (hostRateLimit != null) {
+            waitMs = hostRateLimit.getWaitMs(nowMs, immediate);
+        }
+        return Math.max(waitMs, getTagRateLimitWaitMs(request, nowMs));
+    }
+
+    /** Returns how long the request must wait for its tag's rate limit, or 0 if it need not. */
+    // @GuardedBy("mLock")
+    private long getTagRateLimitWaitMs(Request<?> request, long nowMs) {
+        if (mTagRateLimits.isEmpty()) {
+            return 0;
+        }
+        Object tag = request.getTag();
+        TokenBucket tagRateLimit = tag != null ? mTagRateLimits.get(tag) : null;
+        if (tagRateLimit == null) {
+            return 0;
+        }
+        return tagRateLimit.getWaitMs(
+                nowMs, request.getEffectivePriority() == Request.Priority.IMMEDIATE);
+    }
+
+    // @GuardedBy("mLock")
+    private void takeRateLimitTokens(String host, Request<?> request) {
+        if (mHostRateLimits.isEmpty() && mTagRateLimits.isEmpty()) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        TokenBucket hostRateLimit = getHostRateLimit(host);
+        if (hostRateLimit != null) {
+            hostRateLimit.take(nowMs);
+        }
+        Object tag = request.getTag();
+        TokenBucket tagRateLimit = tag != null ? mTagRateLimits.get(tag) : null;
+        if (tagRateLimit != null) {
+            tagRateLimit.take(nowMs);
+        }
+    }
+
+    // @GuardedBy("mLock")
+    private TokenBucket getHostRateLimit(String host) {
+        if (mHostRateLimits.isEmpty() || host.equals(NO_HOST)) {
+            return null;
+        }
+        if (mRateLimitByHost.containsKey(host)) {
+            return mRateLimitByHost.get(host);
+        }
+        TokenBucket rateLimit = null;
+        for (Map.Entry<String, TokenBucket> entry : mHostRateLimits.entrySet()) {
+            if (matchesHostPattern(host, entry.getKey())) {
+                rateLimit = entry.getValue();
+                break;
+            }
+        }
+        mRateLimitByHost.put(host, rateLimit);
+        return rateLimit;
+    }
+
+    private static boolean matchesHostPattern(String host, String pattern) {
+        if (pattern.startsWith("*.")) {
+            return host.endsWith(pattern.substring(1));
+        }
+        return host.equals(pattern);
+    }
+
+    /**
+     * Returns how long a taker finding nothing to take should wait before looking again, since
+     * a delay or a host pause ends by then, or -1 to wait until signalled.
+     */
+    // @GuardedBy("mLock")
+    private long getWakeUpDelayMs() {
+        long nowMs = SystemClock.elapsedRealtime();
+        long wakeUpAtMs = Long.MAX_VALUE;
+        DelayedRequest delayed = mDelayed.peek();
+        if (delayed != null) {
+            wakeUpAtMs = delayed.readyAtMs;
+        }
+        for (Map.Entry<String, Long> entry : mPausedUntilMs.entrySet()) {
+            HostBucket bucket = mBuckets.get(entry.getKey());
+            if (bucket != null && !bucket.queued.isEmpty()) {
+                wakeUpAtMs = Math.min(wakeUpAtMs, entry.getValue());
+            }
+        }
+        if (!mHostRateLimits.isEmpty() || !mTagRateLimits.isEmpty()) {
+            for (HostBucket bucket : mBuckets.values()) {
+                Request<?> head = bucket.queued.peek();
+                long waitMs = head != null ? getRateLimitWaitMs(bucket.host, head, nowMs) : 0;
+                if (waitMs > 0) {
+                    wakeUpAtMs = Math.min(wakeUpAtMs, nowMs + waitMs);
+                }
+            }
+        }
+        return wakeUpAtMs == Long.MAX_VALUE ? -1 : Math.max(1, wakeUpAtMs - nowMs);
+    }
+
+    // @GuardedBy("mLock")
+    private boolean isAtLimit(String host, HostBucket bucket) {
+        if (!mTrackHosts) {
+            return false;
+        }
+        Integer hostLimit = mMaxInFlightByHost.get(host);
+        int limit = hostLimit != null ? hostLimit : mDefaultMaxInFlightPerHost;
+        return limit > 0 && bucket.inFlight >= limit;
+    }
+
+    // @GuardedBy("mLock")
+    private int compare(Request<?> left, Request<?> right) {
+        return mOrder.compare(left, right);
+    }
+
+    private String keyFor(Request<?> request) {
+        if (!mTrackHosts) {
+            return NO_HOST;
+        }
+        String host = request.getHost();
+        return host != null ? host : NO_HOST;
+    }
+
+    /**
+     * Returns how long the request at the head of this queue has been waiting, or 0 if no
+     * request can currently be taken.
+     */
+    long getHeadWaitTimeMs() {
+        Request<?> head = peek();
+        if (head == null) {
+            return 0;
+        }
+        return SystemClock.elapsedRealtime() - head.getQueuedTimeMs();
+    }
+
+    /** Returns the largest number of requests that have been queued at once. */
+    int getPeakSize() {
+        mLock.lock();
+        try {
+            return mPeakSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests that have been taken from this queue. */
+    long getTakenCount() {
+        mLock.lock();
+        try {
+            return mTakenCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the total time the requests taken from this queue spent waiting in it. */
+    long getTotalWaitTimeMs() {
+        mLock.lock();
+        try {
+            return mTotalWaitTimeMs;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the longest time a request taken from this queue spent waiting in it. */
+    long getMaxWaitTimeMs() {
+        mLock.lock();
+        try {
+            return mMaxWaitTimeMs;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given percentile of the times that recently taken requests of the given
+     * priority spent waiting in this queue, over the last {@value #WAIT_TIME_SAMPLES} such
+     * requests, or 0 if none has been taken.
+     *
+     * @param percentile The percentile, between 0 and 100
+     */
+    long getWaitTimePercentileMs(Request.Priority priority, double percentile) {
+        long[] samples;
+        mLock.lock();
+        try {
+            long taken = mTakenCountByPriority[priority.ordinal()];
+            samples = Arrays.copyOf(mRecentWaitTimesMs[priority.ordinal()],
+                    (int) Math.min(taken, WAIT_TIME_SAMPLES));
+        } finally {
+            mLock.unlock();
+        }
+        if (samples.length == 0) {
+            return 0;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(index, samples.length - 1))];
+    }
+
+    /**
+     * Returns the number of queued requests that could be taken right now, not counting
+     * prefetches.
+     */
+    int getDispatchableCount() {
+        mLock.lock();
+        try {
+            int count = 0;
+            for (Map.Entry<String, HostBucket> entry : mBuckets.entrySet()) {
+                if (isAtLimit(entry.getKey(), entry.getValue())) {
+                    continue;
+                }
+                if (mPrefetchCount == 0) {
+                    count += entry.getValue().queued.size();
+                    continue;
+                }
+                for (Request<?> request : entry.getValue().queued) {
+                    if (!request.isPrefetch()) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of queued requests for the given host. */
+    int getQueuedCount(String host) {
+        mLock.lock();
+        try {
+            HostBucket bucket = mBuckets.get(host);
+            return bucket != null ? bucket.queued.size() : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of in-flight requests for the given host. */
+    int getInFlightCount(String host) {
+        mLock.lock();
+        try {
+            HostBucket bucket = mBuckets.get(host);
+            return bucket != null ? bucket.inFlight : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        String key = keyFor((Request<?>) o);
+        mLock.lock();
+        try {
+            HostBucket bucket = mBuckets.get(key);
+            if (bucket == null || !bucket.queued.remove(o)) {
+                return removeDelayed(Collections.singleton(o), null);
+            }
+            mSize--;
+            if (mScheduler != null) {
+                mScheduler.onRemoved((Request<?>) o);
+            }
+            if (((Request<?>) o).isPrefetch()) {
+                mPrefetchCount--;
+            } else if (mPrefetchCount > 0) {
+                // Prefetches may be waiting for this request to leave.
+                signalAllTakers();
+            }
+            mNotFull.signal();
+            if (mTrackHosts && bucket.inFlight == 0 && bucket.queued.isEmpty()) {
+                mBuckets.remove(key);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes those of the given requests which are waiting for their delay to pass.
+     *
+     * @param removed List to add the removed requests to, or null
+     * @return Whether any request was removed
+     */
+    // @GuardedBy("mLock")
+    private boolean removeDelayed(Collection<?> requests, List<Request<?>> removed) {
+        if (mDelayed.isEmpty()) {
+            return false;
+        }
+        boolean any = false;
+        Iterator<DelayedRequest> it = mDelayed.iterator();
+        while (it.hasNext()) {
+            DelayedRequest delayed = it.next();
+            if (requests.contains(delayed.request)) {
+                it.remove();
+                if (removed != null) {
+                    removed.add(delayed.request);
+                }
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        String key = keyFor((Request<?>) o);
+        mLock.lock();
+        try {
+            HostBucket bucket = mBuckets.get(key);
+            return bucket != null && bucket.queued.contains(o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes those of the given requests which are queued, scanning only the buckets of their
+     * hosts.
+     *
+     * @return The requests which were removed
+     */
+    List<Request<?>> removeRequests(Collection<Request<?>> requests) {
+        Map<String, Set<Request<?>>> requestsByKey = groupByKey(requests);
+        List<Request<?>> removed = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (Map.Entry<String, Set<Request<?>>> entry : requestsByKey.entrySet()) {
+                HostBucket bucket = mBuckets.get(entry.getKey());
+                if (bucket == null) {
+                    continue;
+                }
+                Iterator<Request<?>> it = bucket.queued.iterator();
+                while (it.hasNext()) {
+                    Request<?> request = it.next();
+                    if (entry.getValue().contains(request)) {
+                        it.remove();
+                        removed.add(request);
+                        if (mScheduler != null) {
+                            mScheduler.onRemoved(request);
+                        }
+                        if (request.isPrefetch()) {
+                            mPrefetchCount--;
+                        }
+                    }
+                }
+                if (mTrackHosts && bucket.inFlight == 0 && bucket.queued.isEmpty()) {
+                    mBuckets.remove(entry.getKey());
+                }
+            }
+            mSize -= removed.size();
+            removeDelayed(requests, removed);
+            mNotFull.signalAll();
+            if (mPrefetchCount > 0) {
+                signalAllTakers();
+            }
+            return removed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Changes the priority of the given requests, moving those which are queued to their new
+     * positions. Only the buckets of their hosts are visited; a bucket in which several of them
+     * are queued is re-ordered in one pass.
+     *
+     * @param priority The new priority, or null to restore {@link Request#getPriority()}
+     * @param updateUnqueued Whether to also change the priority of requests which are not
+     *     queued here, which must then not be queued anywhere else
+     * @return The requests which were not queued here
+     */
+    List<Request<?>> reprioritize(Collection<Request<?>> requests, Request.Priority priority,
+            boolean updateUnqueued) {
+        Map<String, Set<Request<?>>> requestsByKey = groupByKey(requests);
+        List<Request<?>> unqueued = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (Map.Entry<String, Set<Request<?>>> entry : requestsByKey.entrySet()) {
+                HostBucket bucket = mBuckets.get(entry.getKey());
+                Set<Request<?>> found = new HashSet<>();
+                if (bucket != null) {
+                    for (Request<?> request : bucket.queued) {
+                        if (entry.getValue().contains(request)) {
+                            found.add(request);
+                        }
+                    }
+                }
+                if (found.size() == 1) {
+                    Request<?> request = found.iterator().next();
+                    bucket.queued.remove(request);
+                    request.setPriorityOverride(priority);
+                    bucket.queued.add(request);
+                } else if (!found.isEmpty()) {
+                    for (Request<?> request : found) {
+                        request.setPriorityOverride(priority);
+                    }
+                    List<Request<?>> queued = new ArrayList<>(bucket.queued);
+                    bucket.queued.clear();
+                    bucket.queued.addAll(queued);
+                }
+                for (Request<?> request : entry.getValue()) {
+                    if (!found.contains(request)) {
+                        unqueued.add(request);
+                    }
+                }
+            }
+            if (updateUnqueued) {
+                for (Request<?> request : unqueued) {
+                    request.setPriorityOverride(priority);
+                }
+            }
+            if (unqueued.size() < requests.size()) {
+                signalAllTakers();
+            }
+            return unqueued;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Map<String, Set<Request<?>>> groupByKey(Collection<Request<?>> requests) {
+        Map<String, Set<Request<?>>> requestsByKey = new HashMap<>();
+        for (Request<?> request : requests) {
+            String key = keyFor(request);
+            Set<Request<?>> keyRequests = requestsByKey.get(key);
+            if (keyRequests == null) {
+                keyRequests = new HashSet<>();
+                requestsByKey.put(key, keyRequests);
+            }
+            keyRequests.add(request);
+        }
+        return requestsByKey;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes queued requests in the order they would be taken, without taking them: host
+     * pauses and limits are ignored, and in-flight counts, rate limit tokens and wait time
+     * statistics are left alone. Requests waiting for a delay to pass are not removed.
+     */
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        mLock.lock();
+        try {
+            List<Request<?>> queued = new ArrayList<>(mSize);
+            for (HostBucket bucket : mBuckets.values()) {
+                queued.addAll(bucket.queued);
+            }
+            Collections.sort(queued, mOrder);
+            if (queued.size() > maxElements) {
+                queued = queued.subList(0, maxElements);
+            }
+            removeRequests(queued);
+            c.addAll(queued);
+            return queued.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            Iterator<HostBucket> it = mBuckets.values().iterator();
+            while (it.hasNext()) {
+                HostBucket bucket = it.next();
+                if (mScheduler != null) {
+                    for (Request<?> request : bucket.queued) {
+                        mScheduler.onRemoved(request);
+                    }
+                }
+                bucket.queued.clear();
+                if (mTrackHosts && bucket.inFlight == 0) {
+                    it.remove();
+                }
+            }
+            mSize = 0;
+            mPrefetchCount = 0;
+            mDelayed.clear();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     * Removing through the iterator removes the request from the queue.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        final List<Request<?>> snapshot = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (HostBucket bucket : mBuckets.values()) {
+                snapshot.addAll(bucket.queued);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return new Iterator<Request<?>>() {
+            private final Iterator<Request<?>> mIterator = snapshot.iterator();
+            private Request<?> mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mIterator.hasNext();
+            }
+
+            @Override
+            public Request<?> next() {
+                mLast = mIterator.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                DispatchQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.Map;
+
+/**
+ * A request which sends the same HTTP request as another one and forwards its parsing and
+ * delivery to it, but has a retry policy, markers and completion of its own. It lets a
+ * {@link Network} perform a request more than once at a time, e.g. to hedge it, without the
+ * attempts sharing the original's retry state.
+ *
+ * <p>Everything the HTTP request is built from, as well as the tag, traffic stats tag, cache
+ * key and entry, priority and cancellation, is read from the original.
+ */
+public class ForwardingRequest<T> extends Request<T> {
+
+    private final Request<T> mOriginal;
+
+    /**
+     * Creates a request forwarding to the given one, with a retry policy allowing as long as
+     * the original's current timeout and no retries.
+     */
+    public ForwardingRequest(Request<T> original) {
+        super(original.getMethod(), original.getUrl(), null);
+        mOriginal = original;
+        setRetryPolicy(new DefaultRetryPolicy(
+                original.getRetryPolicy().getCurrentTimeout(), 0, 1f));
+        setShouldRetryServerErrors(original.shouldRetryServerErrors());
+        setShouldCache(original.shouldCache());
+    }
+
+    /** Returns the request this one forwards to. */
+    public Request<T> getOriginal() {
+        return mOriginal;
+    }
+
+    @Override
+    public Object getTag() {
+        return mOriginal.getTag();
+    }
+
+    @Override
+    public int getTrafficStatsTag() {
+        return mOriginal.getTrafficStatsTag();
+    }
+
+    @Override
+    public String getCacheKey() {
+        return mOriginal.getCacheKey();
+    }
+
+    @Override
+    public Cache.Entry getCacheEntry() {
+        return mOriginal.getCacheEntry();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return mOriginal.isCanceled();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return mOriginal.getHeaders();
+    }
+
+    @Deprecated
+    @Override
+    public String getPostBodyContentType() {
+        return mOriginal.getPostBodyContentType();
+    }
+
+    @Deprecated
+    @Override
+    public byte[] getPostBody() throws AuthFailureError {
+        return mOriginal.getPostBody();
+    }
+
+    @Override
+    public Map<String, String> getParams() throws AuthFailureError {
+        return mOriginal.getParams();
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return mOriginal.getBodyContentType();
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return mOriginal.getBody();
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mOriginal.getPriority();
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        return mOriginal.parseNetworkResponse(response);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        return mOriginal.parseNetworkError(volleyError);
+    }
+
+    @Override
+    protected void deliverResponse(T response) {
+        mOriginal.deliverResponse(response);
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+        mOriginal.deliverError(error);
+    }
+}
@@ -16,13 +16,11 @@
 
 package com.android.volley;
 
-import android.annotation.TargetApi;
-import android.net.TrafficStats;
-import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -30,18 +28,21 @@ import java.util.concurrent.BlockingQueue;
  * Requests added to the specified queue are processed from the network via a
  * specified {@link Network} interface. Responses are committed to cache, if
  * eligible, using a specified {@link Cache} interface. Valid responses and
- * errors are posted back to the caller via a {@link ResponseDelivery}.
+ * errors are posted back to the caller via a {@link ResponseDelivery}, except for those of
+ * {@link Request#isPrefetch prefetches}, which are only cached.
  */
 public class NetworkDispatcher extends Thread {
 
     /** The queue of requests to service. */
     private final BlockingQueue<Request<?>> mQueue;
-    /** The network interface for processing requests. */
-    private final Network mNetwork;
-    /** The cache to write to. */
-    private final Cache mCache;
-    /** For posting responses and errors. */
-    private final ResponseDelivery mDelivery;
+    /** Performs the requests taken from the queue. */
+    private final NetworkRequestProcessor mProcessor;
+    /** The pool managing this dispatcher, or null if it is not pooled. */
+    private final NetworkDispatcherPool mPool;
+    /** Lowest priority of request this dispatcher takes from its pool, or null for any. */
+    private final Request.Priority mMinPriority;
+    /** Linux priority of this thread. */
+    private final int mThreadPriority;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -56,10 +57,31 @@ public class NetworkDispatcher extends Thread {
      */
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache, ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null, null,
+                Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Creates a new network dispatcher thread managed by the given pool, which hands out
+     * requests and may retire this dispatcher when it is idle.
+     *
+     * @param minPriority Lowest priority of request to take, or null for any
+     * @param threadPriority Linux priority to run the thread at, see
+     *     {@link Process#setThreadPriority(int)}
+     */
+    /* package */ NetworkDispatcher(BlockingQueue<Request<?>> queue, Network network,
+            Cache cache, ResponseDelivery delivery, NetworkDispatcherPool pool,
+            Request.Priority minPriority, int threadPriority) {
         mQueue = queue;
-        mNetwork = network;
-        mCache = cache;
-        mDelivery = delivery;
+        mProcessor = new NetworkRequestProcessor(network, cache, delivery);
+        mPool = pool;
+        mMinPriority = minPriority;
+        mThreadPriority = threadPriority;
+    }
+
+    /** Returns the lowest priority of request this dispatcher takes, or null for any. */
+    /* package */ Request.Priority getMinPriority() {
+        return mMinPriority;
     }
 
     /**
@@ -71,17 +93,9 @@ public class NetworkDispatcher extends Thread {
         interrupt();
     }
 
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private void addTrafficStatsTag(Request<?> request) {
-        // Tag the request (if API >= 14)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
-        }
-    }
-
     @Override
     public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Process.setThreadPriority(mThreadPriority);
         while (true) {
             try {
                 processRequest();
@@ -91,6 +105,9 @@ public class NetworkDispatcher extends Thread {
                     return;
                 }
             }
+            if (mQuit) {
+                return;
+            }
         }
     }
 
@@ -99,65 +116,94 @@ public class NetworkDispatcher extends Thread {
     // of time. Update consumer-proguard-rules.pro when modifying this. See also
     // https://github.com/google/volley/issues/114
     private void processRequest() throws InterruptedException {
-        long startTimeMs = SystemClock.elapsedRealtime();
         // Take a request from the queue.
-        Request<?> request = mQueue.take();
-
+        Request<?> request = mPool != null ? mPool.take(this) : mQueue.take();
+        if (request == null) {
+            // Idled past the keep-alive time and retired by the pool.
+            mQuit = true;
+            return;
+        }
+        if (mPool != null && mPool.isAsync()) {
+            processRequestAsync(request);
+            return;
+        }
+        Executor executor = mPool != null ? mPool.getExecutor() : null;
+        if (executor != null) {
+            processRequestOnExecutor(executor, request);
+            return;
+        }
         try {
-            request.addMarker("network-queue-take");
-
-            // If the request was cancelled already, do not perform the
-            // network request.
-            if (request.isCanceled()) {
-                request.finish("network-discard-cancelled");
-                request.notifyListenerResponseNotUsable();
-                return;
+            mProcessor.processRequest(request);
+        } finally {
+            if (mPool != null) {
+                mPool.release(request);
             }
+        }
+    }
 
-            addTrafficStatsTag(request);
-
-            // Perform the network request.
-            NetworkResponse networkResponse = mNetwork.performRequest(request);
-            request.addMarker("network-http-complete");
+    /**
+     * Runs the request as a task on the executor and returns without waiting for it. The
+     * traffic stats tag is set on the thread running the task.
+     */
+    private void processRequestOnExecutor(Executor executor, final Request<?> request) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mProcessor.processRequest(request);
+                    } finally {
+                        mPool.release(request);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Typically a RejectedExecutionException from an executor which has been shut down.
+            mProcessor.onUnhandledException(request, e, SystemClock.elapsedRealtime());
+            mPool.release(request);
+        }
+    }
 
-            // If the server returned 304 AND we delivered a response already,
-            // we're done -- don't deliver a second identical response.
-            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                request.finish("not-modified");
-                request.notifyListenerResponseNotUsable();
+    /**
+     * Hands the request off to the {@link AsyncNetwork} and returns without waiting for the
+     * response, which is then parsed, cached and delivered on the thread completing the request.
+     * Since that is not this thread, the traffic stats tag set here does not apply to the
+     * transfer itself unless the HTTP stack tags its own threads.
+     */
+    private void processRequestAsync(final Request<?> request) {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            if (!mProcessor.beginRequest(request)) {
+                mPool.release(request);
                 return;
             }
 
-            // Parse the response here on the worker thread.
-            Response<?> response = request.parseNetworkResponse(networkResponse);
-            request.addMarker("network-parse-complete");
-
-            // Write to cache if applicable.
-            // TODO: Only update cache metadata instead of entire record for 304s.
-            if (request.shouldCache() && response.cacheEntry != null) {
-                mCache.put(request.getCacheKey(), response.cacheEntry);
-                request.addMarker("network-cache-written");
-            }
-
-            // Post the response back.
-            request.markDelivered();
-            mDelivery.postResponse(request, response);
-            request.notifyListenerResponseReceived(response);
-        } catch (VolleyError volleyError) {
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            parseAndDeliverNetworkError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
+            ((AsyncNetwork) mProcessor.getNetwork()).performRequest(request,
+                    new AsyncNetwork.OnRequestComplete() {
+                        @Override
+                        public void onSuccess(NetworkResponse networkResponse) {
+                            try {
+                                mProcessor.onNetworkResponse(request, networkResponse);
+                            } catch (Exception e) {
+                                mProcessor.onUnhandledException(request, e, startTimeMs);
+                            } finally {
+                                mPool.release(request);
+                            }
+                        }
+
+                        @Override
+                        public void onError(VolleyError volleyError) {
+                            try {
+                                mProcessor.onNetworkError(request, volleyError, startTimeMs);
+                            } finally {
+                                mPool.release(request);
+                            }
+                        }
+                    });
         } catch (Exception e) {
-            VolleyLog.e(e, "Unhandled exception %s", e.toString());
-            VolleyError volleyError = new VolleyError(e);
-            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            mDelivery.postError(request, volleyError);
-            request.notifyListenerResponseNotUsable();
+            // The network failed to start the request, so neither callback will be invoked.
+            mProcessor.onUnhandledException(request, e, startTimeMs);
+            mPool.release(request);
         }
     }
-
-    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
-        error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
-    }
 }
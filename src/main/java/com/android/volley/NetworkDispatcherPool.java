@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages the {@link NetworkDispatcher} threads of a {@link RequestQueue}.
+ *
+ * <p>By default the pool is fixed: {@link #start()} creates the core number of dispatchers and
+ * they live until {@link #stop()}. In elastic mode, additional dispatchers are spawned up to a
+ * maximum whenever the network queue is backed up (by depth or by the time its head request
+ * has been waiting) and no dispatcher is idle; dispatchers above the core size retire again
+ * once they have been idle for the keep-alive time.
+ *
+ * <p>In asynchronous mode, dispatchers hand requests to an {@link AsyncNetwork} and go back to
+ * the queue without waiting for the response, so a few threads can keep many requests in flight.
+ * The number of requests in flight is then bounded by a separate limit, since it is no longer
+ * bounded by the number of threads.
+ *
+ * <p>In executor mode, dispatchers take requests from the queue in priority order and run each
+ * one as a task on an {@link Executor}, which on a JVM may start a virtual thread per request.
+ * The number of tasks running at once is bounded by the same limit as in asynchronous mode.
+ *
+ * <p>Some of the core dispatchers can be reserved for requests of a minimum priority, so that
+ * urgent requests need not wait for a dispatcher busy with bulk traffic. The reserved
+ * dispatchers and the shared ones, which take any request, each run at their own thread
+ * priority.
+ */
+class NetworkDispatcherPool implements DispatchQueue.Listener {
+
+    /** The queue of requests going out to the network. */
+    private final DispatchQueue mQueue;
+
+    /** The network interface handed to each dispatcher. */
+    private final Network mNetwork;
+
+    /** The cache handed to each dispatcher. */
+    private final Cache mCache;
+
+    /** The response delivery handed to each dispatcher. */
+    private final ResponseDelivery mDelivery;
+
+    /** Number of dispatchers kept alive regardless of load. */
+    private final int mCoreSize;
+
+    /** Maximum number of dispatchers in elastic mode; equal to the core size otherwise. */
+    private int mMaxSize;
+
+    // The mode fields below are written under the lock but read without it by dispatchers and
+    // by threads adding requests, so they are volatile. Each setter writes the field that
+    // switches the mode on last, so a reader which sees the mode also sees its settings.
+
+    /** Idle time after which a dispatcher above the core size retires; -1 if never. */
+    private volatile long mKeepAliveMs = -1;
+
+    /** Queue depth at or above which another dispatcher is spawned. */
+    private volatile int mQueueDepthThreshold;
+
+    /** Head-of-queue wait time at or above which another dispatcher is spawned. */
+    private volatile long mQueueWaitThresholdMs;
+
+    /** Permits for requests in flight in asynchronous mode; null in blocking mode. */
+    private volatile Semaphore mInFlightPermits;
+
+    /** Executor running each request in executor mode; null otherwise. */
+    private volatile Executor mExecutor;
+
+    /** Called when a request is queued while no dispatcher is free to take it; or null. */
+    private volatile Runnable mSaturationListener;
+
+    /** Number of core dispatchers reserved for requests of {@link #mReservedMinPriority}. */
+    private int mReservedSize;
+
+    /** Lowest priority of request the reserved dispatchers take. */
+    private Request.Priority mReservedMinPriority;
+
+    /** Thread priority of the reserved dispatchers. */
+    private int mReservedThreadPriority;
+
+    /** Thread priority of the shared dispatchers. */
+    private int mThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+
+    /** The running dispatchers. */
+    // @GuardedBy("this")
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<>();
+
+    /** Whether the pool has been started and not stopped since. */
+    // @GuardedBy("this")
+    private boolean mRunning = false;
+
+    /** Number of dispatchers currently blocked waiting for a request. */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /** Largest number of dispatchers that have been running at once. */
+    // @GuardedBy("this")
+    private int mPeakSize;
+
+    /** Number of dispatchers spawned above the core size because of load. */
+    // @GuardedBy("this")
+    private int mSpawnCount;
+
+    /** Number of dispatchers retired after idling past the keep-alive time. */
+    // @GuardedBy("this")
+    private int mRetireCount;
+
+    NetworkDispatcherPool(DispatchQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery, int coreSize) {
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mCoreSize = coreSize;
+        mMaxSize = coreSize;
+        queue.setListener(this);
+    }
+
+    /**
+     * Switches the pool to elastic mode. Must be called before {@link #start()}.
+     *
+     * @param maxSize Maximum number of dispatchers; must be at least the core size
+     * @param keepAliveMs Idle time after which a dispatcher above the core size retires
+     * @param queueDepthThreshold Queue depth at which another dispatcher is spawned
+     * @param queueWaitThresholdMs Head-of-queue wait time at which another dispatcher is spawned
+     */
+    synchronized void setElastic(int maxSize, long keepAliveMs, int queueDepthThreshold,
+            long queueWaitThresholdMs) {
+        if (maxSize < mCoreSize) {
+            throw new IllegalArgumentException("maxSize must be at least the core pool size");
+        }
+        if (keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs must be positive");
+        }
+        mMaxSize = maxSize;
+        mQueueDepthThreshold = queueDepthThreshold;
+        mQueueWaitThresholdMs = queueWaitThresholdMs;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Switches the pool to asynchronous mode. Must be called before {@link #start()}.
+     *
+     * @param maxInFlight Maximum number of requests in flight at once across all dispatchers
+     */
+    synchronized void setAsync(int maxInFlight) {
+        if (!(mNetwork instanceof AsyncNetwork)) {
+            throw new IllegalStateException("Network does not implement AsyncNetwork");
+        }
+        if (mExecutor != null) {
+            throw new IllegalStateException("Pool is already in executor mode");
+        }
+        if (mReservedSize > 0) {
+            throw new IllegalStateException("Pool has reserved dispatchers");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        mInFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Switches the pool to executor mode. Must be called before {@link #start()}.
+     *
+     * @param executor Executor to run each request on
+     * @param maxInFlight Maximum number of requests running on the executor at once
+     */
+    synchronized void setExecutor(Executor executor, int maxInFlight) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        if (mInFlightPermits != null && mExecutor == null) {
+            throw new IllegalStateException("Pool is already in asynchronous mode");
+        }
+        if (mReservedSize > 0) {
+            throw new IllegalStateException("Pool has reserved dispatchers");
+        }
+        mExecutor = executor;
+        mInFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Reserves some of the core dispatchers for requests of a minimum priority. Must be called
+     * before {@link #start()}, and only in blocking mode, since in the other modes requests in
+     * flight do not hold a dispatcher.
+     *
+     * @param count Number of reserved dispatchers; at least one core dispatcher must be left
+     * @param minPriority Lowest priority of request the reserved dispatchers take
+     * @param threadPriority Thread priority of the reserved dispatchers
+     */
+    synchronized void setReserved(int count, Request.Priority minPriority, int threadPriority) {
+        if (count < 0 || count >= mCoreSize) {
+            throw new IllegalArgumentException("count must leave at least one shared dispatcher");
+        }
+        if (minPriority == null) {
+            throw new IllegalArgumentException("minPriority must not be null");
+        }
+        if (mInFlightPermits != null) {
+            throw new IllegalStateException("Reserved dispatchers require blocking mode");
+        }
+        mReservedSize = count;
+        mReservedMinPriority = minPriority;
+        mReservedThreadPriority = threadPriority;
+    }
+
+    /**
+     * Sets a listener called on the thread adding a request, other than a prefetch, to the
+     * queue while every dispatcher is busy or the limit of requests in flight is reached.
+     */
+    void setSaturationListener(Runnable listener) {
+        mSaturationListener = listener;
+    }
+
+    /** Sets the thread priority of the shared dispatchers. Must be called before start. */
+    synchronized void setThreadPriority(int threadPriority) {
+        mThreadPriority = threadPriority;
+    }
+
+    /** Returns whether dispatchers should hand requests off to an {@link AsyncNetwork}. */
+    boolean isAsync() {
+        // Read the permits first: setExecutor() sets the executor before them.
+        return mInFlightPermits != null && mExecutor == null;
+    }
+
+    /** Returns the executor dispatchers should run requests on, or null to run them inline. */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /** Starts the core dispatchers. */
+    synchronized void start() {
+        mRunning = true;
+        for (int i = 0; i < mReservedSize; i++) {
+            spawn(mReservedMinPriority, mReservedThreadPriority);
+        }
+        for (int i = mReservedSize; i < mCoreSize; i++) {
+            spawn(null, mThreadPriority);
+        }
+    }
+
+    /** Stops all running dispatchers. */
+    synchronized void stop() {
+        mRunning = false;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+    }
+
+    // @GuardedBy("this")
+    private void spawn(Request.Priority minPriority, int threadPriority) {
+        NetworkDispatcher dispatcher = new NetworkDispatcher(
+                mQueue, mNetwork, mCache, mDelivery, this, minPriority, threadPriority);
+        mDispatchers.add(dispatcher);
+        mPeakSize = Math.max(mPeakSize, mDispatchers.size());
+        dispatcher.start();
+    }
+
+    @Override
+    public void onRequestQueued(DispatchQueue queue) {
+        maybeGrow();
+        Runnable saturationListener = mSaturationListener;
+        if (saturationListener != null && isSaturated() && queue.hasQueuedNonPrefetch()) {
+            saturationListener.run();
+        }
+    }
+
+    /** Returns whether no dispatcher is free to take another request and none can be added. */
+    private boolean isSaturated() {
+        Semaphore inFlightPermits = mInFlightPermits;
+        if (inFlightPermits != null) {
+            // Dispatchers waiting for a permit count as idle, so go by the permits instead.
+            return inFlightPermits.availablePermits() == 0;
+        }
+        if (mIdleCount.get() > 0) {
+            return false;
+        }
+        synchronized (this) {
+            return mRunning && mDispatchers.size() >= mMaxSize;
+        }
+    }
+
+    /**
+     * Spawns another dispatcher if the pool is elastic, below its maximum size, has no idle
+     * dispatcher and the queue has crossed the depth or wait threshold.
+     */
+    void maybeGrow() {
+        if (mKeepAliveMs < 0 || mIdleCount.get() > 0) {
+            return;
+        }
+        if (mQueue.getDispatchableCount() < mQueueDepthThreshold
+                && mQueue.getHeadWaitTimeMs() < mQueueWaitThresholdMs) {
+            return;
+        }
+        synchronized (this) {
+            if (!mRunning || mDispatchers.size() >= mMaxSize) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Growing network dispatcher pool to %d (queue depth %d)",
+                        mDispatchers.size() + 1, mQueue.size());
+            }
+            mSpawnCount++;
+            spawn(null, mThreadPriority);
+        }
+    }
+
+    /**
+     * Takes the next request for the given dispatcher, blocking until one is available.
+     *
+     * @return The next request, or null if the dispatcher idled past the keep-alive time and
+     *     has been retired from the pool.
+     */
+    Request<?> take(NetworkDispatcher dispatcher) throws InterruptedException {
+        Request.Priority minPriority = dispatcher.getMinPriority();
+        if (minPriority != null) {
+            // Reserved dispatchers are never idle for requests of lower priority, nor retired.
+            return mQueue.take(minPriority);
+        }
+        Request<?> request = null;
+        Semaphore inFlightPermits = mInFlightPermits;
+        mIdleCount.incrementAndGet();
+        if (inFlightPermits != null) {
+            try {
+                inFlightPermits.acquire();
+            } catch (InterruptedException e) {
+                mIdleCount.decrementAndGet();
+                throw e;
+            }
+        }
+        try {
+            if (mKeepAliveMs < 0) {
+                request = mQueue.take();
+            } else {
+                while ((request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS)) == null) {
+                    if (retire(dispatcher)) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            mIdleCount.decrementAndGet();
+            if (request == null && inFlightPermits != null) {
+                inFlightPermits.release();
+            }
+        }
+        if (!mQueue.isEmpty()) {
+            maybeGrow();
+        }
+        return request;
+    }
+
+    /** Marks a request returned by {@link #take} as no longer in flight. */
+    void release(Request<?> request) {
+        mQueue.release(request);
+        Semaphore inFlightPermits = mInFlightPermits;
+        if (inFlightPermits != null) {
+            inFlightPermits.release();
+        }
+    }
+
+    private synchronized boolean retire(NetworkDispatcher dispatcher) {
+        if (mDispatchers.size() <= mCoreSize || !mDispatchers.remove(dispatcher)) {
+            return false;
+        }
+        mRetireCount++;
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Retiring idle network dispatcher; pool size now %d",
+                    mDispatchers.size());
+        }
+        return true;
+    }
+
+    /** Returns the number of running dispatchers. */
+    synchronized int getSize() {
+        return mDispatchers.size();
+    }
+
+    /** Returns the largest number of dispatchers that have been running at once. */
+    synchronized int getPeakSize() {
+        return mPeakSize;
+    }
+
+    /** Returns the number of dispatchers spawned above the core size because of load. */
+    synchronized int getSpawnCount() {
+        return mSpawnCount;
+    }
+
+    /** Returns the number of dispatchers retired after idling past the keep-alive time. */
+    synchronized int getRetireCount() {
+        return mRetireCount;
+    }
+}
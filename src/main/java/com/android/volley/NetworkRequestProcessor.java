@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.annotation.TargetApi;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * Performs requests taken from a network queue: sends them through a {@link Network}, writes
+ * the responses to a {@link Cache} and posts them to a {@link ResponseDelivery}. Used by
+ * {@link NetworkDispatcher} threads, by the workers of a {@link SharedDispatcherPool}, and by
+ * {@link RequestQueue#execute} on the caller's thread.
+ */
+/* package */ class NetworkRequestProcessor {
+
+    /** The network interface for processing requests. */
+    private final Network mNetwork;
+    /** The cache to write to. */
+    private final Cache mCache;
+    /** For posting responses and errors. */
+    private final ResponseDelivery mDelivery;
+
+    NetworkRequestProcessor(Network network, Cache cache, ResponseDelivery delivery) {
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+    }
+
+    /** Returns the network interface requests are performed with. */
+    Network getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Performs the request and posts its response or error. A retry the network asks for with
+     * a {@link RetryLaterError} is scheduled on the request's queue.
+     */
+    void processRequest(Request<?> request) {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            if (!beginRequest(request)) {
+                return;
+            }
+
+            // Perform the network request.
+            NetworkResponse networkResponse;
+            if (request.isPrefetch()) {
+                networkResponse = performPrefetch(request);
+                if (networkResponse == null) {
+                    return;
+                }
+            } else {
+                networkResponse = mNetwork.performRequest(request);
+            }
+            onNetworkResponse(request, networkResponse);
+        } catch (VolleyError volleyError) {
+            onNetworkError(request, volleyError, startTimeMs);
+        } catch (Exception e) {
+            onUnhandledException(request, e, startTimeMs);
+        }
+    }
+
+    /**
+     * Performs a prefetch, which the request queue may preempt while it is in flight by
+     * interrupting this thread (see {@link RequestQueue#onPrefetchSent}).
+     *
+     * @return The response, or null if the prefetch failed after being preempted and has been
+     *     put back on the network queue
+     */
+    private NetworkResponse performPrefetch(Request<?> request) throws VolleyError {
+        RequestQueue requestQueue = request.getRequestQueue();
+        if (requestQueue == null) {
+            return mNetwork.performRequest(request);
+        }
+        requestQueue.onPrefetchSent(request);
+        NetworkResponse networkResponse;
+        try {
+            networkResponse = mNetwork.performRequest(request);
+        } catch (VolleyError | RuntimeException e) {
+            if (requestQueue.onPrefetchDone(request)) {
+                requestQueue.requeuePreemptedPrefetch(request);
+                return null;
+            }
+            throw e;
+        }
+        // A prefetch which completed despite being preempted is cached as usual.
+        requestQueue.onPrefetchDone(request);
+        return networkResponse;
+    }
+
+    /**
+     * Performs the request on the calling thread, as {@link #processRequest} does, except that a
+     * retry the network asks for with a {@link RetryLaterError} is made on this thread once its
+     * delay has passed, since the caller is waiting for the outcome. The traffic stats tag is
+     * cleared again before returning.
+     *
+     * @throws InterruptedException if interrupted while waiting to retry, in which case the
+     *     request has not been finished
+     */
+    void processRequestOnCallerThread(Request<?> request) throws InterruptedException {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            if (!beginRequest(request)) {
+                return;
+            }
+            NetworkResponse networkResponse;
+            while (true) {
+                try {
+                    networkResponse = mNetwork.performRequest(request);
+                    break;
+                } catch (RetryLaterError retryLaterError) {
+                    waitToRetry(request, retryLaterError);
+                    if (request.isCanceled()) {
+                        request.finish("network-discard-cancelled");
+                        request.notifyListenerResponseNotUsable();
+                        return;
+                    }
+                }
+            }
+            onNetworkResponse(request, networkResponse);
+        } catch (VolleyError volleyError) {
+            onNetworkError(request, volleyError, startTimeMs);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            onUnhandledException(request, e, startTimeMs);
+        } finally {
+            clearTrafficStatsTag();
+        }
+    }
+
+    /**
+     * Sleeps until a retry asked for by the network is due. A Retry-After delay from the server
+     * also holds back the queue's other requests to the host, as a scheduled retry would.
+     */
+    private void waitToRetry(Request<?> request, RetryLaterError retryLaterError)
+            throws InterruptedException {
+        request.addMarker("network-retry-on-caller-thread");
+        RequestQueue requestQueue = request.getRequestQueue();
+        if (requestQueue != null) {
+            requestQueue.holdBackHost(request, retryLaterError.getRetryAfterMs());
+        }
+        Thread.sleep(retryLaterError.getDelayMs());
+    }
+
+    /**
+     * Records that the request has been taken from the queue.
+     *
+     * @return false if the request was cancelled already or is past its deadline, and has
+     *     been finished, or if it is a prefetch which has been put back on the queue
+     */
+    boolean beginRequest(Request<?> request) {
+        request.addMarker("network-queue-take");
+
+        // If the request was cancelled already, do not perform the
+        // network request.
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+            request.notifyListenerResponseNotUsable();
+            return false;
+        }
+
+        // If the response is no longer wanted, do not perform the
+        // network request either.
+        if (request.isPastDeadline()) {
+            request.addMarker("network-discard-deadline");
+            postError(request, new DeadlineExceededError());
+            request.notifyListenerResponseNotUsable();
+            RequestQueue requestQueue = request.getRequestQueue();
+            if (requestQueue != null) {
+                requestQueue.onDeadlineExceeded(true);
+            }
+            return false;
+        }
+
+        // Make way for requests which arrived while this prefetch was being taken.
+        if (request.isPrefetch()) {
+            RequestQueue requestQueue = request.getRequestQueue();
+            if (requestQueue != null && requestQueue.maybePreemptPrefetch(request)) {
+                return false;
+            }
+        }
+
+        addTrafficStatsTag(request);
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void addTrafficStatsTag(Request<?> request) {
+        // Tag the request (if API >= 14)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void clearTrafficStatsTag() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            TrafficStats.clearThreadStatsTag();
+        }
+    }
+
+    void onNetworkResponse(Request<?> request, NetworkResponse networkResponse) {
+        request.addMarker("network-http-complete");
+
+        // If the server returned 304 AND we delivered a response already,
+        // we're done -- don't deliver a second identical response.
+        if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+            request.finish("not-modified");
+            request.notifyListenerResponseNotUsable();
+            return;
+        }
+
+        // Parse the response here on the worker thread.
+        Response<?> response = request.parseNetworkResponse(networkResponse);
+        request.addMarker("network-parse-complete");
+
+        // Write to cache if applicable.
+        // TODO: Only update cache metadata instead of entire record for 304s.
+        if (request.shouldCache() && response.cacheEntry != null) {
+            mCache.put(request.getCacheKey(), response.cacheEntry);
+            request.addMarker("network-cache-written");
+        }
+
+        // A prefetch only warms the cache.
+        if (request.isPrefetch()) {
+            request.finish("prefetch-complete");
+            request.notifyListenerResponseReceived(networkResponse, response);
+            return;
+        }
+
+        // Post the response back.
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        request.notifyListenerResponseReceived(networkResponse, response);
+    }
+
+    void onNetworkError(Request<?> request, VolleyError volleyError, long startTimeMs) {
+        if (volleyError instanceof RetryLaterError) {
+            RetryLaterError retryLaterError = (RetryLaterError) volleyError;
+            RequestQueue requestQueue = request.getRequestQueue();
+            if (requestQueue != null) {
+                request.addMarker("network-retry-scheduled");
+                requestQueue.retryLater(request, retryLaterError.getDelayMs(),
+                        retryLaterError.getRetryAfterMs());
+                return;
+            }
+            volleyError = retryLaterError.getError();
+        }
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        parseAndDeliverNetworkError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
+    void onUnhandledException(Request<?> request, Exception e, long startTimeMs) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        postError(request, volleyError);
+        request.notifyListenerResponseNotUsable();
+    }
+
+    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
+        error = request.parseNetworkError(error);
+        postError(request, error);
+    }
+
+    /** Posts the error back to the caller, or finishes the request if it is a prefetch. */
+    private void postError(Request<?> request, VolleyError error) {
+        if (request.isPrefetch()) {
+            request.finish("prefetch-failed");
+            return;
+        }
+        mDelivery.postError(request, error);
+    }
+}
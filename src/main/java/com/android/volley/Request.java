@@ -20,6 +20,7 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.android.volley.VolleyLog.MarkerLog;
@@ -27,6 +28,7 @@ import com.android.volley.VolleyLog.MarkerLog;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -68,6 +70,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         void onNoUsableResponseReceived(Request<?> request);
     }
 
+    /**
+     * A {@link NetworkRequestCompleteListener} which also needs the network response the
+     * parsed response was created from.
+     */
+    /* package */ interface NetworkResponseCompleteListener
+            extends NetworkRequestCompleteListener {
+
+        /** Callback when a network response has been received and parsed. */
+        void onResponseReceived(
+                Request<?> request, NetworkResponse networkResponse, Response<?> response);
+    }
+
     /** An event log tracing the lifetime of this request; for debugging. */
     private final MarkerLog mEventLog = MarkerLog.ENABLED ? new MarkerLog() : null;
 
@@ -80,6 +94,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** URL of this request. */
     private final String mUrl;
 
+    /** Host component of {@link #getUrl()}, parsed on first use; see {@link #getHost()}. */
+    private String mHost;
+
     /** Default tag for {@link TrafficStats}. */
     private final int mDefaultTrafficStatsTag;
 
@@ -93,9 +110,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Sequence number of this request, used to enforce FIFO ordering. */
     private Integer mSequence;
 
+    /** Time at which this request was last placed on a dispatch queue. */
+    private volatile long mQueuedTimeMs;
+
+    /** Time at which this request was first placed on a dispatch queue; -1 if never. */
+    private volatile long mFirstQueuedTimeMs = -1;
+
+    /**
+     * Time, in {@link SystemClock#elapsedRealtime()} milliseconds, after which the
+     * response to this request is no longer wanted; 0 if there is no deadline.
+     */
+    private volatile long mDeadlineMs = 0;
+
     /** The request queue this request is associated with. */
     private RequestQueue mRequestQueue;
 
+    /** The group this request was added to the queue with, if it has a group listener. */
+    private RequestQueue.RequestGroup mRequestGroup;
+
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
@@ -110,6 +142,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether the request should be retried in the event of an HTTP 5xx (server) error. */
     private boolean mShouldRetryServerErrors = false;
 
+    /** Priority set through the request queue, overriding {@link #getPriority()}; or null. */
+    private volatile Priority mPriorityOverride;
+
+    /** Priority inherited from requests waiting for this one's response; null if none. */
+    private volatile Priority mInheritedPriority;
+
+    /** Whether this request only warms the cache, and is dispatched when the queue is idle. */
+    private volatile boolean mPrefetch = false;
+
     /** The retry policy for this request. */
     private RetryPolicy mRetryPolicy;
 
@@ -164,12 +205,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Set a tag on this request. Can be used to cancel all requests with this
-     * tag by {@link RequestQueue#cancelAll(Object)}.
+     * tag by {@link RequestQueue#cancelAll(Object)}. The tag may also be set or changed after
+     * the request has been added to a queue.
      *
      * @return This Request object to allow for chaining.
      */
     public Request<?> setTag(Object tag) {
         mTag = tag;
+        RequestQueue requestQueue = mRequestQueue;
+        if (requestQueue != null) {
+            requestQueue.onTagChanged(this);
+        }
         return this;
     }
 
@@ -291,6 +337,86 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Records the time, in {@link SystemClock#elapsedRealtime()} milliseconds, at
+     * which this request was placed on a dispatch queue.
+     */
+    /* package */ void setQueuedTimeMs(long queuedTimeMs) {
+        mQueuedTimeMs = queuedTimeMs;
+        if (mFirstQueuedTimeMs < 0) {
+            mFirstQueuedTimeMs = queuedTimeMs;
+        }
+    }
+
+    /**
+     * Returns the time at which this request was last placed on a dispatch queue, or 0 if it has
+     * never been queued.
+     */
+    /* package */ long getQueuedTimeMs() {
+        return mQueuedTimeMs;
+    }
+
+    /**
+     * Returns the time at which this request was first placed on a dispatch queue, which for a
+     * request moved from a cache queue to the network queue is the time it entered the cache
+     * queue; or -1 if it has never been queued.
+     */
+    /* package */ long getFirstQueuedTimeMs() {
+        return mFirstQueuedTimeMs;
+    }
+
+    /**
+     * Sets the time after which the response to this request is no longer wanted. A request
+     * still waiting to be dispatched when its deadline passes is not performed; its error
+     * listener receives a {@link DeadlineExceededError} instead.
+     *
+     * @param deadlineMs The deadline in {@link SystemClock#elapsedRealtime()}
+     *     milliseconds, or 0 for no deadline
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Sets the deadline of this request to the given time from now. See {@link #setDeadline}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadlineFromNow(long timeMs) {
+        return setDeadline(SystemClock.elapsedRealtime() + timeMs);
+    }
+
+    /**
+     * Returns the deadline of this request in {@link SystemClock#elapsedRealtime()}
+     * milliseconds, or 0 if it has none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /** Returns whether this request has a deadline which has passed. */
+    public boolean isPastDeadline() {
+        long deadlineMs = mDeadlineMs;
+        return deadlineMs > 0 && SystemClock.elapsedRealtime() > deadlineMs;
+    }
+
+    /** Associates this request with a group added to the queue together. */
+    /* package */ void setRequestGroup(RequestQueue.RequestGroup requestGroup) {
+        mRequestGroup = requestGroup;
+    }
+
+    /** Returns the group this request was added to the queue with, or null. */
+    /* package */ RequestQueue.RequestGroup getRequestGroup() {
+        return mRequestGroup;
+    }
+
+    /** Returns the request queue this request has been added to, or null. */
+    /* package */ RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -298,6 +424,28 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mUrl;
     }
 
+    /**
+     * Returns the lower-cased host component of {@link #getUrl()}, or null if there is none.
+     * Used by {@link RequestQueue} to apply per-host limits, and by networks which keep per-host
+     * state so that they agree with the queue on what a host is.
+     */
+    public String getHost() {
+        String host = mHost;
+        if (host == null) {
+            String url = getUrl();
+            if (TextUtils.isEmpty(url)) {
+                return null;
+            }
+            Uri uri = Uri.parse(url);
+            if (uri == null || uri.getHost() == null) {
+                return null;
+            }
+            host = uri.getHost().toLowerCase(Locale.US);
+            mHost = host;
+        }
+        return host;
+    }
+
     /**
      * Returns the cache key for this request.  By default, this is the URL.
      */
@@ -531,6 +679,25 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldRetryServerErrors;
     }
 
+    /**
+     * Marks this request as a prefetch of content likely to be wanted soon. A prefetch is taken
+     * off a queue only once no other request is waiting there, and goes out to the network only
+     * while few requests are in flight (see {@link RequestQueue#setPrefetchInFlightLimit}). Its
+     * response is written to the cache but not delivered, and neither are its errors, so its
+     * listeners are never called. It should therefore be a request whose responses are cached.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setPrefetch(boolean prefetch) {
+        mPrefetch = prefetch;
+        return this;
+    }
+
+    /** Returns true if this request is a prefetch. See {@link #setPrefetch}. */
+    public final boolean isPrefetch() {
+        return mPrefetch;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -549,6 +716,43 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return Priority.NORMAL;
     }
 
+    /**
+     * Returns the priority this request is dispatched at: its own {@link #getPriority()}, unless
+     * changed with {@link RequestQueue#reprioritize}, or a higher priority inherited from
+     * requests waiting for its response.
+     */
+    /* package */ Priority getEffectivePriority() {
+        Priority priority = mPriorityOverride;
+        if (priority == null) {
+            priority = getPriority();
+        }
+        Priority inherited = mInheritedPriority;
+        if (inherited != null && (priority == null || inherited.ordinal() > priority.ordinal())) {
+            return inherited;
+        }
+        return priority;
+    }
+
+    /**
+     * Overrides {@link #getPriority()} as the priority this request is dispatched at. A queue
+     * holding this request must be re-ordered; see {@link DispatchQueue#reprioritize}.
+     */
+    /* package */ void setPriorityOverride(Priority priority) {
+        mPriorityOverride = priority;
+    }
+
+    /**
+     * Raises the priority this request is dispatched at to the priority of a request waiting
+     * for its response, if that is higher. A queue holding this request must be re-ordered; see
+     * {@link DispatchQueue#inheritPriority}.
+     */
+    /* package */ void inheritPriority(Priority priority) {
+        Priority current = getEffectivePriority();
+        if (priority != null && (current == null || priority.ordinal() > current.ordinal())) {
+            mInheritedPriority = priority;
+        }
+    }
+
     /**
      * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
      * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
@@ -657,6 +861,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Notify NetworkRequestCompleteListener that a valid response has been received from the
+     * given network response, which can be used for other, waiting requests.
+     */
+    /* package */ void notifyListenerResponseReceived(
+            NetworkResponse networkResponse, Response<?> response) {
+        NetworkRequestCompleteListener listener;
+        synchronized (mLock) {
+            listener = mRequestCompleteListener;
+        }
+        if (listener instanceof NetworkResponseCompleteListener) {
+            ((NetworkResponseCompleteListener) listener)
+                    .onResponseReceived(this, networkResponse, response);
+        } else if (listener != null) {
+            listener.onResponseReceived(this, response);
+        }
+    }
+
     /**
      * Notify NetworkRequestCompleteListener that the network request did not result in
      * a response which can be used for other, waiting requests.
@@ -673,12 +895,12 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Our comparator sorts from high to low priority, and secondarily by
-     * sequence number to provide FIFO ordering.
+     * sequence number to provide FIFO ordering. Inherited priorities count.
      */
     @Override
     public int compareTo(Request<T> other) {
-        Priority left = this.getPriority();
-        Priority right = other.getPriority();
+        Priority left = this.getEffectivePriority();
+        Priority right = other.getEffectivePriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
         // Equal priorities are sorted by sequence number to provide FIFO ordering.
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * De-duplicates requests which skip the cache, so that identical GET and HEAD requests in flight
+ * at the same time are performed once.
+ *
+ * <p>The first request for a key goes to the network; later ones wait for it. When it receives
+ * a usable response, each waiting request of the same class is delivered the same parsed
+ * response, and waiting requests of other classes parse the shared network response themselves.
+ * Otherwise the next waiting request is sent to the network in its place, as
+ * {@link CacheDispatcher} does for cached requests. The request in flight inherits the highest
+ * priority of the requests waiting for it.
+ */
+class RequestCoalescer implements Request.NetworkResponseCompleteListener {
+
+    /** Requests waiting for an identical request in flight, by key. */
+    // @GuardedBy("this")
+    private final Map<String, List<Request<?>>> mWaitingRequests = new HashMap<>();
+
+    /** The request in flight for each key with an entry in {@link #mWaitingRequests}. */
+    // @GuardedBy("this")
+    private final Map<String, Request<?>> mInFlightRequests = new HashMap<>();
+
+    /** The queue of requests going out to the network. */
+    private final BlockingQueue<Request<?>> mNetworkQueue;
+
+    /** For posting responses. */
+    private final ResponseDelivery mDelivery;
+
+    /** Number of requests which were served without a network request of their own. */
+    // @GuardedBy("this")
+    private long mCoalescedCount;
+
+    RequestCoalescer(BlockingQueue<Request<?>> networkQueue, ResponseDelivery delivery) {
+        mNetworkQueue = networkQueue;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Holds the request back if an identical request is already in flight.
+     *
+     * @return whether the request is waiting; if false, it should be sent to the network
+     */
+    synchronized boolean maybeCoalesce(Request<?> request) {
+        int method = request.getMethod();
+        if (method != Request.Method.GET && method != Request.Method.HEAD) {
+            return false;
+        }
+        String key = keyFor(request);
+        List<Request<?>> waitingRequests = mWaitingRequests.get(key);
+        if (waitingRequests == null) {
+            // Insert an empty list, indicating there is now a request in flight.
+            mWaitingRequests.put(key, new ArrayList<Request<?>>());
+            mInFlightRequests.put(key, request);
+            request.setNetworkRequestCompleteListener(this);
+            return false;
+        }
+        request.addMarker("coalesced-waiting-for-response");
+        waitingRequests.add(request);
+        DispatchQueue.inheritPriority(mNetworkQueue, mInFlightRequests.get(key),
+                request.getEffectivePriority());
+        return true;
+    }
+
+    @Override
+    public void onResponseReceived(Request<?> request, Response<?> response) {
+        // Without the network response, only requests of the same class can be served.
+        onResponseReceived(request, null, response);
+    }
+
+    @Override
+    public void onResponseReceived(
+            Request<?> request, NetworkResponse networkResponse, Response<?> response) {
+        List<Request<?>> waitingRequests;
+        synchronized (this) {
+            String key = keyFor(request);
+            waitingRequests = mWaitingRequests.remove(key);
+            mInFlightRequests.remove(key);
+        }
+        if (waitingRequests == null) {
+            return;
+        }
+        List<Request<?>> unserved = new ArrayList<>();
+        for (Request<?> waiting : waitingRequests) {
+            Response<?> waitingResponse;
+            if (waiting.getClass() == request.getClass()) {
+                waitingResponse = response;
+            } else if (networkResponse != null) {
+                try {
+                    waitingResponse = waiting.parseNetworkResponse(networkResponse);
+                } catch (Exception e) {
+                    VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                    mDelivery.postError(waiting, new VolleyError(e));
+                    continue;
+                }
+                waiting.addMarker("network-parse-complete");
+            } else {
+                unserved.add(waiting);
+                continue;
+            }
+            waiting.addMarker("coalesced-response");
+            waiting.markDelivered();
+            mDelivery.postResponse(waiting, waitingResponse);
+        }
+        synchronized (this) {
+            mCoalescedCount += waitingRequests.size() - unserved.size();
+        }
+        for (Request<?> waiting : unserved) {
+            sendToNetwork(waiting);
+        }
+    }
+
+    @Override
+    public void onNoUsableResponseReceived(Request<?> request) {
+        Request<?> nextInLine;
+        synchronized (this) {
+            String key = keyFor(request);
+            List<Request<?>> waitingRequests = mWaitingRequests.get(key);
+            if (waitingRequests == null) {
+                return;
+            }
+            if (waitingRequests.isEmpty()) {
+                mWaitingRequests.remove(key);
+                mInFlightRequests.remove(key);
+                return;
+            }
+            nextInLine = waitingRequests.remove(0);
+            mInFlightRequests.put(key, nextInLine);
+            for (Request<?> waiting : waitingRequests) {
+                nextInLine.inheritPriority(waiting.getEffectivePriority());
+            }
+            nextInLine.setNetworkRequestCompleteListener(this);
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("No usable response for %s; resend waiting request to network",
+                    request.getCacheKey());
+        }
+        try {
+            mNetworkQueue.put(nextInLine);
+        } catch (InterruptedException e) {
+            VolleyLog.e("Couldn't add request to queue. %s", e.toString());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Sends a request which could not be served by the response it waited for on its own. */
+    private void sendToNetwork(Request<?> request) {
+        if (!maybeCoalesce(request)) {
+            try {
+                mNetworkQueue.put(request);
+            } catch (InterruptedException e) {
+                VolleyLog.e("Couldn't add request to queue. %s", e.toString());
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String keyFor(Request<?> request) {
+        return request.getMethod() + ":" + request.getCacheKey();
+    }
+
+    /** Returns the number of requests served without a network request of their own. */
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
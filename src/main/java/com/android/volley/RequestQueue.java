@@ -18,13 +18,23 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -41,23 +51,65 @@ public class RequestQueue {
         void onRequestFinished(Request<T> request);
     }
 
+    /** What {@link #add} does with a request for a queue which is at its capacity. */
+    public enum QueueFullPolicy {
+        /** Refuse the new request. */
+        REJECT_NEWEST,
+        /**
+         * Drop the queued request which would be dispatched last to make room, unless the new
+         * request would be dispatched after it, in which case the new request is refused.
+         */
+        DROP_LOWEST_PRIORITY,
+        /** Block the caller until there is room, refusing the new request after a timeout. */
+        BLOCK
+    }
+
+    /** Callback interface for groups of requests added with {@link #addAll}. */
+    public interface RequestGroupFinishedListener {
+        /** Called once every request of the group has finished processing. */
+        void onRequestGroupFinished(List<Request<?>> requests);
+    }
+
+    /** Callback interface for {@link #drainAndStop}. */
+    public interface DrainListener {
+        /**
+         * Called once the queue has stopped.
+         *
+         * @param drained True if every request finished; false if the requests remaining at the
+         *     timeout were canceled
+         */
+        void onDrained(boolean drained);
+    }
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private final AtomicInteger mSequenceGenerator = new AtomicInteger();
 
+    /** Value in {@link #mCurrentRequests} for requests without a tag. */
+    private static final Object NO_TAG = new Object();
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
-     * any dispatcher.
+     * any dispatcher. Maps each request to the tag it was added with, or {@link #NO_TAG}.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
+    private final ConcurrentHashMap<Request<?>, Object> mCurrentRequests =
+            new ConcurrentHashMap<>();
+
+    /** The current requests with a tag, indexed by tag identity. */
+    private final ConcurrentHashMap<TagKey, TaggedRequests> mRequestsByTag =
+            new ConcurrentHashMap<>();
 
-    /** The cache triage queue. */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-            new PriorityBlockingQueue<>();
+    /**
+     * The cache triage queues, one per cache dispatcher. Requests are striped across them by
+     * cache key.
+     */
+    private volatile DispatchQueue[] mCacheQueues = { new DispatchQueue() };
 
-    /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-            new PriorityBlockingQueue<>();
+    /**
+     * The queue of requests that are actually going out to the network. Tracks requests per
+     * host so that per-host concurrency limits can be applied.
+     */
+    private final DispatchQueue mNetworkQueue = new DispatchQueue(true);
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
@@ -72,10 +124,81 @@ public class RequestQueue {
     private final ResponseDelivery mDelivery;
 
     /** The network dispatchers. */
-    private final NetworkDispatcher[] mDispatchers;
+    private final NetworkDispatcherPool mDispatchers;
+
+    /** Workers shared with other queues, used instead of dispatcher threads; or null. */
+    private SharedDispatcherPool mSharedPool;
+
+    /** Maximum number of shared workers processing requests of this queue at once. */
+    private int mSharedWorkerLimit;
+
+    /** Registration of this queue with {@link #mSharedPool} while started; null otherwise. */
+    private Object mSharedPoolHandle;
+
+    /** Whether the queue is to be started by the first request added or by {@link #warm}. */
+    private volatile boolean mStartPending;
+
+    /** Task to run in the background once a pending start happens; may be null. */
+    // @GuardedBy("this")
+    private Runnable mWarmUpTask;
+
+    /** How long the last {@link #start} took to start the dispatchers; -1 if never started. */
+    private volatile long mDispatcherStartupTimeMs = -1;
+
+    /** How long the warm-up task of the last lazy start took to run; -1 if it has not run. */
+    private volatile long mWarmUpTimeMs = -1;
+
+    /** Initializer of the cache for the dispatchers started last; null if never started. */
+    private volatile CacheDispatcher.CacheInitializer mCacheInitializer;
+
+    /** Captures the responses of requests performed by {@link #execute}. */
+    private final CallerThreadDelivery mCallerThreadDelivery = new CallerThreadDelivery();
+
+    /** Performs the network part of {@link #execute} on the caller's thread. */
+    private final NetworkRequestProcessor mCallerThreadProcessor;
+
+    /** Order of the cache and network queues; null for {@link Request#compareTo}. */
+    private Comparator<Request<?>> mQueueOrder;
+
+    /** Scheduler ordering the network queue instead of {@link #mQueueOrder}; or null. */
+    private RequestScheduler mNetworkScheduler;
+
+    /** Number of requests expired by a cache dispatcher because their deadline had passed. */
+    private final AtomicLong mCacheDeadlineExceededCount = new AtomicLong();
+
+    /** Number of requests expired by a network dispatcher because their deadline had passed. */
+    private final AtomicLong mNetworkDeadlineExceededCount = new AtomicLong();
+
+    /** Capacity of each cache queue; 0 if unbounded. */
+    private int mCacheQueueCapacity;
+
+    /** Policy for requests added to a full queue; null if the queues are unbounded. */
+    private volatile QueueFullPolicy mQueueFullPolicy;
+
+    /** How long {@link QueueFullPolicy#BLOCK} waits for room in a queue. */
+    private volatile long mQueueFullTimeoutMs;
+
+    /** Number of retries scheduled through {@link #retryLater}. */
+    private final AtomicLong mScheduledRetryCount = new AtomicLong();
+
+    /** Number of prefetches put back on the network queue to make way for other requests. */
+    private final AtomicLong mPreemptedPrefetchCount = new AtomicLong();
+
+    /** Prefetches being sent by network dispatchers, which may be preempted on the wire. */
+    // @GuardedBy("mPrefetchesInFlight")
+    private final Map<Request<?>, PrefetchInFlight> mPrefetchesInFlight = new HashMap<>();
 
-    /** The cache dispatcher. */
-    private CacheDispatcher mCacheDispatcher;
+    /** Number of requests refused or dropped because a queue was full. */
+    private final AtomicLong mQueueFullCount = new AtomicLong();
+
+    /** De-duplicates requests which skip the cache; null unless enabled. */
+    private volatile RequestCoalescer mCoalescer;
+
+    /** The cache dispatchers, one per cache queue. */
+    private CacheDispatcher[] mCacheDispatchers = new CacheDispatcher[0];
+
+    /** The drain in progress, or null if the queue is not draining. */
+    private volatile Drain mDrain;
 
     private final List<RequestFinishedListener> mFinishedListeners =
             new ArrayList<>();
@@ -92,8 +215,17 @@ public class RequestQueue {
             ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
+        mDispatchers = new NetworkDispatcherPool(mNetworkQueue, network, cache, delivery,
+                threadPoolSize);
+        mDispatchers.setSaturationListener(new Runnable() {
+            @Override
+            public void run() {
+                preemptPrefetchesInFlight();
+            }
+        });
+        mCallerThreadProcessor =
+                new NetworkRequestProcessor(network, cache, mCallerThreadDelivery);
     }
 
     /**
@@ -119,127 +251,1495 @@ public class RequestQueue {
     }
 
     /**
-     * Starts the dispatchers in this queue.
+     * Lets the pool of network dispatchers grow beyond the size given to the constructor while
+     * the network queue is backed up. Another dispatcher is spawned, up to {@code maxPoolSize},
+     * whenever no dispatcher is idle and either the queue holds at least
+     * {@code queueDepthThreshold} requests or the request at its head has waited at least
+     * {@code queueWaitThresholdMs}. Dispatchers beyond the original size retire again after
+     * being idle for {@code keepAliveMs}.
+     *
+     * <p>Must be called before {@link #start()}.
+     *
+     * @param maxPoolSize Maximum number of network dispatcher threads
+     * @param keepAliveMs Idle time after which a surplus dispatcher thread exits
+     * @param queueDepthThreshold Queue depth at which another dispatcher is spawned
+     * @param queueWaitThresholdMs Queue wait time at which another dispatcher is spawned
      */
-    public void start() {
-        stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+    public void setElasticNetworkDispatch(int maxPoolSize, long keepAliveMs,
+            int queueDepthThreshold, long queueWaitThresholdMs) {
+        mDispatchers.setElastic(
+                maxPoolSize, keepAliveMs, queueDepthThreshold, queueWaitThresholdMs);
+    }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+    /**
+     * Makes network dispatchers hand requests off to the network without waiting for responses,
+     * so that up to {@code maxInFlight} requests can be in flight on a few threads. Responses
+     * are parsed, cached and delivered on the thread that completes the request. Requires the
+     * network to implement {@link AsyncNetwork}, as {@link com.android.volley.toolbox.BasicNetwork}
+     * does; it performs requests asynchronously when its HTTP stack is an
+     * {@link com.android.volley.toolbox.AsyncHttpStack} such as
+     * {@link com.android.volley.toolbox.OkStack}.
+     *
+     * <p>Must be called before {@link #start()}.
+     *
+     * @param maxInFlight Maximum number of requests in flight on the network at once
+     * @throws IllegalStateException if the network does not implement {@link AsyncNetwork}
+     */
+    public void setAsyncNetworkDispatch(int maxInFlight) {
+        mDispatchers.setAsync(maxInFlight);
+    }
+
+    /**
+     * Makes network dispatchers run each request as a task on the given executor instead of on
+     * their own thread, so that concurrency is no longer capped by the number of dispatchers.
+     * Dispatchers still take requests from the network queue in priority order, and each task
+     * sets the request's traffic stats tag on the thread running it. A single dispatcher is
+     * enough in this mode.
+     *
+     * <p>On a JVM with virtual threads, passing {@code Executors.newVirtualThreadPerTaskExecutor()}
+     * runs each request on its own virtual thread.
+     *
+     * <p>Must be called before {@link #start()}. Cannot be combined with
+     * {@link #setAsyncNetworkDispatch}.
+     *
+     * @param executor Executor to run requests on
+     * @param maxInFlight Maximum number of requests running on the executor at once
+     */
+    public void setNetworkExecutor(Executor executor, int maxInFlight) {
+        mDispatchers.setExecutor(executor, maxInFlight);
+    }
+
+    /**
+     * Reserves some of the network dispatchers for requests of at least the given priority,
+     * leaving the rest shared by all requests. A request such as a login or the start of
+     * playback then need not wait for a dispatcher to finish a slow download, as long as no
+     * more such requests are in flight than there are reserved dispatchers. Shared dispatchers
+     * still take urgent requests too, in priority order.
+     *
+     * <p>Must be called before {@link #start()}. Cannot be combined with
+     * {@link #setAsyncNetworkDispatch} or {@link #setNetworkExecutor}, in which requests in
+     * flight do not hold a dispatcher.
+     *
+     * @param count Number of reserved dispatchers, out of the thread pool size given to the
+     *     constructor; at least one must be left shared
+     * @param minPriority Lowest priority of request the reserved dispatchers take, e.g.
+     *     {@link Request.Priority#HIGH}
+     * @param threadPriority Thread priority of the reserved dispatchers, a value from
+     *     {@link android.os.Process} such as {@code THREAD_PRIORITY_DEFAULT}
+     */
+    public void setReservedNetworkDispatchers(int count, Request.Priority minPriority,
+            int threadPriority) {
+        mDispatchers.setReserved(count, minPriority, threadPriority);
+    }
+
+    /**
+     * Sets the thread priority of the shared network dispatchers, which is
+     * {@code THREAD_PRIORITY_BACKGROUND} by default. Must be called before {@link #start()}.
+     *
+     * @param threadPriority A value from {@link android.os.Process}
+     */
+    public void setNetworkThreadPriority(int threadPriority) {
+        mDispatchers.setThreadPriority(threadPriority);
+    }
+
+    /**
+     * Processes the requests of this queue on workers shared with other queues, instead of
+     * starting cache and network dispatcher threads of its own. The queue keeps its own cache,
+     * network and delivery. The workers are started when the first queue using the pool is
+     * started and stop once the last one has been stopped.
+     *
+     * <p>Must be called before {@link #start()}. The other settings of the network dispatchers,
+     * such as {@link #setElasticNetworkDispatch} or {@link #setReservedNetworkDispatchers},
+     * have no effect in this mode. The cache dispatcher count still sets the number of cache
+     * queues, which shared workers may then resolve in parallel.
+     *
+     * @param pool The shared workers, or null to go back to dispatchers of this queue's own
+     * @param maxWorkers Maximum number of workers processing requests of this queue at once,
+     *     which keeps a busy queue from occupying all of them
+     */
+    public synchronized void setSharedDispatcherPool(SharedDispatcherPool pool, int maxWorkers) {
+        if (maxWorkers <= 0) {
+            throw new IllegalArgumentException("maxWorkers must be positive");
         }
+        mSharedPool = pool;
+        mSharedWorkerLimit = maxWorkers;
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Sets the number of cache dispatcher threads, which is 1 by default. Cache lookups, which
+     * may read large entries from disk and parse cache hits, are then performed in parallel.
+     * Requests are assigned to a dispatcher by cache key, so duplicate requests are still held
+     * back while one of them is on the network.
+     *
+     * <p>Must be called before {@link #start()}, or after {@link #stop()}.
+     *
+     * @param count Number of cache dispatcher threads
+     * @throws IllegalStateException if the queue is running
      */
-    public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+    public synchronized void setCacheDispatcherCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
         }
-        for (final NetworkDispatcher mDispatcher : mDispatchers) {
-            if (mDispatcher != null) {
-                mDispatcher.quit();
-            }
+        if (mCacheDispatchers.length > 0) {
+            // Running dispatchers would keep taking from the old queues.
+            throw new IllegalStateException("Queue has already been started");
+        }
+        DispatchQueue[] oldQueues = mCacheQueues;
+        DispatchQueue[] queues = new DispatchQueue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new DispatchQueue();
+            queues[i].setComparator(mQueueOrder);
+            queues[i].setCapacity(mCacheQueueCapacity);
+        }
+        mCacheQueues = queues;
+        // Move any requests added before now to their new queues.
+        List<Request<?>> queued = new ArrayList<>();
+        for (DispatchQueue queue : oldQueues) {
+            queue.drainTo(queued);
+        }
+        for (Request<?> request : queued) {
+            cacheQueueFor(request).add(request);
         }
     }
 
     /**
-     * Gets a sequence number.
+     * Bounds the number of requests waiting in the cache and network queues. A request added
+     * while the queue it enters is full is handled according to {@code policy}. Each refused or
+     * dropped request fails with a {@link QueueFullError}, delivered to its error listener as
+     * usual.
+     *
+     * <p>The capacity applies to requests added with {@link #add} and {@link #addAll}. Requests
+     * moved from a cache queue to the network queue after a cache miss are always accepted, so
+     * that cache dispatchers never block on a full network queue.
+     *
+     * @param cacheQueueCapacity Capacity of each cache dispatcher's queue, or 0 for no limit
+     * @param networkQueueCapacity Capacity of the network queue, or 0 for no limit
+     * @param policy What to do with requests added to a full queue
+     * @param timeoutMs How long {@link QueueFullPolicy#BLOCK} waits for room in a queue
      */
-    public int getSequenceNumber() {
-        return mSequenceGenerator.incrementAndGet();
+    public synchronized void setQueueCapacity(int cacheQueueCapacity, int networkQueueCapacity,
+            QueueFullPolicy policy, long timeoutMs) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mCacheQueueCapacity = cacheQueueCapacity;
+        for (DispatchQueue cacheQueue : mCacheQueues) {
+            cacheQueue.setCapacity(cacheQueueCapacity);
+        }
+        mNetworkQueue.setCapacity(networkQueueCapacity);
+        mQueueFullTimeoutMs = timeoutMs;
+        mQueueFullPolicy = cacheQueueCapacity > 0 || networkQueueCapacity > 0 ? policy : null;
     }
 
     /**
-     * Gets the {@link Cache} instance being used.
+     * Returns the number of requests which were refused or dropped because a queue was full.
+     * See {@link #setQueueCapacity}.
      */
-    public Cache getCache() {
-        return mCache;
+    public long getQueueFullCount() {
+        return mQueueFullCount.get();
+    }
+
+    /** Returns the largest number of requests that have waited in the network queue at once. */
+    public int getNetworkQueueHighWaterMark() {
+        return mNetworkQueue.getPeakSize();
     }
 
     /**
-     * A simple predicate or filter interface for Requests, for use by
-     * {@link RequestQueue#cancelAll(RequestFilter)}.
+     * Returns the largest number of requests that have waited in the queue of the given cache
+     * dispatcher at once.
+     *
+     * @param index Index of the dispatcher, from 0 to {@link #getCacheDispatcherCount()} - 1
      */
-    public interface RequestFilter {
-        boolean apply(Request<?> request);
+    public int getCacheQueueHighWaterMark(int index) {
+        return mCacheQueues[index].getPeakSize();
     }
 
     /**
-     * Cancels all requests in this queue for which the given filter applies.
-     * @param filter The filtering function to use
+     * Sets whether identical GET and HEAD requests which skip the cache are coalesced while one
+     * of them is in flight. Requests are identical if they have the same method and cache key.
+     * Only the first is sent to the network; the others receive the response it gets, which is
+     * parsed once for all requests of the same class. If it fails, the next identical request is
+     * sent in its place.
+     *
+     * <p>Should be called before requests are added.
      */
-    public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
+    public synchronized void setCoalesceUncachedRequests(boolean enabled) {
+        if (!enabled) {
+            mCoalescer = null;
+        } else if (mCoalescer == null) {
+            mCoalescer = new RequestCoalescer(mNetworkQueue, mDelivery);
+        }
+    }
+
+    /**
+     * Returns the number of requests which were served by an identical request in flight
+     * instead of being sent to the network. See {@link #setCoalesceUncachedRequests}.
+     */
+    public long getCoalescedRequestCount() {
+        RequestCoalescer coalescer = mCoalescer;
+        return coalescer != null ? coalescer.getCoalescedCount() : 0;
+    }
+
+    /**
+     * Sets whether requests of the same priority are dispatched in order of their deadlines
+     * rather than in the order they were added. Requests without a deadline go after those with
+     * one. Deadlines of queued requests must then not be changed.
+     *
+     * @see Request#setDeadline(long)
+     */
+    public synchronized void setEarliestDeadlineFirst(boolean enabled) {
+        setQueueOrder(enabled ? DispatchQueue.EARLIEST_DEADLINE_FIRST : null);
+    }
+
+    /**
+     * Lets requests which have been waiting for a long time overtake requests of higher
+     * priority. While queued, a request gains one priority level for every
+     * {@code agingIntervalMs}, so a {@link Request.Priority#LOW} request queued for twice the
+     * interval goes before a {@link Request.Priority#HIGH} request queued just now. Time spent
+     * in the cache queue counts towards a request's age in the network queue.
+     * {@link Request.Priority#IMMEDIATE} requests always go first. Replaces the order set by
+     * {@link #setEarliestDeadlineFirst}.
+     *
+     * @param agingIntervalMs Queued time per priority level gained, or 0 to disable aging
+     */
+    public synchronized void setPriorityAging(long agingIntervalMs) {
+        setQueueOrder(
+                agingIntervalMs > 0 ? DispatchQueue.agingComparator(agingIntervalMs) : null);
+    }
+
+    // @GuardedBy("this")
+    private void setQueueOrder(Comparator<Request<?>> queueOrder) {
+        mQueueOrder = queueOrder;
+        for (DispatchQueue cacheQueue : mCacheQueues) {
+            cacheQueue.setComparator(queueOrder);
+        }
+        if (mNetworkScheduler == null) {
+            mNetworkQueue.setComparator(queueOrder);
+        }
+    }
+
+    /**
+     * Sets the scheduler deciding which request a network dispatcher takes next, in place of
+     * the priority order, e.g. a {@link WeightedFairScheduler} giving traffic classes shares of
+     * the dispatchers, or {@link RequestScheduler#fifo()}. Per-host limits, rate limits and
+     * prefetching still apply on top of it. The cache queues keep their order.
+     *
+     * @param scheduler The scheduler, or null to go back to the order set by
+     *     {@link #setEarliestDeadlineFirst} or {@link #setPriorityAging}, if any
+     */
+    public synchronized void setNetworkScheduler(RequestScheduler scheduler) {
+        mNetworkScheduler = scheduler;
+        mNetworkQueue.setScheduler(scheduler);
+        if (scheduler == null) {
+            mNetworkQueue.setComparator(mQueueOrder);
+        }
+    }
+
+    /**
+     * Limits how many requests to a single host may be in flight on the network at once.
+     * Requests to a host at its limit stay queued, and dispatchers take the highest priority
+     * request for another host instead. Hosts are compared case-insensitively against the host
+     * component of {@link Request#getUrl()}.
+     *
+     * @param maxInFlight The limit for hosts without a specific limit, or 0 for no limit
+     */
+    public void setMaxRequestsPerHost(int maxInFlight) {
+        mNetworkQueue.setMaxInFlightPerHost(maxInFlight);
+    }
+
+    /**
+     * Limits how many requests to the given host may be in flight on the network at once,
+     * overriding {@link #setMaxRequestsPerHost(int)} for that host.
+     *
+     * @param host The host, e.g. "api.example.com"
+     * @param maxInFlight The limit for this host, or 0 for no limit
+     */
+    public void setMaxRequestsPerHost(String host, int maxInFlight) {
+        mNetworkQueue.setMaxInFlightPerHost(host.toLowerCase(Locale.US), maxInFlight);
+    }
+
+    /**
+     * Limits the rate at which requests to hosts matching the pattern are sent, using a token
+     * bucket shared by all matching hosts. Requests over the limit wait in the network queue
+     * without occupying a dispatcher, and are marked "rate-limited". Replaces any limit already
+     * set for the same pattern; if several patterns match a host, the first one set applies.
+     *
+     * @param hostPattern A host, or a pattern such as {@code *.example.com} matching the
+     *     subdomains of a domain; compared case-insensitively
+     * @param requestsPerSecond Sustained rate of requests
+     * @param burst Number of requests which may be sent at once after a quiet period
+     * @param immediateBurst Number of extra requests {@link Request.Priority#IMMEDIATE} requests
+     *     may send ahead of the rate, paid back by later requests; 0 for none
+     */
+    public void setHostRateLimit(String hostPattern, double requestsPerSecond, int burst,
+            int immediateBurst) {
+        mNetworkQueue.setHostRateLimit(hostPattern.toLowerCase(Locale.US),
+                new TokenBucket(requestsPerSecond, burst, immediateBurst));
+    }
+
+    /** Removes the rate limit set for the host pattern with {@link #setHostRateLimit}. */
+    public void removeHostRateLimit(String hostPattern) {
+        mNetworkQueue.setHostRateLimit(hostPattern.toLowerCase(Locale.US), null);
+    }
+
+    /**
+     * Limits the rate at which requests with the given tag are sent, as
+     * {@link #setHostRateLimit} does for hosts. Tags are compared by identity. A request subject
+     * to both a host and a tag limit waits for both.
+     */
+    public void setTagRateLimit(Object tag, double requestsPerSecond, int burst,
+            int immediateBurst) {
+        mNetworkQueue.setTagRateLimit(tag, new TokenBucket(requestsPerSecond, burst,
+                immediateBurst));
+    }
+
+    /** Removes the rate limit set for the tag with {@link #setTagRateLimit}. */
+    public void removeTagRateLimit(Object tag) {
+        mNetworkQueue.setTagRateLimit(tag, null);
+    }
+
+    /** Returns the number of requests which had to wait in the network queue for a rate limit. */
+    public long getRateLimitedRequestCount() {
+        return mNetworkQueue.getRateLimitedCount();
+    }
+
+    /**
+     * Sets how busy the network may be for {@link Request#isPrefetch prefetches} to be sent:
+     * they are taken off the network queue only while no other request is queued and fewer
+     * than the given number of requests are in flight. By default prefetches are only sent
+     * while no other request is in flight.
+     *
+     * <p>If another request is queued while a prefetch is in flight and no dispatcher is free
+     * to take it, the dispatcher thread sending the prefetch is interrupted. On HTTP stacks
+     * that honor interrupts, the prefetch then fails and is put back on the network queue to
+     * be sent again later. Prefetches handed to an {@link AsyncNetwork} hold no dispatcher and
+     * are left to complete.
+     *
+     * @param maxInFlight The limit, counting requests of every kind
+     */
+    public void setPrefetchInFlightLimit(int maxInFlight) {
+        mNetworkQueue.setPrefetchInFlightLimit(maxInFlight);
+    }
+
+    /**
+     * Returns the number of prefetches which were put back on the network queue, after being
+     * taken by a dispatcher, because other requests had arrived. This counts prefetches caught
+     * before being sent as well as those aborted on the wire (see
+     * {@link #setPrefetchInFlightLimit}).
+     */
+    public long getPreemptedPrefetchCount() {
+        return mPreemptedPrefetchCount.get();
+    }
+
+    /**
+     * Called by a network dispatcher about to send a prefetch. Puts the prefetch back on the
+     * network queue if other requests are waiting there.
+     *
+     * @return Whether the prefetch was put back, in which case it must not be sent
+     */
+    /* package */ boolean maybePreemptPrefetch(Request<?> request) {
+        if (!mNetworkQueue.hasQueuedNonPrefetch()) {
+            return false;
+        }
+        mPreemptedPrefetchCount.incrementAndGet();
+        request.addMarker("prefetch-preempted");
+        mNetworkQueue.add(request);
+        return true;
+    }
+
+    /**
+     * Called by a network dispatcher about to send a prefetch on the current thread. Until
+     * {@link #onPrefetchDone} is called, the thread is interrupted if a request other than a
+     * prefetch is queued while every dispatcher is busy, which aborts the transfer on HTTP
+     * stacks that honor interrupts.
+     */
+    /* package */ void onPrefetchSent(Request<?> request) {
+        synchronized (mPrefetchesInFlight) {
+            mPrefetchesInFlight.put(request, new PrefetchInFlight(Thread.currentThread()));
+        }
+    }
+
+    /**
+     * Called on the thread which sent a prefetch once the network has returned. Clears any
+     * interrupt left by preemption, so that it does not reach the dispatcher's next request.
+     *
+     * @return Whether the prefetch was preempted while in flight
+     */
+    /* package */ boolean onPrefetchDone(Request<?> request) {
+        synchronized (mPrefetchesInFlight) {
+            PrefetchInFlight prefetch = mPrefetchesInFlight.remove(request);
+            if (prefetch == null || !prefetch.preempted) {
+                return false;
+            }
+            // The thread is only interrupted under this lock, so the flag can be cleared safely.
+            Thread.interrupted();
+            return true;
+        }
+    }
+
+    /** Puts a prefetch which failed after being preempted in flight back on the network queue. */
+    /* package */ void requeuePreemptedPrefetch(Request<?> request) {
+        mPreemptedPrefetchCount.incrementAndGet();
+        request.addMarker("prefetch-preempted-in-flight");
+        mNetworkQueue.add(request);
+    }
+
+    /**
+     * Interrupts the threads sending prefetches, to free a dispatcher for a request which has
+     * just been queued.
+     */
+    private void preemptPrefetchesInFlight() {
+        synchronized (mPrefetchesInFlight) {
+            for (PrefetchInFlight prefetch : mPrefetchesInFlight.values()) {
+                if (!prefetch.preempted) {
+                    prefetch.preempted = true;
+                    prefetch.thread.interrupt();
                 }
             }
         }
     }
 
+    /** A prefetch being sent, with the dispatcher thread sending it. */
+    private static final class PrefetchInFlight {
+        final Thread thread;
+        // @GuardedBy("mPrefetchesInFlight")
+        boolean preempted;
+
+        PrefetchInFlight(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
     /**
-     * Cancels all requests in this queue with the given tag. Tag must be non-null
-     * and equality is by identity.
+     * Arranges for the queue to start when the first request is added or {@link #warm} is
+     * called, instead of now. An app can then create its queue during startup without paying
+     * for the dispatcher threads or the scan of a disk cache until they are needed.
+     *
+     * @param warmUpTask Task to run on a background thread once the queue starts, e.g. to build
+     *     an HTTP client ahead of the first request; or null
      */
-    public void cancelAll(final Object tag) {
-        if (tag == null) {
-            throw new IllegalArgumentException("Cannot cancelAll with a null tag");
+    public synchronized void startLazily(Runnable warmUpTask) {
+        stop();
+        mWarmUpTask = warmUpTask;
+        mStartPending = true;
+    }
+
+    /**
+     * Starts a queue set up by {@link #startLazily} on a background thread, so that its cache
+     * and warm-up task are ready by the time the first request is added, e.g. once the first
+     * frame has been drawn. Does nothing if the queue has started or was never set up to start
+     * lazily.
+     */
+    public void warm() {
+        if (!mStartPending) {
+            return;
         }
-        cancelAll(new RequestFilter() {
+        new Thread("volley-warm-up") {
             @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+            public void run() {
+                Runnable warmUpTask = startIfPending();
+                if (warmUpTask != null) {
+                    warmUpTask.run();
+                }
             }
-        });
+        }.start();
+    }
+
+    /** Starts the queue if a lazy start is pending, as it is before a request is added. */
+    private void maybeStartLazily() {
+        if (!mStartPending) {
+            return;
+        }
+        Runnable warmUpTask = startIfPending();
+        if (warmUpTask != null) {
+            new Thread(warmUpTask, "volley-warm-up").start();
+        }
     }
 
     /**
-     * Adds a Request to the dispatch queue.
-     * @param request The request to service
-     * @return The passed-in request
+     * Starts the queue if a lazy start is still pending.
+     *
+     * @return The warm-up task to run if this call started the queue, otherwise null
      */
-    public <T> Request<T> add(Request<T> request) {
-        // Tag the request as belonging to this queue and add it to the set of current requests.
-        request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
+    private synchronized Runnable startIfPending() {
+        if (!mStartPending) {
+            return null;
         }
+        final Runnable warmUpTask = mWarmUpTask;
+        start();
+        if (warmUpTask == null) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                long startTimeMs = SystemClock.elapsedRealtime();
+                warmUpTask.run();
+                mWarmUpTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+            }
+        };
+    }
 
-        // Process requests in the order they are added.
-        request.setSequence(getSequenceNumber());
-        request.addMarker("add-to-queue");
+    /**
+     * Returns how long the cache took to initialize the last time the queue was started, e.g. to
+     * compare the startup cost of {@link #start} and {@link #startLazily}, or -1 if it has not
+     * finished initializing.
+     */
+    public long getCacheInitializationTimeMs() {
+        CacheDispatcher.CacheInitializer cacheInitializer = mCacheInitializer;
+        return cacheInitializer != null ? cacheInitializer.getInitializationTimeMs() : -1;
+    }
 
-        // If the request is uncacheable, skip the cache queue and go straight to the network.
-        if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
-            return request;
+    /**
+     * Returns how long the last call to {@link #start} took to create and start the dispatcher
+     * threads, or -1 if the queue has never started.
+     */
+    public long getDispatcherStartupTimeMs() {
+        return mDispatcherStartupTimeMs;
+    }
+
+    /**
+     * Returns how long the warm-up task given to {@link #startLazily} took to run, e.g. to build
+     * an HTTP client, or -1 if it has not finished.
+     */
+    public long getWarmUpTimeMs() {
+        return mWarmUpTimeMs;
+    }
+
+    /**
+     * Starts the dispatchers in this queue.
+     */
+    public synchronized void start() {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        stop();  // Make sure any currently running dispatchers are stopped.
+        // Abandon any drain in progress; its listener is told the queue did not drain.
+        Drain drain = mDrain;
+        if (drain != null) {
+            mDrain = null;
+            drain.interrupt();
         }
-        mCacheQueue.add(request);
-        return request;
-     }
+        // Create the cache dispatchers and start them.
+        DispatchQueue[] cacheQueues = mCacheQueues;
+        CacheDispatcher.CacheInitializer cacheInitializer =
+                new CacheDispatcher.CacheInitializer(mCache);
+        mCacheInitializer = cacheInitializer;
+        CacheDispatcher[] cacheDispatchers = new CacheDispatcher[cacheQueues.length];
+        for (int i = 0; i < cacheQueues.length; i++) {
+            cacheDispatchers[i] = new CacheDispatcher(
+                    cacheQueues[i], mNetworkQueue, mCache, mDelivery, cacheInitializer);
+        }
+        mCacheDispatchers = cacheDispatchers;
+
+        if (mSharedPool != null) {
+            // The shared workers process requests with dispatchers which are never started.
+            mSharedPoolHandle = mSharedPool.register(cacheQueues, cacheDispatchers,
+                    mNetworkQueue, new NetworkRequestProcessor(mNetwork, mCache, mDelivery),
+                    mSharedWorkerLimit);
+            mDispatcherStartupTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+            return;
+        }
+        for (CacheDispatcher cacheDispatcher : cacheDispatchers) {
+            cacheDispatcher.start();
+        }
+
+        // Create network dispatchers (and corresponding threads) up to the pool size.
+        mDispatchers.start();
+        mDispatcherStartupTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    }
 
     /**
-     * Called from {@link Request#finish(String)}, indicating that processing of the given request
-     * has finished.
+     * Stops the cache and network dispatchers.
      */
-    <T> void finish(Request<T> request) {
-        // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+    public synchronized void stop() {
+        mStartPending = false;
+        mWarmUpTask = null;
+        if (mSharedPoolHandle != null) {
+            mSharedPool.unregister(mSharedPoolHandle);
+            mSharedPoolHandle = null;
         }
-        synchronized (mFinishedListeners) {
-          for (RequestFinishedListener<T> listener : mFinishedListeners) {
-            listener.onRequestFinished(request);
-          }
+        for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+            cacheDispatcher.quit();
+        }
+        mCacheDispatchers = new CacheDispatcher[0];
+        mDispatchers.stop();
+    }
+
+    /**
+     * Stops the queue once the requests already added to it have finished, instead of
+     * abandoning them as {@link #stop} does. Requests added while the queue is draining fail
+     * with a {@link QueueDrainingError}. If requests remain after {@code timeoutMs}, they are
+     * canceled and the dispatchers are stopped.
+     *
+     * <p>Once the listener has been called, the queue can be started again with {@link #start}.
+     * Calling {@link #start} while the queue is draining ends the drain and calls the listener
+     * with {@code false}.
+     *
+     * @param timeoutMs How long to wait for the current requests to finish
+     * @param listener Listener to call, on a background thread, once the queue has stopped
+     * @throws IllegalStateException if the queue is already draining
+     */
+    public synchronized void drainAndStop(long timeoutMs, DrainListener listener) {
+        if (mDrain != null) {
+            throw new IllegalStateException("Queue is already draining");
+        }
+        mDrain = new Drain(timeoutMs, listener);
+        mDrain.start();
+    }
+
+    /** Returns whether the queue is draining. See {@link #drainAndStop}. */
+    public boolean isDraining() {
+        return mDrain != null;
+    }
+
+    /** Called by a drain once it has waited for the current requests. */
+    private void onDrainFinished(Drain drain, boolean drained) {
+        synchronized (this) {
+            if (mDrain != drain) {
+                // Superseded by start().
+                drained = false;
+            } else {
+                if (!drained) {
+                    cancelAll(new RequestFilter() {
+                        @Override
+                        public boolean apply(Request<?> request) {
+                            return true;
+                        }
+                    });
+                }
+                stop();
+                mDrain = null;
+            }
+        }
+        drain.mListener.onDrained(drained);
+    }
+
+    /** Waits, on its own thread, for the current requests of the queue to finish. */
+    private final class Drain extends Thread {
+        private final long mTimeoutMs;
+        private final DrainListener mListener;
+
+        /** Set once there are no current requests. */
+        // @GuardedBy("this")
+        private boolean mIdle;
+
+        Drain(long timeoutMs, DrainListener listener) {
+            super("volley-drain");
+            mTimeoutMs = timeoutMs;
+            mListener = listener;
+        }
+
+        synchronized void onIdle() {
+            mIdle = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            if (mCurrentRequests.isEmpty()) {
+                onIdle();
+            }
+            boolean drained;
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+                try {
+                    while (!mIdle) {
+                        long remainingMs =
+                                TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remainingMs <= 0) {
+                            break;
+                        }
+                        wait(remainingMs);
+                    }
+                } catch (InterruptedException e) {
+                    // start() has ended the drain.
+                }
+                drained = mIdle;
+            }
+            onDrainFinished(this, drained);
+        }
+    }
+
+    /**
+     * Gets a sequence number.
+     */
+    public int getSequenceNumber() {
+        return mSequenceGenerator.incrementAndGet();
+    }
+
+    /**
+     * Gets the {@link Cache} instance being used.
+     */
+    public Cache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Returns the number of cache dispatcher threads. See {@link #setCacheDispatcherCount}.
+     */
+    public int getCacheDispatcherCount() {
+        return mCacheQueues.length;
+    }
+
+    /**
+     * Returns the number of requests taken from the cache queue of the given cache dispatcher.
+     *
+     * @param index Index of the dispatcher, from 0 to {@link #getCacheDispatcherCount()} - 1
+     */
+    public long getCacheQueueTakenCount(int index) {
+        return mCacheQueues[index].getTakenCount();
+    }
+
+    /**
+     * Returns the average time requests spent in the cache queue of the given cache dispatcher
+     * before being taken by it, or 0 if it has not taken any.
+     *
+     * @param index Index of the dispatcher, from 0 to {@link #getCacheDispatcherCount()} - 1
+     */
+    public long getAverageCacheQueueWaitTimeMs(int index) {
+        DispatchQueue queue = mCacheQueues[index];
+        long taken = queue.getTakenCount();
+        return taken > 0 ? queue.getTotalWaitTimeMs() / taken : 0;
+    }
+
+    /**
+     * Returns the longest time a request spent in the cache queue of the given cache dispatcher
+     * before being taken by it.
+     *
+     * @param index Index of the dispatcher, from 0 to {@link #getCacheDispatcherCount()} - 1
+     */
+    public long getMaxCacheQueueWaitTimeMs(int index) {
+        return mCacheQueues[index].getMaxWaitTimeMs();
+    }
+
+    /**
+     * Returns the given percentile of the times that recent requests of the given priority
+     * waited in the network queue before a dispatcher took them, e.g. 99 for the p99 wait.
+     * Covers the last 1024 requests of that priority.
+     *
+     * @param percentile The percentile, between 0 and 100
+     */
+    public long getNetworkQueueWaitTimePercentileMs(Request.Priority priority,
+            double percentile) {
+        return mNetworkQueue.getWaitTimePercentileMs(priority, percentile);
+    }
+
+    /**
+     * Returns the number of requests whose deadline had passed when a cache dispatcher took
+     * them, and which were therefore failed with a {@link DeadlineExceededError}.
+     */
+    public long getCacheDeadlineExceededCount() {
+        return mCacheDeadlineExceededCount.get();
+    }
+
+    /**
+     * Returns the number of requests whose deadline had passed when a network dispatcher took
+     * them, and which were therefore failed with a {@link DeadlineExceededError} without being
+     * sent.
+     */
+    public long getNetworkDeadlineExceededCount() {
+        return mNetworkDeadlineExceededCount.get();
+    }
+
+    /**
+     * Called by a dispatcher that has failed a request because its deadline passed.
+     *
+     * @param network Whether the request was taken by a network dispatcher
+     */
+    /* package */ void onDeadlineExceeded(boolean network) {
+        if (network) {
+            mNetworkDeadlineExceededCount.incrementAndGet();
+        } else {
+            mCacheDeadlineExceededCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called by a network dispatcher to have the request attempted again once the delay has
+     * passed, without holding a dispatcher in the meantime.
+     *
+     * @param retryAfterMs Time for which to hold back every queued request for the request's
+     *     host, or 0
+     */
+    /* package */ void retryLater(Request<?> request, long delayMs, long retryAfterMs) {
+        mScheduledRetryCount.incrementAndGet();
+        holdBackHost(request, retryAfterMs);
+        mNetworkQueue.offerDelayed(request, delayMs);
+    }
+
+    /**
+     * Holds back the queued requests to the request's host for the time the server asked
+     * clients to wait before retrying, if any.
+     */
+    /* package */ void holdBackHost(Request<?> request, long retryAfterMs) {
+        String host = request.getHost();
+        if (retryAfterMs > 0 && host != null) {
+            mNetworkQueue.pauseHost(host, retryAfterMs);
+        }
+    }
+
+    /**
+     * Returns the number of retries which were scheduled after a delay rather than performed on
+     * a dispatcher's thread. See {@link com.android.volley.toolbox.BasicNetwork#setRetryBackoff}.
+     */
+    public long getScheduledRetryCount() {
+        return mScheduledRetryCount.get();
+    }
+
+    /** Returns the number of requests waiting for a scheduled retry. */
+    public int getPendingRetryCount() {
+        return mNetworkQueue.getDelayedCount();
+    }
+
+    /**
+     * Returns the number of network dispatcher threads currently running.
+     */
+    public int getNetworkDispatcherCount() {
+        return mDispatchers.getSize();
+    }
+
+    /**
+     * Returns the largest number of network dispatcher threads that have run at once.
+     */
+    public int getPeakNetworkDispatcherCount() {
+        return mDispatchers.getPeakSize();
+    }
+
+    /**
+     * Returns how many times an elastic pool has spawned a network dispatcher because of load.
+     * See {@link #setElasticNetworkDispatch}.
+     */
+    public int getNetworkDispatcherSpawnCount() {
+        return mDispatchers.getSpawnCount();
+    }
+
+    /**
+     * Returns how many times an elastic pool has retired an idle network dispatcher.
+     * See {@link #setElasticNetworkDispatch}.
+     */
+    public int getNetworkDispatcherRetireCount() {
+        return mDispatchers.getRetireCount();
+    }
+
+    /**
+     * Returns the number of requests for the given host that have been taken off the network
+     * queue by a dispatcher and are still being performed.
+     */
+    public int getInFlightRequestCount(String host) {
+        return mNetworkQueue.getInFlightCount(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Returns the number of requests for the given host waiting in the network queue.
+     */
+    public int getQueuedRequestCount(String host) {
+        return mNetworkQueue.getQueuedCount(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * A simple predicate or filter interface for Requests, for use by
+     * {@link RequestQueue#cancelAll(RequestFilter)}.
+     */
+    public interface RequestFilter {
+        boolean apply(Request<?> request);
+    }
+
+    /**
+     * Cancels all requests in this queue for which the given filter applies.
+     * @param filter The filtering function to use
+     */
+    public void cancelAll(RequestFilter filter) {
+        List<Request<?>> canceled = new ArrayList<>();
+        for (Request<?> request : mCurrentRequests.keySet()) {
+            if (filter.apply(request)) {
+                request.cancel();
+                canceled.add(request);
+            }
+        }
+        removeCanceledFromQueues(canceled);
+    }
+
+    /**
+     * Cancels all requests in this queue with the given tag. Tag must be non-null
+     * and equality is by identity. Only the requests with this tag are visited.
+     */
+    public void cancelAll(final Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot cancelAll with a null tag");
+        }
+        TaggedRequests taggedRequests = mRequestsByTag.get(new TagKey(tag));
+        if (taggedRequests == null) {
+            return;
+        }
+        List<Request<?>> canceled;
+        synchronized (taggedRequests) {
+            canceled = new ArrayList<>(taggedRequests.requests);
+        }
+        for (Request<?> request : canceled) {
+            request.cancel();
+        }
+        removeCanceledFromQueues(canceled);
+    }
+
+    /**
+     * Changes the priority of a request added to this queue, overriding its
+     * {@link Request#getPriority()}. A request waiting in the cache or network queue is moved to
+     * its new position there, e.g. to promote a request for content the user just tapped.
+     * Requests already in flight are unaffected until they are queued again, e.g. for a retry.
+     *
+     * @param priority The new priority, or null to restore the request's own priority
+     */
+    public void reprioritize(Request<?> request, Request.Priority priority) {
+        reprioritize(Collections.<Request<?>>singletonList(request), priority);
+    }
+
+    /**
+     * Changes the priority of all requests in this queue for which the given filter returns
+     * true, as {@link #reprioritize(Request, Request.Priority)} does.
+     */
+    public void reprioritizeAll(RequestFilter filter, Request.Priority priority) {
+        List<Request<?>> matching = new ArrayList<>();
+        for (Request<?> request : mCurrentRequests.keySet()) {
+            if (filter.apply(request)) {
+                matching.add(request);
+            }
+        }
+        reprioritize(matching, priority);
+    }
+
+    /**
+     * Changes the priority of all requests in this queue with the given tag, as
+     * {@link #reprioritize(Request, Request.Priority)} does, e.g. to demote the requests of a
+     * screen the user has left. Tag must be non-null and equality is by identity. Only the
+     * requests with this tag are visited.
+     */
+    public void reprioritizeAll(Object tag, Request.Priority priority) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot reprioritizeAll with a null tag");
+        }
+        TaggedRequests taggedRequests = mRequestsByTag.get(new TagKey(tag));
+        if (taggedRequests == null) {
+            return;
+        }
+        List<Request<?>> tagged;
+        synchronized (taggedRequests) {
+            tagged = new ArrayList<>(taggedRequests.requests);
+        }
+        reprioritize(tagged, priority);
+    }
+
+    private void reprioritize(List<Request<?>> requests, Request.Priority priority) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        List<Request<?>> remaining = requests;
+        for (DispatchQueue cacheQueue : mCacheQueues) {
+            remaining = cacheQueue.reprioritize(remaining, priority, false);
+        }
+        // Requests found in neither queue are updated while holding the network queue, so that
+        // none can be added to it in the meantime with its old priority.
+        mNetworkQueue.reprioritize(remaining, priority, true);
+    }
+
+    /**
+     * Removes the given requests from the cache and network queues if they are waiting there
+     * and have been canceled, and finishes them, so that they no longer hold a place in the
+     * queues until a dispatcher gets to them.
+     */
+    private void removeCanceledFromQueues(List<Request<?>> requests) {
+        List<Request<?>> canceled = new ArrayList<>(requests.size());
+        for (Request<?> request : requests) {
+            if (request.isCanceled()) {
+                canceled.add(request);
+            }
+        }
+        if (canceled.isEmpty()) {
+            return;
+        }
+        for (DispatchQueue cacheQueue : mCacheQueues) {
+            for (Request<?> request : cacheQueue.removeRequests(canceled)) {
+                request.finish("cache-discard-canceled");
+            }
+        }
+        for (Request<?> request : mNetworkQueue.removeRequests(canceled)) {
+            request.finish("network-discard-cancelled");
+            request.notifyListenerResponseNotUsable();
+        }
+    }
+
+    /**
+     * Adds a Request to the dispatch queue.
+     * @param request The request to service
+     * @return The passed-in request
+     */
+    public <T> Request<T> add(Request<T> request) {
+        maybeStartLazily();
+        // Tag the request as belonging to this queue and add it to the set of current requests.
+        request.setRequestQueue(this);
+        register(request);
+
+        // Process requests in the order they are added.
+        request.setSequence(getSequenceNumber());
+        request.addMarker("add-to-queue");
+
+        // Checked after registering, so that a drain starting now waits for this request.
+        if (mDrain != null) {
+            refuseWhileDraining(request);
+            return request;
+        }
+
+        // If the request is uncacheable, skip the cache queue and go straight to the network.
+        if (!request.shouldCache()) {
+            if (!maybeCoalesce(request)) {
+                admit(mNetworkQueue, request);
+            }
+            return request;
+        }
+        admit(cacheQueueFor(request), request);
+        return request;
+     }
+
+    /**
+     * Performs a request on the calling thread and returns its response, for callers already on
+     * a background thread which would otherwise add it and block on a
+     * {@link com.android.volley.toolbox.RequestFuture}. The cache lookup, network call, parsing
+     * and cache write all happen on the calling thread, without handing the request to the
+     * dispatchers or posting the response through the {@link ResponseDelivery}.
+     *
+     * <p>The cache is used as for a request which is {@link #add added}: a fresh entry is
+     * returned without going to the network, and if a request with the same cache key is in
+     * flight, this waits for it and returns the response it cached. Since only one response is
+     * returned, a soft-expired entry is refreshed before returning. Requests added meanwhile
+     * with the same cache key wait for this one. Retries the network asks for with
+     * {@link RetryLaterError} are made on the calling thread, which sleeps until they are due.
+     *
+     * <p>The request does not go through the network queue, so the per-host in-flight limit,
+     * the host and tag rate limits and paused hosts do not hold it back, and it does not count
+     * against them. A Retry-After delay it receives does hold back the queue's other requests to
+     * the host.
+     *
+     * <p>The response is not passed to the request's listeners. The request is finished before
+     * this returns, notifying {@link RequestFinishedListener}s as usual.
+     *
+     * @param request The request to perform; must not be a {@link Request#isPrefetch prefetch}
+     * @return The response, holding the error if the request failed, was canceled or was
+     *     refused while the queue is draining
+     * @throws InterruptedException if interrupted while waiting for a request in flight or for
+     *     a retry, in which case the request is finished without a response
+     * @throws IllegalStateException if the request uses the cache and the queue has not been
+     *     started
+     */
+    public <T> Response<T> execute(Request<T> request) throws InterruptedException {
+        if (request.isPrefetch()) {
+            throw new IllegalArgumentException("Prefetches cannot be executed");
+        }
+        maybeStartLazily();
+        request.setRequestQueue(this);
+        register(request);
+        request.setSequence(getSequenceNumber());
+        request.addMarker("execute-on-caller-thread");
+
+        if (mDrain != null) {
+            request.addMarker("add-while-draining");
+            request.finish("done");
+            return Response.error(new QueueDrainingError());
+        }
+
+        Response<T> response = null;
+        if (request.shouldCache() && !request.isCanceled()) {
+            try {
+                response = cacheDispatcherFor(request).executeFromCache(request);
+            } catch (InterruptedException | RuntimeException e) {
+                request.finish("execute-failed");
+                throw e;
+            }
+        }
+        if (response != null) {
+            request.finish("done");
+            return response;
+        }
+
+        // Go to the network, which writes the response to the cache and releases duplicates.
+        try {
+            mCallerThreadProcessor.processRequestOnCallerThread(request);
+        } catch (InterruptedException e) {
+            request.notifyListenerResponseNotUsable();
+            request.finish("execute-interrupted");
+            throw e;
+        }
+        response = mCallerThreadDelivery.takeResponse();
+        if (response == null) {
+            // The request was canceled, and has been finished without a response.
+            return Response.error(new VolleyError("Request was canceled"));
+        }
+        return response;
+    }
+
+    /** Returns the cache dispatcher which de-duplicates requests with the request's cache key. */
+    private synchronized CacheDispatcher cacheDispatcherFor(Request<?> request) {
+        CacheDispatcher[] dispatchers = mCacheDispatchers;
+        if (dispatchers.length == 0) {
+            throw new IllegalStateException("Queue has not been started");
+        }
+        return dispatchers[cacheQueueIndex(request, dispatchers.length)];
+    }
+
+    /**
+     * Keeps the response posted for a request performed on the calling thread, so that
+     * {@link #execute} can return it, and finishes the request as a delivery would.
+     */
+    private static class CallerThreadDelivery implements ResponseDelivery {
+
+        private final ThreadLocal<Response<?>> mResponse = new ThreadLocal<>();
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response) {
+            postResponse(request, response, null);
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+            request.markDelivered();
+            request.addMarker("post-response");
+            mResponse.set(response);
+            request.finish("done");
+            if (runnable != null) {
+                runnable.run();
+            }
+        }
+
+        @Override
+        public void postError(Request<?> request, VolleyError error) {
+            request.addMarker("post-error");
+            mResponse.set(Response.error(error));
+            request.finish("done");
+        }
+
+        /** Returns and forgets the response posted on the calling thread; null if none was. */
+        @SuppressWarnings("unchecked")
+        <T> Response<T> takeResponse() {
+            Response<?> response = mResponse.get();
+            mResponse.remove();
+            return (Response<T>) response;
+        }
+    }
+
+    /**
+     * Adds a group of requests to the dispatch queue in a single pass. They are registered and
+     * given consecutive sequence numbers together. Each queue is locked once for the whole group,
+     * and dispatchers are woken once.
+     *
+     * @param requests The requests to service, in the order they should be processed
+     */
+    public void addAll(Collection<? extends Request<?>> requests) {
+        addAll(requests, null, null);
+    }
+
+    /**
+     * Adds a group of requests to the dispatch queue in a single pass, as
+     * {@link #addAll(Collection)} does, optionally giving them a shared tag and a listener for
+     * the whole group. The listener is called on the thread finishing the last request.
+     *
+     * @param requests The requests to service, in the order they should be processed
+     * @param tag Tag to set on every request of the group, or null to keep their own tags
+     * @param listener Listener to notify once every request of the group has finished, or null
+     */
+    public void addAll(Collection<? extends Request<?>> requests, Object tag,
+            RequestGroupFinishedListener listener) {
+        List<Request<?>> group = new ArrayList<Request<?>>(requests);
+        if (group.isEmpty()) {
+            if (listener != null) {
+                listener.onRequestGroupFinished(group);
+            }
+            return;
+        }
+        maybeStartLazily();
+        RequestGroup requestGroup = listener != null ? new RequestGroup(group, listener) : null;
+        // Reserve a block of sequence numbers so the group keeps its order.
+        int sequence = mSequenceGenerator.getAndAdd(group.size());
+        for (Request<?> request : group) {
+            request.setRequestQueue(this);
+            if (tag != null) {
+                request.setTag(tag);
+            }
+            request.setRequestGroup(requestGroup);
+            request.setSequence(++sequence);
+            request.addMarker("add-to-queue");
+        }
+        registerAll(group, tag);
+        if (mDrain != null) {
+            for (Request<?> request : group) {
+                refuseWhileDraining(request);
+            }
+            return;
+        }
+
+        DispatchQueue[] cacheQueues = mCacheQueues;
+        List<Request<?>> networkRequests = new ArrayList<>();
+        List<List<Request<?>>> cacheRequests = new ArrayList<>(cacheQueues.length);
+        for (int i = 0; i < cacheQueues.length; i++) {
+            cacheRequests.add(new ArrayList<Request<?>>());
+        }
+        for (Request<?> request : group) {
+            // If the request is uncacheable, skip the cache queue and go straight to the network.
+            if (!request.shouldCache()) {
+                if (!maybeCoalesce(request)) {
+                    networkRequests.add(request);
+                }
+            } else {
+                cacheRequests.get(cacheQueueIndex(request, cacheQueues.length)).add(request);
+            }
+        }
+        addAll(mNetworkQueue, networkRequests);
+        for (int i = 0; i < cacheQueues.length; i++) {
+            addAll(cacheQueues[i], cacheRequests.get(i));
+        }
+    }
+
+    private void addAll(DispatchQueue queue, List<Request<?>> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        if (mQueueFullPolicy == null) {
+            queue.addAll(requests);
+            return;
+        }
+        // Bounded queues admit requests one at a time.
+        for (Request<?> request : requests) {
+            admit(queue, request);
+        }
+    }
+
+    private void refuseWhileDraining(Request<?> request) {
+        request.addMarker("add-while-draining");
+        mDelivery.postError(request, new QueueDrainingError());
+    }
+
+    /** Adds the request to the queue, subject to the queue's capacity. */
+    private void admit(DispatchQueue queue, Request<?> request) {
+        QueueFullPolicy policy = mQueueFullPolicy;
+        if (policy == null) {
+            queue.add(request);
+            return;
+        }
+        Request<?> refused;
+        try {
+            refused = queue.admit(request, policy, mQueueFullTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            refused = request;
+        }
+        if (refused != null) {
+            mQueueFullCount.incrementAndGet();
+            refused.addMarker(queue == mNetworkQueue ? "network-queue-full" : "cache-queue-full");
+            mDelivery.postError(refused, new QueueFullError());
+            if (queue == mNetworkQueue) {
+                // Let any requests waiting for this one go to the network in its place.
+                refused.notifyListenerResponseNotUsable();
+            }
+        }
+    }
+
+    /** Returns whether the request is waiting for an identical request in flight. */
+    private boolean maybeCoalesce(Request<?> request) {
+        RequestCoalescer coalescer = mCoalescer;
+        return coalescer != null && coalescer.maybeCoalesce(request);
+    }
+
+    /** Returns the cache queue of the dispatcher responsible for the request's cache key. */
+    private DispatchQueue cacheQueueFor(Request<?> request) {
+        DispatchQueue[] queues = mCacheQueues;
+        return queues[cacheQueueIndex(request, queues.length)];
+    }
+
+    private static int cacheQueueIndex(Request<?> request, int queueCount) {
+        if (queueCount == 1) {
+            return 0;
+        }
+        String cacheKey = request.getCacheKey();
+        int hash = cacheKey != null ? cacheKey.hashCode() : 0;
+        return (hash & Integer.MAX_VALUE) % queueCount;
+    }
+
+    private void register(Request<?> request) {
+        Object tag = request.getTag();
+        if (mCurrentRequests.put(request, tag != null ? tag : NO_TAG) != null) {
+            return;
+        }
+        if (tag != null) {
+            indexByTag(tag, Collections.<Request<?>>singletonList(request));
+        }
+        if (request.getTag() != tag) {
+            // The tag was changed while the request was being registered.
+            onTagChanged(request);
+        }
+    }
+
+    /**
+     * Called from {@link Request#setTag(Object)}, moving a current request to the index entry
+     * of its new tag so that {@link #cancelAll(Object)} still finds it.
+     */
+    /* package */ void onTagChanged(Request<?> request) {
+        Object tag = request.getTag();
+        Object value = tag != null ? tag : NO_TAG;
+        while (true) {
+            Object oldValue = mCurrentRequests.get(request);
+            if (oldValue == null || oldValue == value) {
+                // Not registered yet, or already finished; register() reads the tag itself.
+                return;
+            }
+            if (mCurrentRequests.replace(request, oldValue, value)) {
+                if (oldValue != NO_TAG) {
+                    unindex(oldValue, request);
+                }
+                break;
+            }
+        }
+        if (tag != null) {
+            indexByTag(tag, Collections.<Request<?>>singletonList(request));
+            if (mCurrentRequests.get(request) != value) {
+                // The request finished or was retagged meanwhile; whoever did that may have
+                // missed the entry just added.
+                unindex(tag, request);
+                onTagChanged(request);
+            }
+        }
+    }
+
+    /**
+     * Registers a group of requests. If they share a tag, the tag's index entry is updated
+     * once for the whole group.
+     */
+    private void registerAll(List<Request<?>> requests, Object sharedTag) {
+        if (sharedTag == null) {
+            for (Request<?> request : requests) {
+                register(request);
+            }
+            return;
+        }
+        List<Request<?>> added = new ArrayList<>(requests.size());
+        for (Request<?> request : requests) {
+            if (mCurrentRequests.put(request, sharedTag) == null) {
+                added.add(request);
+            }
+        }
+        if (!added.isEmpty()) {
+            indexByTag(sharedTag, added);
+        }
+    }
+
+    private void indexByTag(Object tag, List<Request<?>> requests) {
+        TagKey key = new TagKey(tag);
+        while (true) {
+            TaggedRequests taggedRequests = mRequestsByTag.get(key);
+            if (taggedRequests == null) {
+                TaggedRequests created = new TaggedRequests();
+                taggedRequests = mRequestsByTag.putIfAbsent(key, created);
+                if (taggedRequests == null) {
+                    taggedRequests = created;
+                }
+            }
+            synchronized (taggedRequests) {
+                // Retry if the entry was emptied and removed from the index meanwhile.
+                if (!taggedRequests.removed) {
+                    taggedRequests.requests.addAll(requests);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns false if the request was not registered. */
+    private boolean unregister(Request<?> request) {
+        Object tag = mCurrentRequests.remove(request);
+        if (tag == null || tag == NO_TAG) {
+            return tag != null;
+        }
+        unindex(tag, request);
+        return true;
+    }
+
+    private void unindex(Object tag, Request<?> request) {
+        TagKey key = new TagKey(tag);
+        TaggedRequests taggedRequests = mRequestsByTag.get(key);
+        if (taggedRequests == null) {
+            return;
+        }
+        synchronized (taggedRequests) {
+            taggedRequests.requests.remove(request);
+            if (taggedRequests.requests.isEmpty()) {
+                taggedRequests.removed = true;
+                mRequestsByTag.remove(key, taggedRequests);
+            }
+        }
+    }
+
+    /** Key of {@link #mRequestsByTag}, comparing tags by identity. */
+    private static final class TagKey {
+        private final Object mTag;
+
+        TagKey(Object tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).mTag == mTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+    }
+
+    /** The current requests with a single tag. */
+    private static final class TaggedRequests {
+        // @GuardedBy("this")
+        final Set<Request<?>> requests = new HashSet<>();
+
+        /** Set once this entry has been removed from {@link #mRequestsByTag}. */
+        // @GuardedBy("this")
+        boolean removed = false;
+    }
+
+    /** A group of requests added with {@link #addAll} and the listener for its completion. */
+    /* package */ static final class RequestGroup {
+        private final List<Request<?>> mRequests;
+        private final RequestGroupFinishedListener mListener;
+        private final AtomicInteger mRemaining;
+
+        RequestGroup(List<Request<?>> requests, RequestGroupFinishedListener listener) {
+            mRequests = Collections.unmodifiableList(requests);
+            mListener = listener;
+            mRemaining = new AtomicInteger(requests.size());
+        }
+
+        void onRequestFinished() {
+            if (mRemaining.decrementAndGet() == 0) {
+                mListener.onRequestGroupFinished(mRequests);
+            }
+        }
+    }
+
+    /**
+     * Called from {@link Request#finish(String)}, indicating that processing of the given request
+     * has finished.
+     */
+    <T> void finish(Request<T> request) {
+        // Remove from the set of requests currently being processed.
+        boolean registered = unregister(request);
+        synchronized (mFinishedListeners) {
+          for (RequestFinishedListener<T> listener : mFinishedListeners) {
+            listener.onRequestFinished(request);
+          }
+        }
+        RequestGroup group = request.getRequestGroup();
+        if (registered && group != null) {
+            group.onRequestFinished();
+        }
+        Drain drain = mDrain;
+        if (drain != null && mCurrentRequests.isEmpty()) {
+            drain.onIdle();
         }
 
     }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.Comparator;
+
+/**
+ * Decides the order in which network dispatchers take requests from a {@link RequestQueue}.
+ * See {@link RequestQueue#setNetworkScheduler}.
+ *
+ * <p>A scheduler is a {@link Comparator} over the queued requests, which it may keep state for
+ * through the callbacks below. The order between two queued requests must not change while
+ * they are queued, except as a result of these callbacks for other requests. Limits such as
+ * those of {@link RequestQueue#setMaxRequestsPerHost} still apply: dispatchers take the first
+ * request in this order which is not held back by one.
+ *
+ * <p>All methods are called with the network queue's lock held, so they must be quick and must
+ * not call back into the queue. {@link #fifo()} and {@link #strictPriority()} are built in, as
+ * is {@link WeightedFairScheduler}.
+ */
+public abstract class RequestScheduler implements Comparator<Request<?>> {
+
+    /** Called when a request has been added to the queue, before it is ordered. */
+    public void onQueued(Request<?> request) {
+    }
+
+    /**
+     * Called when a request has been taken from the queue by a dispatcher.
+     *
+     * @param waitTimeMs Time the request spent waiting in the queue
+     */
+    public void onTaken(Request<?> request, long waitTimeMs) {
+    }
+
+    /** Called when a queued request has been removed without being taken, e.g. canceled. */
+    public void onRemoved(Request<?> request) {
+    }
+
+    /** Returns a scheduler taking requests in the order they were added, ignoring priorities. */
+    public static RequestScheduler fifo() {
+        return new RequestScheduler() {
+            @Override
+            public int compare(Request<?> left, Request<?> right) {
+                return left.getSequence() - right.getSequence();
+            }
+        };
+    }
+
+    /**
+     * Returns a scheduler taking requests from high to low priority, and in the order they were
+     * added within a priority. This is the order used when no scheduler is set.
+     */
+    public static RequestScheduler strictPriority() {
+        return new RequestScheduler() {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            @Override
+            public int compare(Request<?> left, Request<?> right) {
+                return ((Request) left).compareTo(right);
+            }
+        };
+    }
+}
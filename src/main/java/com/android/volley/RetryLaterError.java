@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Thrown by a {@link Network} to have a failed request attempted again after a delay, rather
+ * than retrying it on the dispatcher's thread. The dispatcher hands the request back to its
+ * {@link RequestQueue}, which holds it until the delay has passed. A request which is not being
+ * dispatched by a {@link RequestQueue} fails with {@link #getError()} instead.
+ *
+ * @see com.android.volley.toolbox.BasicNetwork#setRetryBackoff
+ */
+@SuppressWarnings("serial")
+public class RetryLaterError extends VolleyError {
+    private final VolleyError mError;
+    private final long mDelayMs;
+    private final long mRetryAfterMs;
+
+    /**
+     * @param error The error of the failed attempt
+     * @param delayMs Time to wait before the next attempt
+     * @param retryAfterMs Time for which the server asked clients to stay away from its host,
+     *     or 0 if it did not
+     */
+    public RetryLaterError(VolleyError error, long delayMs, long retryAfterMs) {
+        super(error.getNetworkResponse());
+        initCause(error);
+        mError = error;
+        mDelayMs = delayMs;
+        mRetryAfterMs = retryAfterMs;
+    }
+
+    /** Returns the error of the failed attempt. */
+    public VolleyError getError() {
+        return mError;
+    }
+
+    /** Returns the time to wait before the next attempt. */
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+
+    /**
+     * Returns the time for which the server asked clients to stay away from the request's host,
+     * or 0 if it did not.
+     */
+    public long getRetryAfterMs() {
+        return mRetryAfterMs;
+    }
+}
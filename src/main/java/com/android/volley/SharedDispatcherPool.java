@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of worker threads shared by several {@link RequestQueue}s, in place of the cache
+ * and network dispatcher threads each queue would otherwise start. Apps which keep separate
+ * queues, e.g. for API calls, images and uploads, each with its own cache, then need only as
+ * many threads as they want requests processed at once in total.
+ *
+ * <p>Each queue keeps its own queues, {@link Cache}, {@link Network} and
+ * {@link ResponseDelivery}; a worker takes a request from one of the queues and processes it
+ * with that queue's components, exactly as the queue's own dispatchers would. Workers visit the
+ * queues in turn, so a queue with a deep backlog does not hold up the others, and each queue may
+ * be limited in the number of workers it occupies at once.
+ *
+ * <p>The workers are started when the first queue using the pool is started, and exit once the
+ * last one has been stopped. A worker initializes a queue's cache when it first resolves a
+ * request of that queue from the cache.
+ *
+ * @see RequestQueue#setSharedDispatcherPool
+ */
+public class SharedDispatcherPool implements DispatchQueue.AvailabilityListener {
+
+    /** Number of worker threads. */
+    private final int mThreadCount;
+
+    /** Guards the fields below and is waited on by idle workers. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled whenever a request may have become available in one of the queues. */
+    private final Condition mWorkAvailable = mLock.newCondition();
+
+    /** The running queues, replaced rather than modified so that workers can scan a snapshot. */
+    // @GuardedBy("mLock")
+    private List<Member> mMembers = Collections.emptyList();
+
+    /** The running workers; empty while no queue is running. */
+    // @GuardedBy("mLock")
+    private final List<Worker> mWorkers = new ArrayList<>();
+
+    /** Incremented whenever a request may have become available, so that no wake-up is lost. */
+    // @GuardedBy("mLock")
+    private long mWakeUpCount;
+
+    /** Index of the queue at which the next scan for work starts. */
+    // @GuardedBy("mLock")
+    private int mNextMember;
+
+    /** Number of workers processing a request. */
+    private final AtomicInteger mBusyCount = new AtomicInteger();
+
+    /** Number of times a worker scanned the queues without finding a request. */
+    private final AtomicLong mEmptyScanCount = new AtomicLong();
+
+    /**
+     * Creates a pool. No threads are started until a queue using it is started.
+     *
+     * @param threadCount Number of worker threads, shared by all queues
+     */
+    public SharedDispatcherPool(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        mThreadCount = threadCount;
+    }
+
+    /** Returns the number of worker threads. */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Returns the number of workers currently processing a request. */
+    public int getBusyCount() {
+        return mBusyCount.get();
+    }
+
+    /**
+     * Returns the number of times a worker scanned the queues without finding a request to
+     * process, which stays put while the pool is idle.
+     */
+    /* package */ long getEmptyScanCount() {
+        return mEmptyScanCount.get();
+    }
+
+    /** Returns the number of started queues using the pool. */
+    public int getQueueCount() {
+        mLock.lock();
+        try {
+            return mMembers.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Starts serving the queues of a {@link RequestQueue}, starting the workers if it is the
+     * first.
+     *
+     * @param cacheQueues The cache queues, each resolved by the dispatcher of the same index
+     * @param cacheDispatchers Dispatchers used to resolve cache requests; never started
+     * @param networkQueue The network queue, which must be released after each request
+     * @param networkProcessor Processor used to perform network requests
+     * @param maxWorkers Maximum number of workers processing requests of the queue at once
+     * @return A handle to pass to {@link #unregister}
+     */
+    /* package */ Object register(DispatchQueue[] cacheQueues,
+            CacheDispatcher[] cacheDispatchers, DispatchQueue networkQueue,
+            NetworkRequestProcessor networkProcessor, int maxWorkers) {
+        Member member = new Member(
+                cacheQueues, cacheDispatchers, networkQueue, networkProcessor, maxWorkers);
+        for (DispatchQueue queue : cacheQueues) {
+            queue.setAvailabilityListener(this);
+        }
+        networkQueue.setAvailabilityListener(this);
+        mLock.lock();
+        try {
+            List<Member> members = new ArrayList<>(mMembers);
+            members.add(member);
+            mMembers = members;
+            if (mWorkers.isEmpty()) {
+                for (int i = 0; i < mThreadCount; i++) {
+                    Worker worker = new Worker();
+                    mWorkers.add(worker);
+                    worker.start();
+                }
+            }
+            // The queues may already hold requests.
+            wakeUpWorkers();
+        } finally {
+            mLock.unlock();
+        }
+        return member;
+    }
+
+    /**
+     * Stops serving the queues registered with the given handle, stopping the workers if no
+     * queue is left. Requests being processed are finished.
+     */
+    /* package */ void unregister(Object handle) {
+        Member member = (Member) handle;
+        for (DispatchQueue queue : member.cacheQueues) {
+            queue.setAvailabilityListener(null);
+        }
+        member.networkQueue.setAvailabilityListener(null);
+        mLock.lock();
+        try {
+            List<Member> members = new ArrayList<>(mMembers);
+            if (!members.remove(member)) {
+                return;
+            }
+            mMembers = members;
+            if (members.isEmpty()) {
+                for (Worker worker : mWorkers) {
+                    worker.mQuit = true;
+                }
+                mWorkers.clear();
+                mWorkAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onRequestAvailable(DispatchQueue queue) {
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        mLock.lock();
+        try {
+            wakeUpWorkers();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // @GuardedBy("mLock")
+    private void wakeUpWorkers() {
+        mWakeUpCount++;
+        mWorkAvailable.signalAll();
+    }
+
+    /**
+     * Returns the next task for the given worker, waiting until a request of a queue below its
+     * worker limit is available, or null once the worker has been told to quit.
+     *
+     * <p>The queues are polled without holding the pool's lock, since they notify the pool with
+     * their own lock held.
+     */
+    private Task nextTask(Worker worker) throws InterruptedException {
+        while (true) {
+            List<Member> members;
+            int first;
+            long wakeUpCount;
+            mLock.lock();
+            try {
+                if (worker.mQuit) {
+                    return null;
+                }
+                members = mMembers;
+                first = mNextMember++;
+                wakeUpCount = mWakeUpCount;
+            } finally {
+                mLock.unlock();
+            }
+            long wakeUpDelayMs = -1;
+            int count = members.size();
+            for (int i = 0; i < count; i++) {
+                Member member = members.get((first + i) % count);
+                if (!member.acquireWorker()) {
+                    continue;
+                }
+                Task task = member.poll();
+                if (task != null) {
+                    return task;
+                }
+                // Nothing was taken while the slot was held, so no other worker can have missed
+                // a request because of it; a request queued meanwhile wakes the workers itself.
+                member.busy.decrementAndGet();
+                long memberDelayMs = member.networkQueue.getNextWakeUpDelayMs();
+                if (memberDelayMs >= 0) {
+                    wakeUpDelayMs = wakeUpDelayMs < 0
+                            ? memberDelayMs : Math.min(wakeUpDelayMs, memberDelayMs);
+                }
+            }
+            mEmptyScanCount.incrementAndGet();
+            mLock.lockInterruptibly();
+            try {
+                if (worker.mQuit || wakeUpCount != mWakeUpCount) {
+                    continue;
+                }
+                if (wakeUpDelayMs < 0) {
+                    mWorkAvailable.await();
+                } else {
+                    mWorkAvailable.await(wakeUpDelayMs, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the worker slot of a processed task to the queue, waking up idle workers if the
+     * queue was at its limit, since they may have skipped requests of it.
+     */
+    private void releaseWorker(Member member) {
+        if (member.busy.getAndDecrement() == member.maxWorkers) {
+            wakeUp();
+        }
+    }
+
+    /** Processes a task with the dispatchers of its queue, on the calling worker. */
+    private void runTask(Task task) throws InterruptedException {
+        mBusyCount.incrementAndGet();
+        try {
+            if (task.cacheDispatcher != null) {
+                task.cacheDispatcher.initializeCache();
+                task.cacheDispatcher.processRequest(task.request);
+            } else {
+                try {
+                    task.member.networkProcessor.processRequest(task.request);
+                } finally {
+                    task.member.networkQueue.release(task.request);
+                }
+            }
+        } finally {
+            mBusyCount.decrementAndGet();
+            releaseWorker(task.member);
+        }
+    }
+
+    /** The queues and components of a started {@link RequestQueue}. */
+    private static class Member {
+        final DispatchQueue[] cacheQueues;
+        final CacheDispatcher[] cacheDispatchers;
+        final DispatchQueue networkQueue;
+        final NetworkRequestProcessor networkProcessor;
+        final int maxWorkers;
+
+        /** Number of workers processing, or polling for, requests of this queue. */
+        final AtomicInteger busy = new AtomicInteger();
+
+        Member(DispatchQueue[] cacheQueues, CacheDispatcher[] cacheDispatchers,
+                DispatchQueue networkQueue, NetworkRequestProcessor networkProcessor,
+                int maxWorkers) {
+            this.cacheQueues = cacheQueues;
+            this.cacheDispatchers = cacheDispatchers;
+            this.networkQueue = networkQueue;
+            this.networkProcessor = networkProcessor;
+            this.maxWorkers = maxWorkers;
+        }
+
+        /** Claims a worker slot, unless the queue is at its limit. */
+        boolean acquireWorker() {
+            while (true) {
+                int current = busy.get();
+                if (current >= maxWorkers) {
+                    return false;
+                }
+                if (busy.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Takes the next request of this queue, preferring cache lookups, which are usually
+         * quick, to network requests. Returns null if there is none.
+         */
+        Task poll() {
+            for (int i = 0; i < cacheQueues.length; i++) {
+                Request<?> request = cacheQueues[i].poll();
+                if (request != null) {
+                    return new Task(this, request, cacheDispatchers[i]);
+                }
+            }
+            Request<?> request = networkQueue.poll();
+            return request != null ? new Task(this, request, null) : null;
+        }
+    }
+
+    /** A request taken by a worker, with the dispatcher to process it. */
+    private static class Task {
+        final Member member;
+        final Request<?> request;
+
+        /** The dispatcher resolving the request from the cache, or null for a network request. */
+        final CacheDispatcher cacheDispatcher;
+
+        Task(Member member, Request<?> request, CacheDispatcher cacheDispatcher) {
+            this.member = member;
+            this.request = request;
+            this.cacheDispatcher = cacheDispatcher;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        /** Used for telling us to die. */
+        volatile boolean mQuit = false;
+
+        Worker() {
+            super("volley-shared-dispatcher");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mQuit) {
+                try {
+                    processTask();
+                } catch (InterruptedException e) {
+                    // Workers are only interrupted by request code; carry on unless quitting.
+                } catch (RuntimeException e) {
+                    // Don't let one request take down a worker shared by other queues.
+                    VolleyLog.e(e, "Unhandled exception in shared dispatcher");
+                }
+            }
+        }
+
+        // Extracted to its own method to ensure locals have a constrained liveness scope by the
+        // GC. This is needed to avoid keeping previous request references alive for an
+        // indeterminate amount of time. Update consumer-proguard-rules.pro when modifying this.
+        // See also https://github.com/google/volley/issues/114
+        private void processTask() throws InterruptedException {
+            Task task = nextTask(this);
+            if (task != null) {
+                runTask(task);
+            }
+        }
+    }
+}
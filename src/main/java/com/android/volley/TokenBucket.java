@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A token bucket limiting the rate at which requests are taken from a {@link DispatchQueue}.
+ * Tokens accrue at a fixed rate up to a burst size, and each request taken uses one.
+ * {@link Request.Priority#IMMEDIATE} requests may also borrow a limited number of tokens ahead of
+ * time, which are paid back from later refills.
+ *
+ * <p>Not thread-safe; guarded by the lock of the queue it belongs to.
+ */
+class TokenBucket {
+
+    private final double mTokensPerMs;
+
+    private final int mBurst;
+
+    /** Number of tokens IMMEDIATE requests may borrow. */
+    private final int mImmediateBurst;
+
+    private double mTokens;
+
+    private long mLastRefillMs = -1;
+
+    /**
+     * @param requestsPerSecond Rate at which tokens accrue
+     * @param burst Maximum number of tokens saved up, and the initial number
+     * @param immediateBurst Number of tokens IMMEDIATE requests may borrow
+     */
+    TokenBucket(double requestsPerSecond, int burst, int immediateBurst) {
+        if (requestsPerSecond <= 0 || burst < 1 || immediateBurst < 0) {
+            throw new IllegalArgumentException("Invalid rate limit");
+        }
+        mTokensPerMs = requestsPerSecond / 1000;
+        mBurst = burst;
+        mImmediateBurst = immediateBurst;
+        mTokens = burst;
+    }
+
+    /**
+     * Returns how long a request must wait for a token, or 0 if one is available now.
+     *
+     * @param immediate Whether the request may borrow a token
+     */
+    long getWaitMs(long nowMs, boolean immediate) {
+        refill(nowMs);
+        double missing = (immediate ? 1 - mImmediateBurst : 1) - mTokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil(missing / mTokensPerMs));
+    }
+
+    /** Uses a token, which must be available according to {@link #getWaitMs}. */
+    void take(long nowMs) {
+        refill(nowMs);
+        mTokens--;
+    }
+
+    private void refill(long nowMs) {
+        if (mLastRefillMs >= 0 && nowMs > mLastRefillMs) {
+            mTokens = Math.min(mBurst, mTokens + (nowMs - mLastRefillMs) * mTokensPerMs);
+        }
+        mLastRefillMs = Math.max(mLastRefillMs, nowMs);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A {@link RequestScheduler} sharing dispatchers between traffic classes, such as API calls,
+ * images and analytics, in proportion to their weights. A class with twice the weight of another
+ * has twice as many of its requests taken while both have requests queued; a class with nothing
+ * queued leaves its share to the others, but does not save it up for later.
+ *
+ * <p>This is self-clocked fair queueing: each request queued is given a virtual finish time, one
+ * over its class's weight after the later of the finish time of the class's previous request
+ * and the finish time of the request last taken, and requests are taken in order of finish time.
+ * Requests of the same class are therefore taken in the order they were added; priorities only
+ * break ties between classes. Give urgent requests a class of their own to let them through
+ * quickly.
+ *
+ * <p>Per-class counts and wait times show whether the weights have the intended effect.
+ */
+public class WeightedFairScheduler extends RequestScheduler {
+
+    /** Assigns requests to traffic classes. */
+    public interface TrafficClassifier {
+        /** Returns the traffic class of the request; must not be null. */
+        String classify(Request<?> request);
+    }
+
+    /**
+     * Largest weight a traffic class may have. Costs are whole units of virtual time, so much
+     * larger weights would round the cost of their requests down to nothing.
+     */
+    public static final int MAX_WEIGHT = 1000;
+
+    /** Virtual time taken up by a request of a class of weight 1. */
+    private static final long UNIT_COST = 1000000;
+
+    /** The state and statistics of a traffic class. */
+    private static class TrafficClass {
+        long cost = UNIT_COST;
+        long lastFinish;
+        int queued;
+        long taken;
+        long totalWaitTimeMs;
+        long maxWaitTimeMs;
+    }
+
+    /** A queued request's class and virtual finish time. */
+    private static class Tag {
+        final TrafficClass trafficClass;
+        final long finish;
+
+        Tag(TrafficClass trafficClass, long finish) {
+            this.trafficClass = trafficClass;
+            this.finish = finish;
+        }
+    }
+
+    private final TrafficClassifier mClassifier;
+
+    // @GuardedBy("this")
+    private final Map<String, TrafficClass> mClasses = new HashMap<>();
+
+    /** Tags of the queued requests. */
+    // @GuardedBy("this")
+    private final Map<Request<?>, Tag> mTags = new IdentityHashMap<>();
+
+    /** Finish time of the request last taken. */
+    // @GuardedBy("this")
+    private long mVirtualTime;
+
+    /**
+     * @param classifier Assigns requests to traffic classes, each of which has weight 1 unless
+     *     set otherwise
+     */
+    public WeightedFairScheduler(TrafficClassifier classifier) {
+        mClassifier = classifier;
+    }
+
+    /**
+     * Sets the weight of a traffic class, which applies to requests queued from now on.
+     *
+     * @param weight The weight, relative to those of the other classes, from 1 to
+     *     {@link #MAX_WEIGHT}
+     */
+    public synchronized void setWeight(String trafficClass, int weight) {
+        if (weight <= 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("weight must be between 1 and " + MAX_WEIGHT);
+        }
+        stateOf(trafficClass).cost = UNIT_COST / weight;
+    }
+
+    @Override
+    public synchronized int compare(Request<?> left, Request<?> right) {
+        long leftFinish = finishOf(left);
+        long rightFinish = finishOf(right);
+        if (leftFinish != rightFinish) {
+            return leftFinish < rightFinish ? -1 : 1;
+        }
+        Request.Priority leftPriority = left.getEffectivePriority();
+        Request.Priority rightPriority = right.getEffectivePriority();
+        if (leftPriority != rightPriority && leftPriority != null && rightPriority != null) {
+            return rightPriority.ordinal() - leftPriority.ordinal();
+        }
+        return left.getSequence() - right.getSequence();
+    }
+
+    /**
+     * Returns the finish time of the request, or the one it would be given if it is not queued,
+     * as when the queue weighs it against a request it may displace.
+     */
+    // @GuardedBy("this")
+    private long finishOf(Request<?> request) {
+        Tag tag = mTags.get(request);
+        if (tag != null) {
+            return tag.finish;
+        }
+        TrafficClass trafficClass = stateOf(mClassifier.classify(request));
+        return Math.max(mVirtualTime, trafficClass.lastFinish) + trafficClass.cost;
+    }
+
+    @Override
+    public synchronized void onQueued(Request<?> request) {
+        TrafficClass trafficClass = stateOf(mClassifier.classify(request));
+        long finish = Math.max(mVirtualTime, trafficClass.lastFinish) + trafficClass.cost;
+        trafficClass.lastFinish = finish;
+        trafficClass.queued++;
+        mTags.put(request, new Tag(trafficClass, finish));
+    }
+
+    @Override
+    public synchronized void onTaken(Request<?> request, long waitTimeMs) {
+        Tag tag = mTags.remove(request);
+        if (tag == null) {
+            return;
+        }
+        mVirtualTime = Math.max(mVirtualTime, tag.finish);
+        TrafficClass trafficClass = tag.trafficClass;
+        trafficClass.queued--;
+        trafficClass.taken++;
+        trafficClass.totalWaitTimeMs += waitTimeMs;
+        trafficClass.maxWaitTimeMs = Math.max(trafficClass.maxWaitTimeMs, waitTimeMs);
+    }
+
+    @Override
+    public synchronized void onRemoved(Request<?> request) {
+        Tag tag = mTags.remove(request);
+        if (tag != null) {
+            tag.trafficClass.queued--;
+        }
+    }
+
+    /** Returns the number of requests of the class waiting in the queue. */
+    public synchronized int getQueuedCount(String trafficClass) {
+        TrafficClass state = mClasses.get(trafficClass);
+        return state != null ? state.queued : 0;
+    }
+
+    /** Returns the number of requests of the class taken by dispatchers. */
+    public synchronized long getTakenCount(String trafficClass) {
+        TrafficClass state = mClasses.get(trafficClass);
+        return state != null ? state.taken : 0;
+    }
+
+    /**
+     * Returns the average time requests of the class spent waiting in the queue before being
+     * taken, or 0 if none has been taken.
+     */
+    public synchronized long getAverageWaitTimeMs(String trafficClass) {
+        TrafficClass state = mClasses.get(trafficClass);
+        return state != null && state.taken > 0 ? state.totalWaitTimeMs / state.taken : 0;
+    }
+
+    /** Returns the longest time a request of the class spent waiting in the queue. */
+    public synchronized long getMaxWaitTimeMs(String trafficClass) {
+        TrafficClass state = mClasses.get(trafficClass);
+        return state != null ? state.maxWaitTimeMs : 0;
+    }
+
+    // @GuardedBy("this")
+    private TrafficClass stateOf(String name) {
+        TrafficClass trafficClass = mClasses.get(name);
+        if (trafficClass == null) {
+            trafficClass = new TrafficClass();
+            mClasses.put(name, trafficClass);
+        }
+        return trafficClass;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/** An HTTP stack which can perform requests without blocking the calling thread. */
+public abstract class AsyncHttpStack extends BaseHttpStack {
+
+    /** Callback interface for the result of an asynchronous HTTP request. */
+    public interface OnRequestComplete {
+        /** Called with the response once its status line and headers have been received. */
+        void onSuccess(HttpResponse httpResponse);
+
+        /** Called if an authentication failure occurs while preparing the request. */
+        void onAuthError(AuthFailureError authFailureError);
+
+        /** Called if the request fails with an I/O error, including a timeout. */
+        void onError(IOException ioException);
+    }
+
+    /**
+     * Starts performing an HTTP request and returns without waiting for it to complete. Exactly
+     * one method of the callback is invoked once it does, on a thread of the stack's choosing.
+     *
+     * @param request the request to perform
+     * @param additionalHeaders additional headers to be sent together with
+     *         {@link Request#getHeaders()}
+     * @param callback the callback to notify when the request completes
+     */
+    public abstract void executeRequest(
+            Request<?> request, Map<String, String> additionalHeaders,
+            OnRequestComplete callback);
+
+    /**
+     * Performs an HTTP request by starting it asynchronously and blocking until it completes.
+     * Subclasses with a more direct blocking implementation should override this.
+     */
+    @Override
+    public HttpResponse executeRequest(
+            Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        executeRequest(request, additionalHeaders, new OnRequestComplete() {
+            @Override
+            public void onSuccess(HttpResponse httpResponse) {
+                result[0] = httpResponse;
+                latch.countDown();
+            }
+
+            @Override
+            public void onAuthError(AuthFailureError authFailureError) {
+                result[0] = authFailureError;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(IOException ioException) {
+                result[0] = ioException;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.toString());
+        }
+        if (result[0] instanceof AuthFailureError) {
+            throw (AuthFailureError) result[0];
+        } else if (result[0] instanceof IOException) {
+            throw (IOException) result[0];
+        }
+        return (HttpResponse) result[0];
+    }
+}
@@ -18,16 +18,18 @@ package com.android.volley.toolbox;
 
 import android.os.SystemClock;
 
+import com.android.volley.AsyncNetwork;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache;
 import com.android.volley.Cache.Entry;
+import com.android.volley.CircuitOpenError;
 import com.android.volley.ClientError;
 import com.android.volley.Header;
-import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
 import com.android.volley.Request;
+import com.android.volley.RetryLaterError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
@@ -44,6 +46,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -51,13 +54,16 @@ import java.util.TreeSet;
 /**
  * A network performing Volley requests over an {@link HttpStack}.
  */
-public class BasicNetwork implements Network {
+public class BasicNetwork implements AsyncNetwork {
     protected static final boolean DEBUG = VolleyLog.DEBUG;
 
     private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
 
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    /** Status code of a response asking the client to slow down. */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     /**
      * @deprecated Should never have been exposed in the API. This field may be removed in a future
      *             release of Volley.
@@ -69,6 +75,18 @@ public class BasicNetwork implements Network {
 
     protected final ByteArrayPool mPool;
 
+    /** Circuit breaker consulted before each attempt, or null for none. */
+    private volatile CircuitBreaker mCircuitBreaker;
+
+    /** Delay before the first scheduled retry; 0 to retry on the calling thread. */
+    private volatile long mRetryInitialDelayMs;
+
+    /** Maximum delay before a scheduled retry. */
+    private volatile long mRetryMaxDelayMs;
+
+    /** Source of jitter for retry delays. */
+    private final Random mRandom = new Random();
+
     /**
      * @param httpStack HTTP stack to be used
      * @deprecated use {@link #BasicNetwork(BaseHttpStack)} instead to avoid depending on Apache
@@ -117,93 +135,293 @@ public class BasicNetwork implements Network {
         mPool = pool;
     }
 
+    /**
+     * Sets a circuit breaker which is consulted before each attempt at a request, including
+     * retries, and told the outcome of each. Requests to a host whose circuit is open fail
+     * with a {@link CircuitOpenError} without being sent.
+     *
+     * @param circuitBreaker The circuit breaker, or null for none
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Makes failed attempts which the request's retry policy allows to be retried throw a
+     * {@link RetryLaterError} instead of being retried immediately on the calling thread, so
+     * that a {@link com.android.volley.RequestQueue} attempts the request again after a delay
+     * without holding a dispatcher in the meantime. The delay doubles with each retry, from
+     * {@code initialDelayMs} up to {@code maxDelayMs}, and a random part of up to half of it is
+     * taken off so that clients failing together do not retry together.
+     *
+     * <p>A 429 or 503 response with a Retry-After header is then also retried, no sooner than
+     * the server asked, and the queue holds back its other requests to the same host until then.
+     *
+     * @param initialDelayMs Delay before the first retry, or 0 to retry immediately on the
+     *     calling thread, which is the default
+     * @param maxDelayMs Maximum delay before a retry, no less than {@code initialDelayMs}
+     * @throws IllegalArgumentException if either delay is negative, or if retries are scheduled
+     *     and {@code maxDelayMs} is less than {@code initialDelayMs}
+     */
+    public void setRetryBackoff(long initialDelayMs, long maxDelayMs) {
+        if (initialDelayMs < 0 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("Retry delays must not be negative");
+        }
+        if (initialDelayMs > 0 && maxDelayMs < initialDelayMs) {
+            throw new IllegalArgumentException(
+                    "maxDelayMs must not be less than initialDelayMs");
+        }
+        mRetryMaxDelayMs = maxDelayMs;
+        mRetryInitialDelayMs = initialDelayMs;
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
-            HttpResponse httpResponse = null;
-            byte[] responseContents = null;
-            List<Header> responseHeaders = Collections.emptyList();
+            checkCircuit(request);
+            HttpResponse httpResponse;
             try {
                 // Gather headers.
                 Map<String, String> additionalRequestHeaders =
                         getCacheHeaders(request.getCacheEntry());
                 httpResponse = mBaseHttpStack.executeRequest(request, additionalRequestHeaders);
-                int statusCode = httpResponse.getStatusCode();
-
-                responseHeaders = httpResponse.getHeaders();
-                // Handle cache validation.
-                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                    Entry entry = request.getCacheEntry();
-                    if (entry == null) {
-                        return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, null, true,
-                                SystemClock.elapsedRealtime() - requestStart, responseHeaders);
-                    }
-                    // Combine cached and response headers so the response will be complete.
-                    List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
-                    return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
-                            true, SystemClock.elapsedRealtime() - requestStart, combinedHeaders);
-                }
+            } catch (IOException e) {
+                onAttemptFailed(request, e);
+                handleException(request, e);
+                continue;
+            }
+            onAttemptResponse(request, httpResponse.getStatusCode());
+            NetworkResponse networkResponse = handleResponse(request, httpResponse, requestStart);
+            if (networkResponse != null) {
+                return networkResponse;
+            }
+        }
+    }
 
-                // Some responses such as 204s do not have content.  We must check.
-                InputStream inputStream = httpResponse.getContent();
-                if (inputStream != null) {
-                  responseContents =
-                          inputStreamToBytes(inputStream, httpResponse.getContentLength());
+    /**
+     * Performs the request without blocking if the HTTP stack is an {@link AsyncHttpStack}.
+     * Retries are issued from the callback of the failed attempt. With any other stack, the
+     * request is performed on the calling thread before this method returns.
+     */
+    @Override
+    public void performRequest(Request<?> request, OnRequestComplete callback) {
+        if (!(mBaseHttpStack instanceof AsyncHttpStack)) {
+            try {
+                callback.onSuccess(performRequest(request));
+            } catch (VolleyError e) {
+                callback.onError(e);
+            }
+            return;
+        }
+        attemptAsync(request, SystemClock.elapsedRealtime(), callback);
+    }
+
+    /**
+     * Starts an attempt at the request. This and the stack's callbacks run on the stack's
+     * threads during retries, so unexpected exceptions are reported to the callback rather than
+     * thrown into the stack, where the request would never complete.
+     */
+    private void attemptAsync(final Request<?> request, final long requestStart,
+            final OnRequestComplete callback) {
+        Map<String, String> additionalRequestHeaders;
+        try {
+            checkCircuit(request);
+            additionalRequestHeaders = getCacheHeaders(request.getCacheEntry());
+        } catch (CircuitOpenError e) {
+            callback.onError(e);
+            return;
+        } catch (RuntimeException e) {
+            callback.onError(new VolleyError(e));
+            return;
+        }
+        AsyncHttpStack.OnRequestComplete attemptCallback =
+                new AsyncHttpStack.OnRequestComplete() {
+            @Override
+            public void onSuccess(HttpResponse httpResponse) {
+                NetworkResponse networkResponse;
+                try {
+                    onAttemptResponse(request, httpResponse.getStatusCode());
+                    networkResponse = handleResponse(request, httpResponse, requestStart);
+                } catch (VolleyError e) {
+                    callback.onError(e);
+                    return;
+                } catch (RuntimeException e) {
+                    callback.onError(new VolleyError(e));
+                    return;
+                }
+                if (networkResponse != null) {
+                    callback.onSuccess(networkResponse);
                 } else {
-                  // Add 0 byte response as a way of honestly representing a
-                  // no-content request.
-                  responseContents = new byte[0];
+                    attemptAsync(request, requestStart, callback);
                 }
+            }
 
-                // if the request is slow, log it.
-                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, responseContents, statusCode);
+            @Override
+            public void onAuthError(AuthFailureError authFailureError) {
+                callback.onError(authFailureError);
+            }
 
-                if (statusCode < 200 || statusCode > 299) {
-                    throw new IOException();
-                }
-                return new NetworkResponse(statusCode, responseContents, false,
-                        SystemClock.elapsedRealtime() - requestStart, responseHeaders);
-            } catch (SocketTimeoutException e) {
-                attemptRetryOnException("socket", request, new TimeoutError());
-            } catch (MalformedURLException e) {
-                throw new RuntimeException("Bad URL " + request.getUrl(), e);
-            } catch (IOException e) {
-                int statusCode;
-                if (httpResponse != null) {
-                    statusCode = httpResponse.getStatusCode();
-                } else {
-                    throw new NoConnectionError(e);
+            @Override
+            public void onError(IOException ioException) {
+                try {
+                    onAttemptFailed(request, ioException);
+                    handleException(request, ioException);
+                } catch (VolleyError e) {
+                    callback.onError(e);
+                    return;
+                } catch (RuntimeException e) {
+                    callback.onError(new VolleyError(e));
+                    return;
                 }
-                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                NetworkResponse networkResponse;
-                if (responseContents != null) {
-                    networkResponse = new NetworkResponse(statusCode, responseContents, false,
+                attemptAsync(request, requestStart, callback);
+            }
+        };
+        ((AsyncHttpStack) mBaseHttpStack).executeRequest(
+                request, additionalRequestHeaders, attemptCallback);
+    }
+
+    /**
+     * Throws a {@link CircuitOpenError} if the circuit breaker does not let an attempt through
+     * to the request's host.
+     */
+    private void checkCircuit(Request<?> request) throws CircuitOpenError {
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+        String host = circuitBreaker != null ? request.getHost() : null;
+        if (host != null && !circuitBreaker.allowAttempt(host)) {
+            request.addMarker("circuit-open");
+            throw new CircuitOpenError();
+        }
+    }
+
+    /**
+     * Tells the circuit breaker that an attempt received a response with the given status.
+     * Attempts of canceled requests are not counted, e.g. the losing attempt of a
+     * {@link HedgingNetwork}, which would otherwise count the request twice.
+     */
+    private void onAttemptResponse(Request<?> request, int statusCode) {
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+        String host = circuitBreaker != null ? request.getHost() : null;
+        if (host == null || request.isCanceled()) {
+            return;
+        }
+        // Only server errors count against the host; client errors are the client's fault.
+        if (statusCode >= 500 && statusCode <= 599) {
+            circuitBreaker.onFailure(host, false);
+        } else {
+            circuitBreaker.onSuccess(host);
+        }
+    }
+
+    /**
+     * Tells the circuit breaker that an attempt failed before receiving a response, unless the
+     * request was canceled, as {@link #onAttemptResponse} does.
+     */
+    private void onAttemptFailed(Request<?> request, IOException e) {
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+        String host = circuitBreaker != null ? request.getHost() : null;
+        if (host != null && !request.isCanceled()) {
+            circuitBreaker.onFailure(host, e instanceof SocketTimeoutException);
+        }
+    }
+
+    /**
+     * Handles an exception thrown by the HTTP stack before any response was received.
+     * Returns normally if the request should be attempted again.
+     */
+    private void handleException(Request<?> request, IOException e) throws VolleyError {
+        if (e instanceof SocketTimeoutException) {
+            attemptRetryOnException("socket", request, new TimeoutError(), 0);
+        } else if (e instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), e);
+        } else {
+            throw new NoConnectionError(e);
+        }
+    }
+
+    /**
+     * Reads the response to an attempt at performing the request.
+     *
+     * @return The response, or null if the request should be attempted again
+     * @throws VolleyError if the attempt failed and should not be retried
+     */
+    private NetworkResponse handleResponse(Request<?> request, HttpResponse httpResponse,
+            long requestStart) throws VolleyError {
+        byte[] responseContents = null;
+        int statusCode = httpResponse.getStatusCode();
+        List<Header> responseHeaders = httpResponse.getHeaders();
+        try {
+            // Handle cache validation.
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Entry entry = request.getCacheEntry();
+                if (entry == null) {
+                    return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, null, true,
                             SystemClock.elapsedRealtime() - requestStart, responseHeaders);
-                    if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED ||
-                            statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
-                        attemptRetryOnException("auth",
-                                request, new AuthFailureError(networkResponse));
-                    } else if (statusCode >= 400 && statusCode <= 499) {
+                }
+                // Combine cached and response headers so the response will be complete.
+                List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
+                return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
+                        true, SystemClock.elapsedRealtime() - requestStart, combinedHeaders);
+            }
+
+            // Some responses such as 204s do not have content.  We must check.
+            InputStream inputStream = httpResponse.getContent();
+            if (inputStream != null) {
+              responseContents =
+                      inputStreamToBytes(inputStream, httpResponse.getContentLength());
+            } else {
+              // Add 0 byte response as a way of honestly representing a
+              // no-content request.
+              responseContents = new byte[0];
+            }
+
+            // if the request is slow, log it.
+            long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+            logSlowRequests(requestLifetime, request, responseContents, statusCode);
+
+            if (statusCode < 200 || statusCode > 299) {
+                throw new IOException();
+            }
+            return new NetworkResponse(statusCode, responseContents, false,
+                    SystemClock.elapsedRealtime() - requestStart, responseHeaders);
+        } catch (SocketTimeoutException e) {
+            attemptRetryOnException("socket", request, new TimeoutError(), 0);
+        } catch (IOException e) {
+            VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+            NetworkResponse networkResponse;
+            if (responseContents != null) {
+                networkResponse = new NetworkResponse(statusCode, responseContents, false,
+                        SystemClock.elapsedRealtime() - requestStart, responseHeaders);
+                if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED ||
+                        statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    attemptRetryOnException("auth",
+                            request, new AuthFailureError(networkResponse), 0);
+                } else if (statusCode >= 400 && statusCode <= 499) {
+                    long retryAfterMs = getRetryAfterMs(statusCode, responseHeaders);
+                    if (retryAfterMs > 0) {
+                        attemptRetryOnException("throttled",
+                                request, new ClientError(networkResponse), retryAfterMs);
+                    } else {
                         // Don't retry other client errors.
                         throw new ClientError(networkResponse);
-                    } else if (statusCode >= 500 && statusCode <= 599) {
-                        if (request.shouldRetryServerErrors()) {
-                            attemptRetryOnException("server",
-                                    request, new ServerError(networkResponse));
-                        } else {
-                            throw new ServerError(networkResponse);
-                        }
+                    }
+                } else if (statusCode >= 500 && statusCode <= 599) {
+                    long retryAfterMs = getRetryAfterMs(statusCode, responseHeaders);
+                    if (request.shouldRetryServerErrors() || retryAfterMs > 0) {
+                        attemptRetryOnException("server",
+                                request, new ServerError(networkResponse), retryAfterMs);
                     } else {
-                        // 3xx? No reason to retry.
                         throw new ServerError(networkResponse);
                     }
                 } else {
-                    attemptRetryOnException("network", request, new NetworkError());
+                    // 3xx? No reason to retry.
+                    throw new ServerError(networkResponse);
                 }
+            } else {
+                attemptRetryOnException("network", request, new NetworkError(), 0);
             }
         }
+        return null;
     }
 
     /**
@@ -219,13 +437,53 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Returns how long the server asked clients to wait before retrying, if the response is a
+     * 429 or 503 with a Retry-After header and retries are scheduled, or 0 otherwise.
+     */
+    private long getRetryAfterMs(int statusCode, List<Header> responseHeaders) {
+        if (mRetryInitialDelayMs <= 0 || (statusCode != HTTP_TOO_MANY_REQUESTS
+                && statusCode != HttpURLConnection.HTTP_UNAVAILABLE)) {
+            return 0;
+        }
+        for (Header header : responseHeaders) {
+            if (!"Retry-After".equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            String value = header.getValue().trim();
+            try {
+                // Either a number of seconds...
+                return Math.max(0, Long.parseLong(value) * 1000);
+            } catch (NumberFormatException e) {
+                // ... or an HTTP date.
+                long retryAt = HttpHeaderParser.parseDateAsEpoch(value);
+                return retryAt > 0 ? Math.max(0, retryAt - System.currentTimeMillis()) : 0;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the delay before the given retry, with jitter. */
+    private long getRetryDelayMs(int retryCount, long initialDelayMs) {
+        long maxDelayMs = Math.max(mRetryMaxDelayMs, initialDelayMs);
+        long delayMs = initialDelayMs;
+        // Stop doubling once the maximum is reached, so that the delay cannot overflow.
+        for (int i = 1; i < retryCount && delayMs < maxDelayMs; i++) {
+            delayMs = delayMs > maxDelayMs / 2 ? maxDelayMs : delayMs * 2;
+        }
+        delayMs = Math.min(delayMs, maxDelayMs);
+        return delayMs - (long) (mRandom.nextDouble() * (delayMs / 2));
+    }
+
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, a timeout exception is thrown. If retries are scheduled, a
+     * {@link RetryLaterError} is thrown for the retry.
      * @param request The request to use.
+     * @param retryAfterMs Time the server asked clients to wait before retrying, or 0
      */
-    private static void attemptRetryOnException(String logPrefix, Request<?> request,
-            VolleyError exception) throws VolleyError {
+    private void attemptRetryOnException(String logPrefix, Request<?> request,
+            VolleyError exception, long retryAfterMs) throws VolleyError {
         RetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
@@ -237,6 +495,11 @@ public class BasicNetwork implements Network {
             throw e;
         }
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        long initialDelayMs = mRetryInitialDelayMs;
+        if (initialDelayMs > 0) {
+            long delayMs = getRetryDelayMs(retryPolicy.getCurrentRetryCount(), initialDelayMs);
+            throw new RetryLaterError(exception, Math.max(delayMs, retryAfterMs), retryAfterMs);
+        }
     }
 
     private Map<String, String> getCacheHeaders(Cache.Entry entry) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import java.util.List;
+
+/**
+ * Packs several requests into a single HTTP request for a {@link BatchingNetwork}, and splits
+ * the response to that request back into one response per packed request. The wire format is
+ * up to the server's batch API.
+ */
+public interface BatchEncoder {
+
+    /**
+     * Returns the key of the batches the given request may join, typically the host of its
+     * URL, or null if it must be sent on its own. Only requests with equal keys are packed
+     * together.
+     */
+    String getBatchKey(Request<?> request);
+
+    /**
+     * Builds the request carrying the given calls, which share a batch key.
+     *
+     * @param batchKey The batch key of the calls
+     * @param calls The requests to pack, in order
+     * @throws AuthFailureError if a call's headers or body could not be obtained
+     */
+    BatchRequest encode(String batchKey, List<Request<?>> calls) throws AuthFailureError;
+
+    /**
+     * Splits the response to a batch request into the responses to its calls.
+     *
+     * @param batch The request returned by {@link #encode}
+     * @param response The response to the batch request
+     * @return One response per call, in the order of {@link BatchRequest#getCalls()}. A
+     *     response whose status code is not 2xx fails its call as if it had been sent alone.
+     * @throws VolleyError if the response could not be split
+     */
+    List<NetworkResponse> decode(BatchRequest batch, NetworkResponse response)
+            throws VolleyError;
+}
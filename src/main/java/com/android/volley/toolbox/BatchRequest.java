@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A synthetic POST request carrying several calls, built by a {@link BatchEncoder} and performed
+ * by a {@link BatchingNetwork}. It is never added to a queue; its response is split and
+ * delivered through the calls it carries.
+ */
+public class BatchRequest extends Request<Void> {
+    private final List<Request<?>> mCalls;
+    private final Map<String, String> mHeaders;
+    private final String mBodyContentType;
+    private final byte[] mBody;
+
+    /**
+     * Creates a batch request.
+     *
+     * @param url URL of the server's batch endpoint
+     * @param calls The requests carried by this one, in order
+     * @param headers Headers to send, or an empty map
+     * @param bodyContentType Content type of the body
+     * @param body The encoded calls
+     */
+    public BatchRequest(String url, List<Request<?>> calls, Map<String, String> headers,
+            String bodyContentType, byte[] body) {
+        super(Method.POST, url, null);
+        mCalls = Collections.unmodifiableList(calls);
+        mHeaders = headers;
+        mBodyContentType = bodyContentType;
+        mBody = body;
+        setShouldCache(false);
+    }
+
+    /** Returns the requests carried by this one, in order. */
+    public List<Request<?>> getCalls() {
+        return mCalls;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return mBodyContentType;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(null, null);
+    }
+
+    @Override
+    protected void deliverResponse(Void response) {
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.AuthFailureError;
+import com.android.volley.ClientError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Network} which packs requests made within a short window of each other into a single
+ * HTTP request, using a {@link BatchEncoder} for the server's batch API.
+ *
+ * <p>The first request for a batch key waits up to the batching window for others to join it,
+ * then sends the batch through the wrapped network; the others wait for the batch response.
+ * Each request then gets its own {@link NetworkResponse}, which the dispatcher parses, caches
+ * and delivers as usual. A batch is sent early, by the request filling it, once it reaches its
+ * maximum size.
+ *
+ * <p>When requests are performed with {@link #performRequest(Request)}, every request in a
+ * batch occupies the dispatcher performing it while it waits, so a batch can be no larger than
+ * the number of network dispatchers, which is 4 by default, however large the maximum batch
+ * size. Use {@link com.android.volley.RequestQueue#setAsyncNetworkDispatch} instead so that
+ * requests join batches through {@link #performRequest(Request, OnRequestComplete)} without
+ * holding a dispatcher: the batching window is then timed, and the batch sent, on threads of
+ * this network.
+ */
+public class BatchingNetwork implements AsyncNetwork {
+
+    /** Default number of threads sending requests joined asynchronously. */
+    private static final int DEFAULT_SEND_THREAD_COUNT = 4;
+
+    /** Idle time after which a sending thread exits. */
+    private static final long SEND_THREAD_KEEP_ALIVE_MS = 60 * 1000;
+
+    /** Network performing batch requests and requests which are not batched. */
+    private final Network mNetwork;
+
+    private final BatchEncoder mEncoder;
+
+    /** How long the first request of a batch waits for others to join it. */
+    private final long mWindowMs;
+
+    /** Number of requests at which a batch is sent without waiting for the window to end. */
+    private final int mMaxBatchSize;
+
+    /** Batches waiting for more requests, by batch key. */
+    // @GuardedBy("mPendingBatches")
+    private final Map<String, Batch> mPendingBatches = new HashMap<>();
+
+    /** Number of batch requests sent. */
+    private final AtomicLong mBatchCount = new AtomicLong();
+
+    /** Number of requests sent as part of a batch request. */
+    private final AtomicLong mBatchedRequestCount = new AtomicLong();
+
+    /** Ends the batching windows of batches joined asynchronously. */
+    private final ScheduledExecutorService mTimer;
+
+    /** Sends batches closed asynchronously, and performs unbatched asynchronous requests. */
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param network Network to send batch requests and unbatched requests through
+     * @param encoder Encoder for the server's batch API
+     * @param windowMs How long the first request of a batch waits for others to join it
+     * @param maxBatchSize Number of requests at which a batch is sent immediately
+     */
+    public BatchingNetwork(Network network, BatchEncoder encoder, long windowMs,
+            int maxBatchSize) {
+        this(network, encoder, windowMs, maxBatchSize, DEFAULT_SEND_THREAD_COUNT);
+    }
+
+    /**
+     * @param network Network to send batch requests and unbatched requests through
+     * @param encoder Encoder for the server's batch API
+     * @param windowMs How long the first request of a batch waits for others to join it
+     * @param maxBatchSize Number of requests at which a batch is sent immediately
+     * @param sendThreadCount Maximum number of threads sending the batches, and the unbatched
+     *     requests, of requests performed asynchronously; further sends wait for a thread
+     */
+    public BatchingNetwork(Network network, BatchEncoder encoder, long windowMs,
+            int maxBatchSize, int sendThreadCount) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if (sendThreadCount < 1) {
+            throw new IllegalArgumentException("sendThreadCount must be positive");
+        }
+        mNetwork = network;
+        mEncoder = encoder;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "volley-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(sendThreadCount, sendThreadCount,
+                SEND_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        String batchKey = mEncoder.getBatchKey(request);
+        if (batchKey == null) {
+            return mNetwork.performRequest(request);
+        }
+        Batch batch;
+        int index;
+        boolean first;
+        boolean full;
+        synchronized (mPendingBatches) {
+            batch = mPendingBatches.get(batchKey);
+            first = batch == null;
+            if (first) {
+                batch = new Batch(batchKey);
+                mPendingBatches.put(batchKey, batch);
+            }
+            index = batch.add(request, null);
+            full = index + 1 >= mMaxBatchSize && closePending(batch);
+        }
+        if (full) {
+            send(batch);
+        } else if (first) {
+            batch.awaitClose(mWindowMs);
+            if (closeIfPending(batch)) {
+                send(batch);
+            }
+        }
+        return batch.awaitResponse(index);
+    }
+
+    @Override
+    public void performRequest(final Request<?> request, final OnRequestComplete callback) {
+        String batchKey = mEncoder.getBatchKey(request);
+        if (batchKey == null) {
+            if (mNetwork instanceof AsyncNetwork) {
+                ((AsyncNetwork) mNetwork).performRequest(request, callback);
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    NetworkResponse response;
+                    try {
+                        response = mNetwork.performRequest(request);
+                    } catch (VolleyError e) {
+                        callback.onError(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        callback.onError(new VolleyError(e));
+                        return;
+                    }
+                    callback.onSuccess(response);
+                }
+            });
+            return;
+        }
+        final Batch batch;
+        boolean first;
+        boolean full;
+        synchronized (mPendingBatches) {
+            Batch pending = mPendingBatches.get(batchKey);
+            first = pending == null;
+            if (first) {
+                pending = new Batch(batchKey);
+                mPendingBatches.put(batchKey, pending);
+            }
+            batch = pending;
+            full = batch.add(request, callback) + 1 >= mMaxBatchSize && closePending(batch);
+        }
+        if (full) {
+            sendInBackground(batch);
+        } else if (first) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (closeIfPending(batch)) {
+                        sendInBackground(batch);
+                    }
+                }
+            }, mWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes a batch which is still pending, so that no request can join it.
+     *
+     * @return false if it had been closed already, in which case whoever closed it sends it
+     */
+    // @GuardedBy("mPendingBatches")
+    private boolean closePending(Batch batch) {
+        if (mPendingBatches.get(batch.key) != batch) {
+            return false;
+        }
+        mPendingBatches.remove(batch.key);
+        batch.close();
+        return true;
+    }
+
+    /** Closes a batch at the end of its window, as {@link #closePending} does. */
+    private boolean closeIfPending(Batch batch) {
+        synchronized (mPendingBatches) {
+            return closePending(batch);
+        }
+    }
+
+    private void sendInBackground(final Batch batch) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(batch);
+            }
+        });
+    }
+
+    private void send(Batch batch) {
+        NetworkResponse[] responses;
+        try {
+            if (batch.calls.size() == 1) {
+                // Nothing to pack it with.
+                responses = new NetworkResponse[] { mNetwork.performRequest(batch.calls.get(0)) };
+            } else {
+                responses = sendBatch(batch);
+            }
+        } catch (VolleyError e) {
+            batch.setError(e);
+            return;
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            batch.setError(new VolleyError(e));
+            return;
+        }
+        // Outside the try block, so that a failing callback cannot complete the batch twice.
+        batch.setResponses(responses);
+    }
+
+    /** Sends the calls of the batch as a single batch request. */
+    private NetworkResponse[] sendBatch(Batch batch) throws VolleyError {
+        BatchRequest batchRequest = mEncoder.encode(batch.key, batch.calls);
+        NetworkResponse batchResponse = mNetwork.performRequest(batchRequest);
+        List<NetworkResponse> responses = mEncoder.decode(batchRequest, batchResponse);
+        if (responses.size() != batch.calls.size()) {
+            throw new VolleyError("Batch response has " + responses.size()
+                    + " responses for " + batch.calls.size() + " calls");
+        }
+        mBatchCount.incrementAndGet();
+        mBatchedRequestCount.addAndGet(batch.calls.size());
+        return responses.toArray(new NetworkResponse[responses.size()]);
+    }
+
+    /** Returns the number of batch requests sent. */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /** Returns the number of requests sent as part of a batch request. */
+    public long getBatchedRequestCount() {
+        return mBatchedRequestCount.get();
+    }
+
+    /** Returns the number of HTTP round trips saved by batching. */
+    public long getRoundTripsSaved() {
+        return mBatchedRequestCount.get() - mBatchCount.get();
+    }
+
+    /** Fails a call whose response in the batch is not successful, as {@link BasicNetwork} does. */
+    private static NetworkResponse checkStatus(NetworkResponse response) throws VolleyError {
+        int statusCode = response.statusCode;
+        if ((statusCode >= 200 && statusCode <= 299)
+                || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return response;
+        }
+        if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+            throw new AuthFailureError(response);
+        } else if (statusCode >= 400 && statusCode <= 499) {
+            throw new ClientError(response);
+        } else {
+            throw new ServerError(response);
+        }
+    }
+
+    /** Requests sent together, and their responses once the batch has completed. */
+    private static final class Batch {
+        final String key;
+
+        /** Requests in the batch; only modified while the batch is pending. */
+        final List<Request<?>> calls = new ArrayList<>();
+
+        /**
+         * Callbacks of the requests joined asynchronously, by index in {@link #calls}; null for
+         * requests waiting in {@link #awaitResponse}. Only modified while the batch is pending.
+         */
+        private final List<OnRequestComplete> mCallbacks = new ArrayList<>();
+
+        // @GuardedBy("this")
+        private boolean mClosed;
+
+        // @GuardedBy("this")
+        private boolean mDone;
+
+        // @GuardedBy("this")
+        private NetworkResponse[] mResponses;
+
+        // @GuardedBy("this")
+        private VolleyError mError;
+
+        Batch(String key) {
+            this.key = key;
+        }
+
+        /** Adds a request to the pending batch and returns its index. */
+        int add(Request<?> request, OnRequestComplete callback) {
+            calls.add(request);
+            mCallbacks.add(callback);
+            return calls.size() - 1;
+        }
+
+        /** Ends the batching window. */
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        /** Waits until the batch is full or the window has passed. */
+        synchronized void awaitClose(long windowMs) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+            try {
+                while (!mClosed) {
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        return;
+                    }
+                    wait(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                // Send the batch now; the dispatcher will notice the interrupt afterwards.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void setResponses(NetworkResponse[] responses) {
+            synchronized (this) {
+                mResponses = responses;
+                mDone = true;
+                notifyAll();
+            }
+            for (int i = 0; i < mCallbacks.size(); i++) {
+                OnRequestComplete callback = mCallbacks.get(i);
+                if (callback == null) {
+                    continue;
+                }
+                NetworkResponse response;
+                try {
+                    response = checkStatus(responses[i]);
+                } catch (VolleyError e) {
+                    callback.onError(e);
+                    continue;
+                }
+                callback.onSuccess(response);
+            }
+        }
+
+        void setError(VolleyError error) {
+            synchronized (this) {
+                mError = error;
+                mDone = true;
+                notifyAll();
+            }
+            for (OnRequestComplete callback : mCallbacks) {
+                if (callback != null) {
+                    callback.onError(error);
+                }
+            }
+        }
+
+        /** Waits for the batch to complete and returns the response to the call at the index. */
+        synchronized NetworkResponse awaitResponse(int index) throws VolleyError {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new VolleyError(e);
+                }
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return checkStatus(mResponses[index]);
+        }
+    }
+}
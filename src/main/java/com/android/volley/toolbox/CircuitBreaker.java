@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.VolleyLog;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-host circuit breaker for {@link BasicNetwork}, which fails requests to a host fast with a
+ * {@link com.android.volley.CircuitOpenError} while the host appears to be down, rather than
+ * letting each one wait through its timeouts and retries.
+ *
+ * <p>Each host's circuit starts closed. It opens once the fraction of failed attempts, or of
+ * timed-out attempts, among the host's most recent attempts crosses a threshold. After the open
+ * duration, it is half-open: a single probe attempt is let through, which closes the circuit if
+ * it succeeds and opens it again otherwise.
+ */
+public class CircuitBreaker {
+
+    /** State of the circuit for one host. */
+    public enum State {
+        /** Attempts are let through. */
+        CLOSED,
+        /** Attempts fail fast. */
+        OPEN,
+        /** A single probe attempt is let through to test the host. */
+        HALF_OPEN
+    }
+
+    /** Callback interface for changes to the state of a host's circuit. */
+    public interface StateListener {
+        /** Called on the thread making the attempt which caused the change. */
+        void onStateChanged(String host, State previous, State current);
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte TIMEOUT = 2;
+
+    /** Number of recent attempts the failure and timeout rates are computed over. */
+    private final int mWindowSize;
+
+    /** Number of attempts in the window before the circuit may open. */
+    private final int mMinimumAttempts;
+
+    private final double mFailureRateThreshold;
+
+    private final double mTimeoutRateThreshold;
+
+    /** Time the circuit stays open before a probe is let through. */
+    private final long mOpenDurationMs;
+
+    private final ConcurrentHashMap<String, HostCircuit> mCircuits = new ConcurrentHashMap<>();
+
+    private volatile StateListener mListener;
+
+    /**
+     * @param windowSize Number of recent attempts the failure and timeout rates are computed over
+     * @param minimumAttempts Number of attempts in the window before the circuit may open
+     * @param failureRateThreshold Fraction of failed attempts, timeouts included, which opens the
+     *     circuit
+     * @param timeoutRateThreshold Fraction of timed-out attempts which opens the circuit
+     * @param openDurationMs Time the circuit stays open before a probe is let through
+     */
+    public CircuitBreaker(int windowSize, int minimumAttempts, double failureRateThreshold,
+            double timeoutRateThreshold, long openDurationMs) {
+        if (windowSize < 1 || minimumAttempts < 1 || minimumAttempts > windowSize) {
+            throw new IllegalArgumentException(
+                    "minimumAttempts must be between 1 and windowSize");
+        }
+        mWindowSize = windowSize;
+        mMinimumAttempts = minimumAttempts;
+        mFailureRateThreshold = failureRateThreshold;
+        mTimeoutRateThreshold = timeoutRateThreshold;
+        mOpenDurationMs = openDurationMs;
+    }
+
+    /** Sets the listener for state changes, or null for none. */
+    public void setStateListener(StateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the state of the circuit for the given host, which is lower-cased as by
+     * {@link com.android.volley.Request#getHost()}.
+     */
+    public State getState(String host) {
+        HostCircuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Returns whether an attempt may be made to the given host. If the circuit is open and the
+     * open duration has passed, it becomes half-open and this attempt is its probe.
+     */
+    boolean allowAttempt(String host) {
+        HostCircuit circuit = circuitFor(host);
+        synchronized (circuit) {
+            switch (circuit.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (SystemClock.elapsedRealtime() - circuit.openedAtMs < mOpenDurationMs) {
+                        return false;
+                    }
+                    setState(host, circuit, State.HALF_OPEN);
+                    circuit.probeStartMs = SystemClock.elapsedRealtime();
+                    return true;
+                case HALF_OPEN:
+                default:
+                    // Let another probe through if the last one never reported back.
+                    if (SystemClock.elapsedRealtime() - circuit.probeStartMs < mOpenDurationMs) {
+                        return false;
+                    }
+                    circuit.probeStartMs = SystemClock.elapsedRealtime();
+                    return true;
+            }
+        }
+    }
+
+    /** Records an attempt to the host which received a response from a healthy server. */
+    void onSuccess(String host) {
+        HostCircuit circuit = circuitFor(host);
+        synchronized (circuit) {
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.reset();
+                setState(host, circuit, State.CLOSED);
+                return;
+            }
+            circuit.record(SUCCESS);
+        }
+    }
+
+    /**
+     * Records an attempt to the host which failed.
+     *
+     * @param timeout Whether the attempt timed out
+     */
+    void onFailure(String host, boolean timeout) {
+        HostCircuit circuit = circuitFor(host);
+        synchronized (circuit) {
+            if (circuit.state == State.HALF_OPEN) {
+                open(host, circuit);
+                return;
+            }
+            circuit.record(timeout ? TIMEOUT : FAILURE);
+            if (circuit.state == State.CLOSED && circuit.count >= mMinimumAttempts) {
+                double failures = circuit.failureCount + circuit.timeoutCount;
+                if (failures / circuit.count >= mFailureRateThreshold
+                        || (double) circuit.timeoutCount / circuit.count
+                                >= mTimeoutRateThreshold) {
+                    open(host, circuit);
+                }
+            }
+        }
+    }
+
+    // @GuardedBy("circuit")
+    private void open(String host, HostCircuit circuit) {
+        circuit.reset();
+        circuit.openedAtMs = SystemClock.elapsedRealtime();
+        setState(host, circuit, State.OPEN);
+    }
+
+    // @GuardedBy("circuit")
+    private void setState(String host, HostCircuit circuit, State state) {
+        State previous = circuit.state;
+        circuit.state = state;
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Circuit for %s changed from %s to %s", host, previous, state);
+        }
+        StateListener listener = mListener;
+        if (listener != null) {
+            listener.onStateChanged(host, previous, state);
+        }
+    }
+
+    private HostCircuit circuitFor(String host) {
+        HostCircuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            HostCircuit newCircuit = new HostCircuit(mWindowSize);
+            circuit = mCircuits.putIfAbsent(host, newCircuit);
+            if (circuit == null) {
+                circuit = newCircuit;
+            }
+        }
+        return circuit;
+    }
+
+    /** The circuit for one host, and the outcomes of its most recent attempts. */
+    private static final class HostCircuit {
+        State state = State.CLOSED;
+        long openedAtMs;
+        long probeStartMs;
+
+        /** Ring buffer of the most recent outcomes. */
+        final byte[] outcomes;
+        int next;
+        int count;
+        int failureCount;
+        int timeoutCount;
+
+        HostCircuit(int windowSize) {
+            outcomes = new byte[windowSize];
+        }
+
+        void record(byte outcome) {
+            if (count == outcomes.length) {
+                forget(outcomes[next]);
+            } else {
+                count++;
+            }
+            outcomes[next] = outcome;
+            if (outcome == FAILURE) {
+                failureCount++;
+            } else if (outcome == TIMEOUT) {
+                timeoutCount++;
+            }
+            next = (next + 1) % outcomes.length;
+        }
+
+        private void forget(byte outcome) {
+            if (outcome == FAILURE) {
+                failureCount--;
+            } else if (outcome == TIMEOUT) {
+                timeoutCount--;
+            }
+        }
+
+        void reset() {
+            next = 0;
+            count = 0;
+            failureCount = 0;
+            timeoutCount = 0;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.annotation.TargetApi;
+import android.net.TrafficStats;
+import android.os.Build;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.ForwardingRequest;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Network} which hedges GET requests against stalled connections: if a request has not
+ * completed within a delay, a second attempt is started, and whichever succeeds first is used.
+ * The other attempt is then cancelled by interrupting its thread, which aborts the transfer on
+ * HTTP stacks that honor interrupts.
+ *
+ * <p>The delay is either fixed, or the observed latency percentile of the request's host, so
+ * that only requests slower than, say, 95% of their peers are hedged. Hedges are capped at a
+ * fraction of all requests, so that a slow server does not get twice the traffic.
+ *
+ * <p>Both attempts run on threads owned by this network, while the dispatcher thread waits;
+ * each sets the request's traffic stats tag on its thread. Each attempt performs a
+ * {@link ForwardingRequest} rather than the request itself. The primary attempt retries with the
+ * request's retry policy, the hedge with a policy of its own which does not retry, so that the
+ * two never share retry state. Once the winner is known, the loser stops retrying, its markers
+ * are no longer added to the request, and it reports itself canceled, so that
+ * {@link BasicNetwork} does not count its outcome against the host's circuit.
+ *
+ * <p>The delay runs until the wrapped network returns the whole response, since a
+ * {@link Network} does not report when the response headers arrive; a response whose body is
+ * slow to arrive is hedged too.
+ */
+public class HedgingNetwork implements Network {
+
+    /** Number of latency samples kept per host. */
+    private static final int LATENCY_SAMPLES = 64;
+
+    /** Number of samples a host needs before its percentile is used as the hedge delay. */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    private final Network mNetwork;
+
+    /** Hedge delay, or the delay used until a host has enough samples. */
+    private final long mHedgeDelayMs;
+
+    /** Latency percentile used as the hedge delay, or 0 to always use the fixed delay. */
+    private final double mLatencyPercentile;
+
+    /** Maximum number of hedges as a fraction of requests. */
+    private final double mBudget;
+
+    private final ExecutorService mExecutor;
+
+    private final ConcurrentHashMap<String, LatencyWindow> mLatencies =
+            new ConcurrentHashMap<>();
+
+    /** Number of requests performed through this network. */
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /** Number of hedged attempts started. */
+    private final AtomicLong mHedgeCount = new AtomicLong();
+
+    /** Number of requests whose hedged attempt succeeded first. */
+    private final AtomicLong mHedgeWinCount = new AtomicLong();
+
+    /**
+     * Creates a network which hedges after a fixed delay.
+     *
+     * @param network Network performing each attempt
+     * @param hedgeDelayMs Time after which a second attempt is started
+     * @param budget Maximum number of hedges as a fraction of requests, e.g. 0.05
+     */
+    public HedgingNetwork(Network network, long hedgeDelayMs, double budget) {
+        this(network, hedgeDelayMs, 0, budget);
+    }
+
+    /**
+     * Creates a network which hedges once a request has taken longer than the given latency
+     * percentile of its host's recent requests.
+     *
+     * @param network Network performing each attempt
+     * @param hedgeDelayMs Delay used until a host has enough latency samples
+     * @param latencyPercentile Percentile of the host's recent latencies, e.g. 95
+     * @param budget Maximum number of hedges as a fraction of requests, e.g. 0.05
+     */
+    public HedgingNetwork(Network network, long hedgeDelayMs, double latencyPercentile,
+            double budget) {
+        mNetwork = network;
+        mHedgeDelayMs = hedgeDelayMs;
+        mLatencyPercentile = latencyPercentile;
+        mBudget = budget;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "volley-hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        mRequestCount.incrementAndGet();
+        if (request.getMethod() != Request.Method.GET) {
+            // Only GETs are safe to send twice.
+            return mNetwork.performRequest(request);
+        }
+        return performHedged(request);
+    }
+
+    private <T> NetworkResponse performHedged(Request<T> request) throws VolleyError {
+        String host = request.getHost();
+        Race race = new Race();
+        AttemptRequest<T> primaryRequest =
+                new AttemptRequest<>(request, race, request.getRetryPolicy(), "");
+        Future<?> primary = mExecutor.submit(new Attempt(primaryRequest, race, host, false));
+        AttemptRequest<T> hedgeRequest = null;
+        Future<?> hedge = null;
+        try {
+            if (!race.awaitWinner(hedgeDelayMs(host)) && tryStartHedge()) {
+                request.addMarker("network-hedge");
+                hedgeRequest = new AttemptRequest<>(request, race, new DefaultRetryPolicy(
+                        request.getRetryPolicy().getCurrentTimeout(), 0, 1f), "hedge-");
+                hedge = mExecutor.submit(new Attempt(hedgeRequest, race, host, true));
+            }
+            return race.awaitResult(hedge != null ? 2 : 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        } finally {
+            // Detach both attempts from the request before it is returned to the dispatcher,
+            // then cancel the loser, if it is still running.
+            primaryRequest.stop();
+            primary.cancel(true);
+            if (hedge != null) {
+                hedgeRequest.stop();
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    /** Returns the number of hedged attempts started. */
+    public long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    /** Returns the number of requests whose hedged attempt succeeded first. */
+    public long getHedgeWinCount() {
+        return mHedgeWinCount.get();
+    }
+
+    private long hedgeDelayMs(String host) {
+        if (mLatencyPercentile <= 0 || host == null) {
+            return mHedgeDelayMs;
+        }
+        LatencyWindow latencies = mLatencies.get(host);
+        if (latencies == null) {
+            return mHedgeDelayMs;
+        }
+        long percentileMs = latencies.getPercentileMs(mLatencyPercentile);
+        return percentileMs >= 0 ? percentileMs : mHedgeDelayMs;
+    }
+
+    /** Takes a hedge from the budget, if there is one left. */
+    private boolean tryStartHedge() {
+        while (true) {
+            long hedges = mHedgeCount.get();
+            if (hedges + 1 > mBudget * mRequestCount.get()) {
+                return false;
+            }
+            if (mHedgeCount.compareAndSet(hedges, hedges + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void recordLatency(String host, long latencyMs) {
+        if (mLatencyPercentile <= 0 || host == null) {
+            return;
+        }
+        LatencyWindow latencies = mLatencies.get(host);
+        if (latencies == null) {
+            LatencyWindow newLatencies = new LatencyWindow();
+            latencies = mLatencies.putIfAbsent(host, newLatencies);
+            if (latencies == null) {
+                latencies = newLatencies;
+            }
+        }
+        latencies.add(latencyMs);
+    }
+
+    /**
+     * The request as performed by one attempt. It forwards its markers to the original, with
+     * the given prefix, until it is stopped once the race is over; from then on it reports
+     * itself canceled and gives up instead of retrying, so that a losing attempt still running
+     * no longer touches the original, which may have finished.
+     */
+    private static class AttemptRequest<T> extends ForwardingRequest<T> {
+        private final Race mRace;
+        private final String mMarkerPrefix;
+
+        // @GuardedBy("mRace")
+        private boolean mStopped;
+
+        AttemptRequest(Request<T> original, Race race, final RetryPolicy retryPolicy,
+                String markerPrefix) {
+            super(original);
+            mRace = race;
+            mMarkerPrefix = markerPrefix;
+            setRetryPolicy(new RetryPolicy() {
+                @Override
+                public int getCurrentTimeout() {
+                    return retryPolicy.getCurrentTimeout();
+                }
+
+                @Override
+                public int getCurrentRetryCount() {
+                    return retryPolicy.getCurrentRetryCount();
+                }
+
+                @Override
+                public void retry(VolleyError error) throws VolleyError {
+                    if (isStopped()) {
+                        throw error;
+                    }
+                    retryPolicy.retry(error);
+                }
+            });
+        }
+
+        void stop() {
+            synchronized (mRace) {
+                mStopped = true;
+            }
+        }
+
+        boolean isStopped() {
+            synchronized (mRace) {
+                return mStopped;
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return isStopped() || super.isCanceled();
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            synchronized (mRace) {
+                if (!mStopped) {
+                    getOriginal().addMarker(mMarkerPrefix + tag);
+                }
+            }
+        }
+    }
+
+    /** One attempt at performing a request. */
+    private class Attempt implements Runnable {
+        private final AttemptRequest<?> mRequest;
+        private final Race mRace;
+        private final String mHost;
+        private final boolean mHedge;
+
+        Attempt(AttemptRequest<?> request, Race race, String host, boolean hedge) {
+            mRequest = request;
+            mRace = race;
+            mHost = host;
+            mHedge = hedge;
+        }
+
+        @Override
+        public void run() {
+            long startNs = System.nanoTime();
+            NetworkResponse response;
+            setTrafficStatsTag(mRequest.getTrafficStatsTag());
+            try {
+                response = mNetwork.performRequest(mRequest);
+            } catch (VolleyError e) {
+                mRace.onFailure(e);
+                return;
+            } catch (RuntimeException e) {
+                mRace.onFailure(new VolleyError(e));
+                return;
+            } finally {
+                clearTrafficStatsTag();
+            }
+            if (mRace.onSuccess(response)) {
+                recordLatency(mHost, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+                if (mHedge) {
+                    mHedgeWinCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void setTrafficStatsTag(int tag) {
+        // The dispatcher tagged its own thread, not the one the attempt runs on.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            TrafficStats.setThreadStatsTag(tag);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void clearTrafficStatsTag() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            TrafficStats.clearThreadStatsTag();
+        }
+    }
+
+    /** The outcome of the attempts at one request. */
+    private static final class Race {
+        // @GuardedBy("this")
+        private NetworkResponse mResponse;
+
+        // @GuardedBy("this")
+        private VolleyError mError;
+
+        // @GuardedBy("this")
+        private int mFailureCount;
+
+        /** Returns whether this was the first successful attempt. */
+        synchronized boolean onSuccess(NetworkResponse response) {
+            if (mResponse != null) {
+                return false;
+            }
+            mResponse = response;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void onFailure(VolleyError error) {
+            if (mError == null) {
+                mError = error;
+            }
+            mFailureCount++;
+            notifyAll();
+        }
+
+        /** Waits up to the given time for an attempt to finish, returning whether one has. */
+        synchronized boolean awaitWinner(long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (mResponse == null && mFailureCount == 0) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            return true;
+        }
+
+        /**
+         * Waits for the first successful attempt, or for all of the given number of attempts to
+         * fail, in which case the first failure is thrown.
+         */
+        synchronized NetworkResponse awaitResult(int attemptCount)
+                throws InterruptedException, VolleyError {
+            while (mResponse == null && mFailureCount < attemptCount) {
+                wait();
+            }
+            if (mResponse != null) {
+                return mResponse;
+            }
+            throw mError;
+        }
+    }
+
+    /** The most recent latencies of requests to one host. */
+    private static final class LatencyWindow {
+        // @GuardedBy("this")
+        private final long[] mSamples = new long[LATENCY_SAMPLES];
+
+        // @GuardedBy("this")
+        private int mCount;
+
+        /** Index of the oldest sample, overwritten by the next one. */
+        // @GuardedBy("this")
+        private int mNext;
+
+        synchronized void add(long latencyMs) {
+            mSamples[mNext] = latencyMs;
+            mNext = (mNext + 1) % LATENCY_SAMPLES;
+            mCount = Math.min(mCount + 1, LATENCY_SAMPLES);
+        }
+
+        /** Returns the percentile of the samples, or -1 if there are too few. */
+        synchronized long getPercentileMs(double percentile) {
+            int size = mCount;
+            if (size < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
@@ -27,7 +29,7 @@ import static okhttp3.internal.http.StatusLine.HTTP_CONTINUE;
  * Created by zhongqing on 26/3/18.
  */
 
-public class OkStack extends BaseHttpStack {
+public class OkStack extends AsyncHttpStack {
 
     private static final String UTF8_CHARSET = "UTF-8";
 
@@ -39,6 +41,49 @@ public class OkStack extends BaseHttpStack {
 
     @Override
     public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        Response response = client.newCall(buildRequest(request, additionalHeaders)).execute();
+        return convertResponse(request, response);
+    }
+
+    /**
+     * Enqueues the request on the OkHttp client's dispatcher, so that no thread of the caller is
+     * held while the call is in flight.
+     */
+    @Override
+    public void executeRequest(final Request<?> request, Map<String, String> additionalHeaders,
+                               final OnRequestComplete callback) {
+        okhttp3.Request okRequest;
+        try {
+            okRequest = buildRequest(request, additionalHeaders);
+        } catch (AuthFailureError e) {
+            callback.onAuthError(e);
+            return;
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+        client.newCall(okRequest).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                HttpResponse httpResponse;
+                try {
+                    httpResponse = convertResponse(request, response);
+                } catch (IOException e) {
+                    response.close();
+                    callback.onError(e);
+                    return;
+                }
+                callback.onSuccess(httpResponse);
+            }
+        });
+    }
+
+    private okhttp3.Request buildRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
         String url = getUrlBaseOnMethod(request);
         HashMap<String, String> map = new HashMap<>();
         map.putAll(request.getHeaders());
@@ -54,9 +99,10 @@ public class OkStack extends BaseHttpStack {
         }
         okRequestBuilder.tag(request.getTag());
         setConnectionParametersForRequest(okRequestBuilder, request);
+        return okRequestBuilder.build();
+    }
 
-
-        Response response = client.newCall(okRequestBuilder.build()).execute();
+    private static HttpResponse convertResponse(Request<?> request, Response response) throws IOException {
         int responseCode = response.code();
 
         if (responseCode == -1) {
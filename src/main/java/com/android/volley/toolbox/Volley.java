@@ -18,10 +18,14 @@ package com.android.volley.toolbox;
 
 import android.content.Context;
 
+import com.android.volley.AuthFailureError;
 import com.android.volley.Network;
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 
 import okhttp3.OkHttpClient;
 
@@ -65,10 +69,61 @@ public class Volley {
         return newRequestQueue(context, network);
     }
 
+    /**
+     * Creates a default instance of the worker pool which starts itself when the first request
+     * is added, see {@link RequestQueue#startLazily}. Neither its threads, nor the scan of its
+     * cache directory, nor the {@link OkHttpClient} are created before then, unless
+     * {@link RequestQueue#warm()} is called to get them ready in the background, e.g. once the
+     * first frame has been drawn. Each queue has its own client; the stack shared by the queues
+     * from {@link #newRequestQueue} is neither used nor created.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @return A {@link RequestQueue} instance which has not started yet.
+     */
+    public static RequestQueue newLazyRequestQueue(Context context) {
+        final LazyOkStack stack = new LazyOkStack();
+        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        RequestQueue queue =
+                new RequestQueue(new DiskBasedCache(cacheDir), new BasicNetwork(stack));
+        queue.startLazily(new Runnable() {
+            @Override
+            public void run() {
+                stack.getStack();
+            }
+        });
+        return queue;
+    }
+
     private static BaseHttpStack newHttpStack(OkHttpClient okHttpClient) {
         return new OkStack(okHttpClient);
     }
 
+    /** An {@link OkStack} which builds its {@link OkHttpClient} when first used. */
+    private static class LazyOkStack extends AsyncHttpStack {
+
+        // @GuardedBy("this")
+        private OkStack mStack;
+
+        synchronized OkStack getStack() {
+            if (mStack == null) {
+                mStack = new OkStack(new OkHttpClient());
+            }
+            return mStack;
+        }
+
+        @Override
+        public HttpResponse executeRequest(Request<?> request,
+                Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+            return getStack().executeRequest(request, additionalHeaders);
+        }
+
+        @Override
+        public void executeRequest(Request<?> request, Map<String, String> additionalHeaders,
+                OnRequestComplete callback) {
+            getStack().executeRequest(request, additionalHeaders, callback);
+        }
+    }
+
     public static void clearCache(RequestQueue requestQueue) {
         requestQueue.getCache().clear();
     }
@@ -124,6 +124,28 @@ public class CacheDispatcherTest {
         assertFalse(mDelivery.postResponse_called);
     }
 
+    @Test public void duplicateCacheMiss_inFlightRequestInheritsWaiterPriority() throws Exception {
+        MockRequest queuedRequest = new MockRequest();
+        queuedRequest.setSequence(0);
+        queuedRequest.setPriority(Request.Priority.NORMAL);
+        mNetworkQueue.add(queuedRequest);
+        mRequest.setSequence(1);
+        mRequest.setPriority(Request.Priority.LOW);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+
+        MockRequest urgentRequest = new MockRequest();
+        urgentRequest.setSequence(2);
+        urgentRequest.setPriority(Request.Priority.IMMEDIATE);
+        mCacheQueue.add(urgentRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+
+        // The request the urgent one waits for moves ahead of the other queued request.
+        assertSame(mRequest, mNetworkQueue.take());
+        assertEquals(Request.Priority.IMMEDIATE, mRequest.getEffectivePriority());
+        assertEquals(Request.Priority.LOW, mRequest.getPriority());
+    }
+
     @Test public void tripleCacheMiss_networkErrorOnFirst() throws Exception {
         MockRequest secondRequest = new MockRequest();
         MockRequest thirdRequest = new MockRequest();
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DispatchQueueTest {
+
+    private DispatchQueue mQueue;
+    private int mSequence;
+
+    @Before public void setUp() throws Exception {
+        mQueue = new DispatchQueue(true);
+    }
+
+    private MockRequest newRequest(String url, Priority priority) {
+        MockRequest request = new MockRequest(url, null);
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    @Test public void takesInPriorityOrderAcrossHosts() throws Exception {
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest high = newRequest("http://b.com/1", Priority.HIGH);
+        MockRequest normal = newRequest("http://a.com/2", Priority.NORMAL);
+        mQueue.add(low);
+        mQueue.add(high);
+        mQueue.add(normal);
+
+        assertSame(high, mQueue.take());
+        assertSame(normal, mQueue.take());
+        assertSame(low, mQueue.take());
+    }
+
+    @Test public void skipsHostAtLimit() throws Exception {
+        mQueue.setMaxInFlightPerHost("slow.com", 1);
+        MockRequest slow1 = newRequest("http://slow.com/1", Priority.HIGH);
+        MockRequest slow2 = newRequest("http://slow.com/2", Priority.HIGH);
+        MockRequest fast = newRequest("http://fast.com/1", Priority.LOW);
+        mQueue.add(slow1);
+        mQueue.add(slow2);
+        mQueue.add(fast);
+
+        assertSame(slow1, mQueue.take());
+        // slow.com is at its limit, so the lower priority request for fast.com goes next.
+        assertSame(fast, mQueue.take());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.size());
+
+        mQueue.release(slow1);
+        assertSame(slow2, mQueue.take());
+    }
+
+    @Test public void defaultLimitAppliesToEveryHost() throws Exception {
+        mQueue.setMaxInFlightPerHost(1);
+        MockRequest a1 = newRequest("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = newRequest("http://a.com/2", Priority.NORMAL);
+        MockRequest b1 = newRequest("http://b.com/1", Priority.NORMAL);
+        mQueue.add(a1);
+        mQueue.add(a2);
+        mQueue.add(b1);
+
+        assertSame(a1, mQueue.take());
+        assertSame(b1, mQueue.take());
+        assertNull(mQueue.poll());
+    }
+
+    @Test public void gauges() throws Exception {
+        mQueue.setMaxInFlightPerHost(1);
+        MockRequest a1 = newRequest("http://A.com/1", Priority.NORMAL);
+        mQueue.add(a1);
+        mQueue.add(newRequest("http://a.com/2", Priority.NORMAL));
+        assertEquals(2, mQueue.getQueuedCount("a.com"));
+        assertEquals(0, mQueue.getInFlightCount("a.com"));
+
+        mQueue.take();
+        assertEquals(1, mQueue.getQueuedCount("a.com"));
+        assertEquals(1, mQueue.getInFlightCount("a.com"));
+        assertEquals(0, mQueue.getDispatchableCount());
+
+        mQueue.release(a1);
+        assertEquals(0, mQueue.getInFlightCount("a.com"));
+        assertEquals(1, mQueue.getDispatchableCount());
+    }
+
+    @Test public void earliestDeadlineFirstWithinPriority() throws Exception {
+        MockRequest noDeadline = newRequest("http://a.com/1", Priority.NORMAL);
+        MockRequest late = newRequest("http://b.com/1", Priority.NORMAL);
+        late.setDeadline(2000);
+        MockRequest early = newRequest("http://a.com/2", Priority.NORMAL);
+        early.setDeadline(1000);
+        MockRequest low = newRequest("http://a.com/3", Priority.LOW);
+        low.setDeadline(500);
+        mQueue.add(noDeadline);
+        mQueue.add(late);
+        mQueue.add(early);
+        mQueue.add(low);
+        // Switching the order re-sorts requests that are already queued.
+        mQueue.setComparator(DispatchQueue.EARLIEST_DEADLINE_FIRST);
+
+        assertSame(early, mQueue.take());
+        assertSame(late, mQueue.take());
+        assertSame(noDeadline, mQueue.take());
+        assertSame(low, mQueue.take());
+    }
+
+    @Test public void agingLetsOldLowPriorityRequestsOvertake() throws Exception {
+        Comparator<Request<?>> aging = DispatchQueue.agingComparator(100);
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest high = newRequest("http://a.com/2", Priority.HIGH);
+        MockRequest immediate = newRequest("http://a.com/3", Priority.IMMEDIATE);
+        low.setQueuedTimeMs(1000);
+        high.setQueuedTimeMs(1150);
+        immediate.setQueuedTimeMs(5000);
+
+        // LOW is two levels below HIGH but has not yet waited 200ms longer.
+        assertTrue(aging.compare(high, low) < 0);
+        MockRequest laterHigh = newRequest("http://a.com/4", Priority.HIGH);
+        laterHigh.setQueuedTimeMs(1250);
+        assertTrue(aging.compare(low, laterHigh) < 0);
+        // IMMEDIATE requests go first regardless of age.
+        assertTrue(aging.compare(immediate, low) < 0);
+
+        // A request keeps its age when it moves to another queue.
+        low.setQueuedTimeMs(2000);
+        assertTrue(aging.compare(low, laterHigh) < 0);
+    }
+
+    @Test public void waitTimePercentiles() throws Exception {
+        assertEquals(0, mQueue.getWaitTimePercentileMs(Priority.LOW, 99));
+        for (int i = 1; i <= 10; i++) {
+            MockRequest request = newRequest("http://a.com/" + i, Priority.LOW);
+            mQueue.add(request);
+            // Back-date the request so that it appears to have waited i * 100 ms.
+            request.setQueuedTimeMs(request.getQueuedTimeMs() - i * 100);
+            assertSame(request, mQueue.take());
+        }
+        long median = mQueue.getWaitTimePercentileMs(Priority.LOW, 50);
+        assertTrue("median " + median, median >= 500 && median < 600);
+        long p99 = mQueue.getWaitTimePercentileMs(Priority.LOW, 99);
+        assertTrue("p99 " + p99, p99 >= 1000 && p99 < 1100);
+        long min = mQueue.getWaitTimePercentileMs(Priority.LOW, 0);
+        assertTrue("min " + min, min >= 100 && min < 200);
+        assertEquals(0, mQueue.getWaitTimePercentileMs(Priority.HIGH, 99));
+    }
+
+    @Test public void removeAndContains() throws Exception {
+        MockRequest request = newRequest("http://a.com/1", Priority.NORMAL);
+        mQueue.add(request);
+        assertTrue(mQueue.contains(request));
+        assertTrue(mQueue.remove(request));
+        assertFalse(mQueue.contains(request));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test public void drainToRemovesWithoutTaking() throws Exception {
+        mQueue.setMaxInFlightPerHost("a.com", 1);
+        mQueue.setHostRateLimit("a.com", new TokenBucket(1, 1, 0));
+        mQueue.pauseHost("b.com", 60000);
+        MockRequest a1 = newRequest("http://a.com/1", Priority.NORMAL);
+        MockRequest a2 = newRequest("http://a.com/2", Priority.NORMAL);
+        MockRequest b1 = newRequest("http://b.com/1", Priority.HIGH);
+        mQueue.add(a1);
+        mQueue.add(a2);
+        mQueue.add(b1);
+
+        // Limits and pauses do not hold requests back from being drained.
+        List<Request<?>> drained = new ArrayList<>();
+        assertEquals(3, mQueue.drainTo(drained));
+        assertEquals(Arrays.<Request<?>>asList(b1, a1, a2), drained);
+        assertEquals(0, mQueue.size());
+        assertEquals(0, mQueue.getInFlightCount("a.com"));
+        assertEquals(0, mQueue.getTakenCount());
+
+        // Nor do they use up the host's rate limit.
+        mQueue.add(a1);
+        assertSame(a1, mQueue.poll());
+    }
+
+    @Test public void admitRejectsNewestWhenFull() throws Exception {
+        mQueue.setCapacity(1);
+        MockRequest first = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest second = newRequest("http://a.com/2", Priority.HIGH);
+        assertNull(mQueue.admit(first, RequestQueue.QueueFullPolicy.REJECT_NEWEST, 0));
+        assertSame(second, mQueue.admit(second, RequestQueue.QueueFullPolicy.REJECT_NEWEST, 0));
+        assertEquals(1, mQueue.size());
+        assertEquals(1, mQueue.getPeakSize());
+    }
+
+    @Test public void admitDropsLowestPriorityWhenFull() throws Exception {
+        mQueue.setCapacity(2);
+        RequestQueue.QueueFullPolicy policy = RequestQueue.QueueFullPolicy.DROP_LOWEST_PRIORITY;
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest normal = newRequest("http://b.com/1", Priority.NORMAL);
+        MockRequest high = newRequest("http://a.com/2", Priority.HIGH);
+        MockRequest lower = newRequest("http://a.com/3", Priority.LOW);
+        assertNull(mQueue.admit(low, policy, 0));
+        assertNull(mQueue.admit(normal, policy, 0));
+        assertSame(low, mQueue.admit(high, policy, 0));
+        assertSame(lower, mQueue.admit(lower, policy, 0));
+        assertSame(high, mQueue.take());
+        assertSame(normal, mQueue.take());
+        assertEquals(2, mQueue.getPeakSize());
+    }
+
+    @Test public void admitBlocksUntilTimeout() throws Exception {
+        mQueue.setCapacity(1);
+        mQueue.add(newRequest("http://a.com/1", Priority.NORMAL));
+        MockRequest request = newRequest("http://a.com/2", Priority.NORMAL);
+        assertSame(request, mQueue.admit(request, RequestQueue.QueueFullPolicy.BLOCK, 10));
+        mQueue.take();
+        assertNull(mQueue.admit(request, RequestQueue.QueueFullPolicy.BLOCK, 10));
+    }
+
+    @Test public void delayedRequestsWaitAside() throws Exception {
+        MockRequest delayed = newRequest("http://a.com/1", Priority.HIGH);
+        MockRequest ready = newRequest("http://a.com/2", Priority.LOW);
+        mQueue.offerDelayed(delayed, 60000);
+        mQueue.offerDelayed(ready, 0);
+        assertEquals(1, mQueue.size());
+        assertEquals(1, mQueue.getDelayedCount());
+        assertSame(ready, mQueue.poll());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+
+        // Canceling a delayed request removes it.
+        assertEquals(1, mQueue.removeRequests(
+                Collections.<Request<?>>singletonList(delayed)).size());
+        assertEquals(0, mQueue.getDelayedCount());
+    }
+
+    @Test public void pausedHostIsSkipped() throws Exception {
+        MockRequest paused = newRequest("http://a.com/1", Priority.HIGH);
+        MockRequest other = newRequest("http://b.com/1", Priority.LOW);
+        mQueue.add(paused);
+        mQueue.add(other);
+        mQueue.pauseHost("a.com", 60000);
+        assertSame(other, mQueue.poll());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(mQueue.contains(paused));
+    }
+
+    @Test public void prefetchWaitsUntilQueueIsIdle() throws Exception {
+        MockRequest prefetch = newRequest("http://a.com/1", Priority.HIGH);
+        prefetch.setPrefetch(true);
+        MockRequest low = newRequest("http://b.com/1", Priority.LOW);
+        mQueue.add(prefetch);
+        mQueue.add(low);
+
+        // Prefetches go after every other request, and only once nothing is in flight.
+        assertSame(low, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(0, mQueue.getDispatchableCount());
+        mQueue.release(low);
+        assertSame(prefetch, mQueue.poll());
+
+        // A prefetch is held back while any other request is queued, even one which cannot be
+        // taken yet.
+        MockRequest next = newRequest("http://a.com/2", Priority.LOW);
+        next.setPrefetch(true);
+        mQueue.add(next);
+        mQueue.setPrefetchInFlightLimit(2);
+        mQueue.pauseHost("c.com", 60000);
+        mQueue.add(newRequest("http://c.com/1", Priority.LOW));
+        assertTrue(mQueue.hasQueuedNonPrefetch());
+        assertNull(mQueue.poll());
+    }
+
+    @Test public void takeWithMinimumPriorityLeavesOtherRequests() throws Exception {
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest high = newRequest("http://b.com/1", Priority.HIGH);
+        mQueue.add(low);
+        mQueue.add(high);
+        assertSame(high, mQueue.take(Priority.HIGH));
+
+        final Request<?>[] taken = new Request<?>[1];
+        Thread urgentTaker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = mQueue.take(Priority.HIGH);
+                } catch (InterruptedException e) {
+                    // Fall through and fail below.
+                }
+            }
+        };
+        urgentTaker.start();
+        MockRequest immediate = newRequest("http://a.com/2", Priority.IMMEDIATE);
+        mQueue.add(immediate);
+        urgentTaker.join(5000);
+        assertSame(immediate, taken[0]);
+        assertSame(low, mQueue.take());
+    }
+
+    @Test public void inheritPriorityMovesQueuedRequestForward() throws Exception {
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest normal = newRequest("http://a.com/2", Priority.NORMAL);
+        mQueue.add(low);
+        mQueue.add(normal);
+
+        mQueue.inheritPriority(low, Priority.HIGH);
+        assertSame(low, mQueue.take());
+        assertEquals(Priority.HIGH, low.getEffectivePriority());
+
+        // Inheriting never lowers a priority.
+        mQueue.inheritPriority(normal, Priority.LOW);
+        assertEquals(Priority.NORMAL, normal.getEffectivePriority());
+    }
+
+    @Test public void reprioritizeMovesQueuedRequests() throws Exception {
+        MockRequest first = newRequest("http://a.com/1", Priority.NORMAL);
+        MockRequest second = newRequest("http://a.com/2", Priority.NORMAL);
+        MockRequest third = newRequest("http://a.com/3", Priority.NORMAL);
+        MockRequest other = newRequest("http://b.com/1", Priority.NORMAL);
+        MockRequest inFlight = newRequest("http://c.com/1", Priority.NORMAL);
+        mQueue.add(first);
+        mQueue.add(second);
+        mQueue.add(third);
+        mQueue.add(other);
+
+        assertEquals(Collections.singletonList(inFlight), mQueue.reprioritize(
+                Arrays.<Request<?>>asList(first, second, inFlight), Priority.LOW, true));
+        assertEquals(Priority.LOW, inFlight.getEffectivePriority());
+        mQueue.reprioritize(Collections.<Request<?>>singletonList(other), Priority.HIGH, false);
+
+        assertSame(other, mQueue.take());
+        assertSame(third, mQueue.take());
+        assertSame(first, mQueue.take());
+        assertSame(second, mQueue.take());
+    }
+
+    @Test public void schedulerDecidesOrder() throws Exception {
+        MockRequest low = newRequest("http://a.com/1", Priority.LOW);
+        MockRequest high = newRequest("http://b.com/1", Priority.HIGH);
+        mQueue.add(low);
+        mQueue.add(high);
+
+        mQueue.setScheduler(RequestScheduler.fifo());
+        assertSame(low, mQueue.take());
+        mQueue.add(low);
+        mQueue.setScheduler(RequestScheduler.strictPriority());
+        assertSame(high, mQueue.take());
+    }
+
+    @Test public void hostRateLimitHoldsBackRequestsOverBudget() throws Exception {
+        mQueue.setHostRateLimit("*.a.com", new TokenBucket(1, 2, 1));
+        mQueue.add(newRequest("http://x.a.com/1", Priority.NORMAL));
+        mQueue.add(newRequest("http://y.a.com/1", Priority.NORMAL));
+        MockRequest limited = newRequest("http://x.a.com/2", Priority.NORMAL);
+        MockRequest other = newRequest("http://b.com/1", Priority.LOW);
+        mQueue.add(limited);
+        mQueue.add(other);
+
+        assertNotNull(mQueue.poll());
+        assertNotNull(mQueue.poll());
+        // The burst is used up; the limited request waits while other hosts proceed.
+        assertSame(other, mQueue.poll());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.getRateLimitedCount());
+
+        // IMMEDIATE requests may borrow from the burst allowance.
+        MockRequest immediate = newRequest("http://x.a.com/3", Priority.IMMEDIATE);
+        mQueue.add(immediate);
+        assertSame(immediate, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test public void peekHasNoSideEffects() throws Exception {
+        mQueue.setHostRateLimit("a.com", new TokenBucket(1, 1, 0));
+        MockRequest first = newRequest("http://a.com/1", Priority.NORMAL);
+        MockRequest limited = newRequest("http://a.com/2", Priority.NORMAL);
+        mQueue.add(first);
+        mQueue.add(limited);
+        assertSame(first, mQueue.poll());
+
+        // Peeking at a request held back by its rate limit does not count it as rate limited.
+        assertNull(mQueue.peek());
+        assertEquals(0, mQueue.getHeadWaitTimeMs());
+        assertEquals(0, mQueue.getRateLimitedCount());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.getRateLimitedCount());
+
+        // Nor does it move a request whose delay has passed into the queue.
+        MockRequest delayed = newRequest("http://b.com/1", Priority.NORMAL);
+        mQueue.offerDelayed(delayed, 1);
+        Thread.sleep(10);
+        assertNull(mQueue.peek());
+        assertEquals(1, mQueue.getDelayedCount());
+        assertSame(delayed, mQueue.poll());
+    }
+
+    @Test public void tagRateLimitAppliesAcrossHosts() throws Exception {
+        Object tag = new Object();
+        mQueue.setTagRateLimit(tag, new TokenBucket(1, 1, 0));
+        MockRequest first = newRequest("http://a.com/1", Priority.NORMAL);
+        first.setTag(tag);
+        MockRequest second = newRequest("http://b.com/1", Priority.NORMAL);
+        second.setTag(tag);
+        mQueue.add(first);
+        mQueue.add(second);
+
+        assertSame(first, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test public void tagRateLimitOnlyHoldsBackThatTagOnTheSameHost() throws Exception {
+        Object tag = new Object();
+        Object otherTag = new Object();
+        mQueue.setTagRateLimit(tag, new TokenBucket(1, 1, 0));
+        MockRequest first = newRequest("http://a.com/1", Priority.HIGH);
+        first.setTag(tag);
+        MockRequest second = newRequest("http://a.com/2", Priority.HIGH);
+        second.setTag(tag);
+        MockRequest untagged = newRequest("http://a.com/3", Priority.NORMAL);
+        MockRequest other = newRequest("http://a.com/4", Priority.NORMAL);
+        other.setTag(otherTag);
+        mQueue.add(first);
+        mQueue.add(second);
+        mQueue.add(untagged);
+        mQueue.add(other);
+
+        assertSame(first, mQueue.poll());
+        // The second tagged request is over its limit, but the rest of the host is not.
+        assertSame(untagged, mQueue.poll());
+        assertSame(other, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares blocking dispatch on 4, 16 and 64 platform threads with executor dispatch on virtual
+ * threads, for 1000 concurrent requests which each take 100ms on the network.
+ *
+ * <p>Skipped unless run with {@code -Dvolley.benchmark=true}. Virtual threads are only measured
+ * when the JVM running the tests supports them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NetworkDispatchBenchmark {
+
+    private static final int REQUEST_COUNT = 1000;
+    private static final long NETWORK_LATENCY_MS = 100;
+
+    @Test public void compareDispatchModes() throws Exception {
+        assumeTrue(Boolean.getBoolean("volley.benchmark"));
+        for (int threads : new int[] { 4, 16, 64 }) {
+            System.out.printf("%d platform threads: %d ms%n", threads, run(threads, null));
+        }
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        if (virtualThreads != null) {
+            System.out.printf("virtual threads: %d ms%n", run(1, virtualThreads));
+            virtualThreads.shutdown();
+        } else {
+            System.out.println("virtual threads: not supported by this JVM");
+        }
+    }
+
+    /** Returns the time taken to complete every request, in milliseconds. */
+    private static long run(int threads, ExecutorService executor) throws Exception {
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                try {
+                    Thread.sleep(NETWORK_LATENCY_MS);
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+                return new NetworkResponse(new byte[0]);
+            }
+        };
+        RequestQueue queue = new RequestQueue(
+                new NoCache(), network, threads, new ImmediateResponseDelivery());
+        if (executor != null) {
+            queue.setNetworkExecutor(executor, REQUEST_COUNT);
+        }
+        final CountDownLatch finished = new CountDownLatch(REQUEST_COUNT);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.start();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setShouldCache(false);
+            request.setCacheKey(Integer.toString(i));
+            queue.add(request);
+        }
+        finished.await(10, TimeUnit.MINUTES);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        queue.stop();
+        return elapsedMs;
+    }
+
+    /** Returns a virtual thread per task executor, or null on JVMs without virtual threads. */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -79,6 +79,21 @@ public class NetworkDispatcherTest {
         assertTrue(mDelivery.postError_called);
     }
 
+    @Test public void pastDeadlinePostsErrorWithoutNetwork() throws Exception {
+        MockRequest request = new MockRequest() {
+            @Override
+            public boolean isPastDeadline() {
+                return true;
+            }
+        };
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mNetworkQueue.add(request);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertNull(mNetwork.requestHandled);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.postError_called);
+    }
+
     @Test public void shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
         mNetworkQueue.add(mRequest);
@@ -97,4 +112,15 @@ public class NetworkDispatcherTest {
         assertTrue(Arrays.equals(mCache.entryPut.data, CANNED_DATA));
         assertEquals("bananaphone", mCache.keyPut);
     }
+
+    @Test public void prefetchIsCachedButNotDelivered() throws Exception {
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setCacheKey("bananaphone");
+        mRequest.setPrefetch(true);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mCache.putCalled);
+        assertFalse(mDelivery.postResponse_called);
+        assertFalse(mDelivery.postError_called);
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.MockResponseDelivery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestCoalescerTest {
+
+    private LinkedBlockingQueue<Request<?>> mNetworkQueue;
+    private MockResponseDelivery mDelivery;
+    private RequestCoalescer mCoalescer;
+
+    @Before public void setUp() throws Exception {
+        mNetworkQueue = new LinkedBlockingQueue<>();
+        mDelivery = new MockResponseDelivery();
+        mCoalescer = new RequestCoalescer(mNetworkQueue, mDelivery);
+    }
+
+    @Test public void identicalRequestWaitsAndSharesResponse() throws Exception {
+        MockRequest first = new MockRequest();
+        MockRequest second = new MockRequest();
+        assertFalse(mCoalescer.maybeCoalesce(first));
+        assertTrue(mCoalescer.maybeCoalesce(second));
+
+        Response<?> response = Response.success(new byte[0], null);
+        first.notifyListenerResponseReceived(new NetworkResponse(new byte[0]), response);
+
+        assertTrue(mDelivery.postResponse_called);
+        assertSame(response, mDelivery.responsePosted);
+        assertTrue(second.hasHadResponseDelivered());
+        assertEquals(1, mCoalescer.getCoalescedCount());
+        assertTrue(mNetworkQueue.isEmpty());
+
+        // The key is free again once the response has been shared.
+        assertFalse(mCoalescer.maybeCoalesce(new MockRequest()));
+    }
+
+    @Test public void differentKeysAndMethodsAreNotCoalesced() throws Exception {
+        MockRequest first = new MockRequest();
+        MockRequest other = new MockRequest();
+        other.setCacheKey("other");
+        assertFalse(mCoalescer.maybeCoalesce(first));
+        assertFalse(mCoalescer.maybeCoalesce(other));
+
+        MockRequest post = new MockRequest() {
+            @Override
+            public int getMethod() {
+                return Method.POST;
+            }
+        };
+        assertFalse(mCoalescer.maybeCoalesce(post));
+        assertFalse(mCoalescer.maybeCoalesce(post));
+    }
+
+    @Test public void noUsableResponseSendsNextInLine() throws Exception {
+        MockRequest first = new MockRequest();
+        MockRequest second = new MockRequest();
+        MockRequest third = new MockRequest();
+        mCoalescer.maybeCoalesce(first);
+        mCoalescer.maybeCoalesce(second);
+        mCoalescer.maybeCoalesce(third);
+
+        first.notifyListenerResponseNotUsable();
+        assertSame(second, mNetworkQueue.poll());
+        assertTrue(mNetworkQueue.isEmpty());
+
+        second.notifyListenerResponseReceived(
+                new NetworkResponse(new byte[0]), Response.success(new byte[0], null));
+        assertTrue(third.hasHadResponseDelivered());
+        assertEquals(1, mCoalescer.getCoalescedCount());
+    }
+}
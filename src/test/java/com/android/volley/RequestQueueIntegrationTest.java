@@ -23,6 +23,8 @@ import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.utils.ImmediateResponseDelivery;
 
+import android.os.Process;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -33,9 +35,28 @@ import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -184,4 +205,380 @@ public class RequestQueueIntegrationTest {
         verify(mMockListener, timeout(10000)).onRequestFinished(request);
         queue.stop();
     }
+
+    /** Verify an elastic dispatcher pool grows under load and shrinks back once idle. */
+    @Test public void elasticDispatch_growsUnderLoadAndRetiresWhenIdle() throws Exception {
+        Answer<NetworkResponse> delayAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Thread.sleep(100);
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(delayAnswer);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setElasticNetworkDispatch(3, 100, 1, Long.MAX_VALUE);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        for (int i = 0; i < 6; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i));
+            queue.add(request);
+        }
+
+        verify(mMockListener, timeout(10000).times(6)).onRequestFinished(any(Request.class));
+        assertTrue(queue.getPeakNetworkDispatcherCount() > 1);
+        assertTrue(queue.getPeakNetworkDispatcherCount() <= 3);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getNetworkDispatcherCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, queue.getNetworkDispatcherCount());
+        assertEquals(queue.getNetworkDispatcherSpawnCount(),
+                queue.getNetworkDispatcherRetireCount());
+        queue.stop();
+    }
+
+    @Test public void parallelCacheDispatch_stripesByCacheKeyAndInitializesCacheOnce()
+            throws Exception {
+        Cache cache = mock(Cache.class);
+        Answer<Cache.Entry> delayAnswer = new Answer<Cache.Entry>() {
+            @Override
+            public Cache.Entry answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Thread.sleep(20);
+                return null;
+            }
+        };
+        when(cache.get(any(String.class))).thenAnswer(delayAnswer);
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(mock(NetworkResponse.class));
+
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.setCacheDispatcherCount(4);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        for (int i = 0; i < 8; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i % 4));
+            queue.add(request);
+        }
+
+        verify(mMockListener, timeout(10000).times(8)).onRequestFinished(any(Request.class));
+        verify(cache).initialize();
+        assertEquals(4, queue.getCacheDispatcherCount());
+        for (int i = 0; i < 4; i++) {
+            // Each cache key is handled by the same dispatcher every time.
+            assertEquals(0, queue.getCacheQueueTakenCount(i) % 2);
+        }
+        queue.stop();
+    }
+
+    @Test public void executorDispatch_runsRequestsConcurrentlyOnOneDispatcher() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peakRunning = new AtomicInteger();
+        Answer<NetworkResponse> delayAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                int now = running.incrementAndGet();
+                synchronized (peakRunning) {
+                    peakRunning.set(Math.max(peakRunning.get(), now));
+                }
+                Thread.sleep(100);
+                running.decrementAndGet();
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(delayAnswer);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setNetworkExecutor(executor, 4);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        for (int i = 0; i < 8; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i));
+            queue.add(request);
+        }
+
+        verify(mMockListener, timeout(10000).times(8)).onRequestFinished(any(Request.class));
+        assertTrue(peakRunning.get() > 1);
+        assertTrue(peakRunning.get() <= 4);
+        queue.stop();
+        executor.shutdown();
+    }
+
+    @Test public void reservedDispatch_servesUrgentRequestsWhileSharedDispatcherIsBusy()
+            throws Exception {
+        final CountDownLatch bulkDone = new CountDownLatch(1);
+        Answer<NetworkResponse> bulkAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Request<?> request = (Request<?>) invocationOnMock.getArguments()[0];
+                if (request.getPriority() == Priority.LOW) {
+                    bulkDone.await();
+                }
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(bulkAnswer);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 2, mDelivery);
+        queue.setReservedNetworkDispatchers(1, Priority.HIGH, Process.THREAD_PRIORITY_DEFAULT);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        for (int i = 0; i < 2; i++) {
+            MockRequest bulk = new MockRequest();
+            bulk.setCacheKey("bulk" + i);
+            bulk.setPriority(Priority.LOW);
+            queue.add(bulk);
+        }
+        MockRequest urgent = new MockRequest();
+        urgent.setCacheKey("urgent");
+        urgent.setPriority(Priority.IMMEDIATE);
+        queue.add(urgent);
+
+        // The urgent request is served while the shared dispatcher is stuck on bulk traffic.
+        verify(mMockListener, timeout(10000)).onRequestFinished(urgent);
+        bulkDone.countDown();
+        verify(mMockListener, timeout(10000).times(3)).onRequestFinished(any(Request.class));
+        queue.stop();
+    }
+
+    @Test public void sharedDispatcherPool_servesSeveralQueues() throws Exception {
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(mock(NetworkResponse.class));
+        SharedDispatcherPool pool = new SharedDispatcherPool(1);
+        RequestQueue queue1 = new RequestQueue(new NoCache(), mMockNetwork, 4, mDelivery);
+        RequestQueue queue2 = new RequestQueue(new NoCache(), mMockNetwork, 4, mDelivery);
+        queue1.setSharedDispatcherPool(pool, 1);
+        queue2.setSharedDispatcherPool(pool, 1);
+        queue1.addRequestFinishedListener(mMockListener);
+        queue2.addRequestFinishedListener(mMockListener2);
+        queue1.start();
+        queue2.start();
+        assertEquals(2, pool.getQueueCount());
+
+        MockRequest request1 = new MockRequest();
+        request1.setCacheKey("1");
+        MockRequest request2 = new MockRequest();
+        request2.setCacheKey("2");
+        queue1.add(request1);
+        queue2.add(request2);
+
+        verify(mMockListener, timeout(10000)).onRequestFinished(request1);
+        verify(mMockListener2, timeout(10000)).onRequestFinished(request2);
+        queue1.stop();
+        queue2.stop();
+        assertEquals(0, pool.getQueueCount());
+    }
+
+    @Test public void add_preemptsPrefetchInFlight() throws Exception {
+        final MockRequest prefetch = new MockRequest();
+        prefetch.setCacheKey("prefetch");
+        prefetch.setPrefetch(true);
+        MockRequest foreground = new MockRequest();
+        foreground.setCacheKey("foreground");
+
+        final CountDownLatch prefetchSent = new CountDownLatch(1);
+        Answer<NetworkResponse> prefetchAnswer = new Answer<NetworkResponse>() {
+            private boolean mSent;
+
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                if (mSent) {
+                    return mock(NetworkResponse.class);
+                }
+                mSent = true;
+                prefetchSent.countDown();
+                try {
+                    // A slow transfer, aborted when the dispatcher thread is interrupted.
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    throw new NoConnectionError(new InterruptedIOException());
+                }
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(prefetch)).thenAnswer(prefetchAnswer);
+        when(mMockNetwork.performRequest(foreground)).thenReturn(mock(NetworkResponse.class));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        queue.add(prefetch);
+        assertTrue(prefetchSent.await(1000, TimeUnit.MILLISECONDS));
+
+        // The only dispatcher is busy with the prefetch, which makes way for the new request
+        // and is sent again once it is done.
+        queue.add(foreground);
+        InOrder inOrder = inOrder(mMockListener);
+        inOrder.verify(mMockListener, timeout(1000)).onRequestFinished(foreground);
+        inOrder.verify(mMockListener, timeout(1000)).onRequestFinished(prefetch);
+        verify(mMockNetwork, times(2)).performRequest(prefetch);
+        assertEquals(1, queue.getPreemptedPrefetchCount());
+        queue.stop();
+    }
+
+    @Test public void sharedDispatcherPool_idleWorkersWait() throws Exception {
+        SharedDispatcherPool pool = new SharedDispatcherPool(2);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 4, mDelivery);
+        queue.setSharedDispatcherPool(pool, 1);
+        queue.start();
+
+        // Let the workers find the queues empty and go to sleep.
+        Thread.sleep(100);
+        long emptyScanCount = pool.getEmptyScanCount();
+        Thread.sleep(200);
+        // Workers that kept waking each other up would have scanned many more times.
+        assertTrue(pool.getEmptyScanCount() - emptyScanCount <= 2);
+        queue.stop();
+    }
+
+    @Test public void sharedDispatcherPool_limitsWorkersPerQueue() throws Exception {
+        final CountDownLatch bulkDone = new CountDownLatch(1);
+        Answer<NetworkResponse> bulkAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Request<?> request = (Request<?>) invocationOnMock.getArguments()[0];
+                if (request.getPriority() == Priority.LOW) {
+                    bulkDone.await();
+                }
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(bulkAnswer);
+
+        SharedDispatcherPool pool = new SharedDispatcherPool(2);
+        RequestQueue bulkQueue = new RequestQueue(new NoCache(), mMockNetwork, 4, mDelivery);
+        RequestQueue apiQueue = new RequestQueue(new NoCache(), mMockNetwork, 4, mDelivery);
+        bulkQueue.setSharedDispatcherPool(pool, 1);
+        apiQueue.setSharedDispatcherPool(pool, 2);
+        bulkQueue.addRequestFinishedListener(mMockListener);
+        apiQueue.addRequestFinishedListener(mMockListener2);
+        bulkQueue.start();
+        apiQueue.start();
+        for (int i = 0; i < 2; i++) {
+            MockRequest bulk = new MockRequest();
+            bulk.setCacheKey("bulk" + i);
+            bulk.setPriority(Priority.LOW);
+            bulkQueue.add(bulk);
+        }
+        MockRequest api = new MockRequest();
+        api.setCacheKey("api");
+        apiQueue.add(api);
+
+        // The bulk queue may only occupy one worker, leaving the other to the API queue.
+        verify(mMockListener2, timeout(10000)).onRequestFinished(api);
+        bulkDone.countDown();
+        verify(mMockListener, timeout(10000).times(2)).onRequestFinished(any(Request.class));
+        bulkQueue.stop();
+        apiQueue.stop();
+    }
+
+    @Test public void execute_performsRequestOnCallingThread() throws Exception {
+        final byte[] data = new byte[] { 1, 2, 3 };
+        final AtomicReference<Thread> networkThread = new AtomicReference<>();
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock) {
+                        networkThread.set(Thread.currentThread());
+                        return new NetworkResponse(data);
+                    }
+                });
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+
+        MockRequest request = new MockRequest();
+        Response<byte[]> response = queue.execute(request);
+
+        assertTrue(response.isSuccess());
+        assertArrayEquals(data, response.result);
+        assertSame(Thread.currentThread(), networkThread.get());
+        assertFalse(request.deliverResponse_called);
+        verify(mMockListener).onRequestFinished(request);
+        queue.stop();
+    }
+
+    @Test public void execute_retriesOnCallingThreadWhenAskedToRetryLater() throws Exception {
+        final byte[] data = new byte[] { 1, 2, 3 };
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenThrow(new RetryLaterError(new ServerError(), 10, 0))
+                .thenReturn(new NetworkResponse(data));
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.start();
+
+        Response<byte[]> response = queue.execute(new MockRequest());
+
+        assertTrue(response.isSuccess());
+        assertArrayEquals(data, response.result);
+        verify(mMockNetwork, times(2)).performRequest(any(Request.class));
+        assertEquals(0, queue.getScheduledRetryCount());
+        queue.stop();
+    }
+
+    @Test public void execute_waitsForDuplicateInFlightAndUsesItsResponse() throws Exception {
+        final Map<String, Cache.Entry> entries = new ConcurrentHashMap<>();
+        Cache cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(new Answer<Cache.Entry>() {
+            @Override
+            public Cache.Entry answer(InvocationOnMock invocationOnMock) {
+                return entries.get((String) invocationOnMock.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocationOnMock) {
+                entries.put((String) invocationOnMock.getArguments()[0],
+                        (Cache.Entry) invocationOnMock.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).put(anyString(), any(Cache.Entry.class));
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        inFlight.countDown();
+                        released.await();
+                        return new NetworkResponse(new byte[] { 1 });
+                    }
+                });
+        final RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.start();
+        MockRequest added = new MockRequest();
+        added.setCacheKey("key");
+        queue.add(added);
+        assertTrue(inFlight.await(10, TimeUnit.SECONDS));
+
+        final MockRequest executed = new MockRequest();
+        executed.setCacheKey("key");
+        final AtomicReference<Response<byte[]>> result = new AtomicReference<>();
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.execute(executed));
+                } catch (InterruptedException e) {
+                    // Leaves the result unset.
+                }
+            }
+        };
+        caller.start();
+        caller.join(50);
+        assertTrue(caller.isAlive());
+
+        // The executed request is answered from the cache once the added one has finished.
+        released.countDown();
+        caller.join(10000);
+        assertTrue(result.get().isSuccess());
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        queue.stop();
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.utils.ImmediateResponseDelivery;
@@ -26,6 +27,11 @@ import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -69,4 +75,201 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test public void cancelAll_removesQueuedRequestsAndFinishesThem() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        RequestQueue.RequestFinishedListener listener =
+                mock(RequestQueue.RequestFinishedListener.class);
+        queue.addRequestFinishedListener(listener);
+        Object tag = new Object();
+        MockRequest cached = new MockRequest();
+        cached.setTag(tag);
+        MockRequest uncached = new MockRequest();
+        uncached.setShouldCache(false);
+        uncached.setTag(tag);
+        MockRequest other = new MockRequest();
+        other.setTag(new Object());
+
+        queue.add(cached);
+        queue.add(uncached);
+        queue.add(other);
+        // The queue is not started, so all three are still waiting.
+        queue.cancelAll(tag);
+
+        assertTrue(cached.isCanceled());
+        assertTrue(uncached.isCanceled());
+        assertFalse(other.isCanceled());
+        verify(listener).onRequestFinished(cached);
+        verify(listener).onRequestFinished(uncached);
+        verify(listener, never()).onRequestFinished(other);
+
+        // Requests added later with the same tag are indexed afresh.
+        MockRequest later = new MockRequest();
+        later.setTag(tag);
+        queue.add(later);
+        queue.cancelAll(tag);
+        verify(listener).onRequestFinished(later);
+    }
+
+    @Test public void cancelAll_findsRequestsTaggedAfterAdd() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object oldTag = new Object();
+        Object newTag = new Object();
+        MockRequest untagged = new MockRequest();
+        MockRequest retagged = new MockRequest();
+        retagged.setTag(oldTag);
+
+        queue.add(untagged);
+        queue.add(retagged);
+        untagged.setTag(newTag);
+        retagged.setTag(newTag);
+
+        queue.cancelAll(oldTag);
+        assertFalse(retagged.isCanceled());
+        queue.cancelAll(newTag);
+        assertTrue(untagged.isCanceled());
+        assertTrue(retagged.isCanceled());
+    }
+
+    @Test public void reprioritizeAll_movesTaggedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tag = new Object();
+        MockRequest first = new MockRequest();
+        first.setTag(tag);
+        MockRequest second = new MockRequest();
+        MockRequest third = new MockRequest();
+        third.setTag(tag);
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        queue.reprioritizeAll(tag, Request.Priority.LOW);
+        queue.reprioritize(third, Request.Priority.IMMEDIATE);
+
+        // The queue is not started, so all three are still waiting in the cache queue.
+        assertEquals(Request.Priority.LOW, first.getEffectivePriority());
+        assertEquals(Request.Priority.NORMAL, second.getEffectivePriority());
+        assertEquals(Request.Priority.IMMEDIATE, third.getEffectivePriority());
+    }
+
+    @Test public void addAll_sequencesTagsAndNotifiesGroup() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        RequestQueue.RequestGroupFinishedListener listener =
+                mock(RequestQueue.RequestGroupFinishedListener.class);
+        Object tag = new Object();
+        MockRequest first = new MockRequest();
+        MockRequest second = new MockRequest();
+        second.setShouldCache(false);
+        MockRequest third = new MockRequest();
+
+        queue.addAll(Arrays.asList(first, second, third), tag, listener);
+        assertSame(tag, first.getTag());
+        assertSame(tag, third.getTag());
+        assertEquals(first.getSequence() + 1, second.getSequence());
+        assertEquals(second.getSequence() + 1, third.getSequence());
+
+        first.finish("done");
+        second.finish("done");
+        verify(listener, never()).onRequestGroupFinished(anyList());
+        third.finish("done");
+        verify(listener).onRequestGroupFinished(
+                Arrays.<Request<?>>asList(first, second, third));
+
+        // The shared tag cancels nothing once the whole group has finished.
+        queue.cancelAll(tag);
+        assertFalse(first.isCanceled());
+    }
+
+    @Test public void drainAndStop_waitsForCurrentRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        MockRequest current = new MockRequest();
+        queue.add(current);
+        final CountDownLatch drained = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        queue.drainAndStop(10000, new RequestQueue.DrainListener() {
+            @Override
+            public void onDrained(boolean completed) {
+                result.set(completed);
+                drained.countDown();
+            }
+        });
+        assertTrue(queue.isDraining());
+
+        MockRequest late = new MockRequest();
+        queue.add(late);
+        assertTrue(late.deliverError_called);
+
+        assertFalse(drained.await(50, TimeUnit.MILLISECONDS));
+        current.finish("done");
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+        assertTrue(result.get());
+        assertFalse(current.isCanceled());
+        assertFalse(queue.isDraining());
+    }
+
+    @Test public void drainAndStop_cancelsRemainingRequestsAtTimeout() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        MockRequest stuck = new MockRequest();
+        queue.add(stuck);
+        final CountDownLatch drained = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(true);
+        queue.drainAndStop(10, new RequestQueue.DrainListener() {
+            @Override
+            public void onDrained(boolean completed) {
+                result.set(completed);
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+        assertFalse(result.get());
+        assertTrue(stuck.isCanceled());
+    }
+
+    @Test public void setCacheDispatcherCount_failsOnceStarted() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.setCacheDispatcherCount(2);
+        queue.start();
+        try {
+            queue.setCacheDispatcherCount(4);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        queue.stop();
+        queue.setCacheDispatcherCount(4);
+    }
+
+    @Test public void startLazily_startsWhenFirstRequestIsAdded() throws Exception {
+        Cache cache = mock(Cache.class);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 0, mDelivery);
+        final CountDownLatch warmedUp = new CountDownLatch(1);
+        queue.startLazily(new Runnable() {
+            @Override
+            public void run() {
+                warmedUp.countDown();
+            }
+        });
+        assertFalse(warmedUp.await(50, TimeUnit.MILLISECONDS));
+        verify(cache, never()).initialize();
+        assertEquals(-1, queue.getCacheInitializationTimeMs());
+        assertEquals(-1, queue.getDispatcherStartupTimeMs());
+
+        queue.add(new MockRequest());
+        assertTrue(queue.getDispatcherStartupTimeMs() >= 0);
+        verify(cache, timeout(10000)).initialize();
+        assertTrue(warmedUp.await(10, TimeUnit.SECONDS));
+        queue.stop();
+    }
+
+    @Test public void warm_startsPendingQueueInBackground() throws Exception {
+        Cache cache = mock(Cache.class);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 0, mDelivery);
+        queue.warm();
+        queue.startLazily(null);
+        verify(cache, never()).initialize();
+
+        queue.warm();
+        verify(cache, timeout(10000)).initialize();
+        queue.stop();
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest {
+
+    @Test public void refillsAtRateUpToBurst() {
+        TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertEquals(0, bucket.getWaitMs(0, false));
+        bucket.take(0);
+        bucket.take(0);
+        assertEquals(100, bucket.getWaitMs(0, false));
+        assertEquals(50, bucket.getWaitMs(50, false));
+        assertEquals(0, bucket.getWaitMs(100, false));
+        // Saved-up tokens are capped at the burst.
+        bucket.take(10000);
+        bucket.take(10000);
+        assertEquals(100, bucket.getWaitMs(10000, false));
+    }
+
+    @Test public void immediateRequestsBorrow() {
+        TokenBucket bucket = new TokenBucket(10, 1, 2);
+        bucket.take(0);
+        assertEquals(0, bucket.getWaitMs(0, true));
+        bucket.take(0);
+        assertEquals(0, bucket.getWaitMs(0, true));
+        bucket.take(0);
+        assertEquals(100, bucket.getWaitMs(0, true));
+        // Borrowed tokens are paid back before other requests proceed.
+        assertEquals(300, bucket.getWaitMs(0, false));
+    }
+}
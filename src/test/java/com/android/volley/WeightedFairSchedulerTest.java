@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class WeightedFairSchedulerTest {
+
+    private DispatchQueue mQueue;
+    private WeightedFairScheduler mScheduler;
+    private int mSequence;
+
+    @Before public void setUp() throws Exception {
+        mScheduler = new WeightedFairScheduler(new WeightedFairScheduler.TrafficClassifier() {
+            @Override
+            public String classify(Request<?> request) {
+                return (String) request.getTag();
+            }
+        });
+        mScheduler.setWeight("api", 3);
+        mQueue = new DispatchQueue(true);
+        mQueue.setScheduler(mScheduler);
+    }
+
+    private MockRequest newRequest(String trafficClass, Priority priority) {
+        MockRequest request = new MockRequest("http://" + trafficClass + ".com/", null);
+        request.setTag(trafficClass);
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    @Test public void sharesDispatchByWeight() throws Exception {
+        // A flood of analytics queued first does not hold back API calls.
+        for (int i = 0; i < 8; i++) {
+            mQueue.add(newRequest("analytics", Priority.HIGH));
+        }
+        for (int i = 0; i < 8; i++) {
+            mQueue.add(newRequest("api", Priority.LOW));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            mQueue.release(mQueue.take());
+        }
+        assertEquals(6, mScheduler.getTakenCount("api"));
+        assertEquals(2, mScheduler.getTakenCount("analytics"));
+        assertEquals(2, mScheduler.getQueuedCount("api"));
+        assertEquals(6, mScheduler.getQueuedCount("analytics"));
+    }
+
+    @Test public void idleClassDoesNotSaveUpItsShare() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            mQueue.add(newRequest("analytics", Priority.NORMAL));
+        }
+        for (int i = 0; i < 4; i++) {
+            mQueue.release(mQueue.take());
+        }
+        // API calls arriving now get their share from now on, not a burst for the time they
+        // had nothing queued.
+        MockRequest analytics = newRequest("analytics", Priority.NORMAL);
+        mQueue.add(analytics);
+        for (int i = 0; i < 4; i++) {
+            mQueue.add(newRequest("api", Priority.NORMAL));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("api", mQueue.take().getTag());
+        }
+        assertSame(analytics, mQueue.take());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWeightAboveMaximum() throws Exception {
+        // A larger weight would give the class's requests no cost at all.
+        mScheduler.setWeight("api", WeightedFairScheduler.MAX_WEIGHT + 1);
+    }
+
+    @Test public void removedRequestsAreForgotten() throws Exception {
+        MockRequest request = newRequest("api", Priority.NORMAL);
+        mQueue.add(request);
+        mQueue.removeRequests(Collections.<Request<?>>singletonList(request));
+        assertEquals(0, mScheduler.getQueuedCount("api"));
+        assertEquals(0, mScheduler.getTakenCount("api"));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.mock;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.AsyncHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+
+/** Completes each request immediately with the next queued response or exception. */
+public class MockAsyncHttpStack extends AsyncHttpStack {
+
+    private final Queue<Object> mResults = new ArrayDeque<>();
+
+    private int mRequestCount;
+
+    public void addResponse(HttpResponse response) {
+        mResults.add(response);
+    }
+
+    public void addException(IOException exception) {
+        mResults.add(exception);
+    }
+
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    @Override
+    public void executeRequest(Request<?> request, Map<String, String> additionalHeaders,
+            OnRequestComplete callback) {
+        mRequestCount++;
+        Object result = mResults.remove();
+        if (result instanceof IOException) {
+            callback.onError((IOException) result);
+        } else {
+            callback.onSuccess((HttpResponse) result);
+        }
+    }
+}
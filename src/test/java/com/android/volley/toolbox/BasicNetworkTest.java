@@ -16,16 +16,23 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.AsyncNetwork;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache.Entry;
+import com.android.volley.CircuitOpenError;
+import com.android.volley.ClientError;
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Header;
 import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.RetryLaterError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
+import com.android.volley.mock.MockAsyncHttpStack;
 import com.android.volley.mock.MockHttpStack;
 
 import org.junit.Before;
@@ -48,6 +55,8 @@ import java.util.Map;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -172,6 +181,82 @@ public class BasicNetworkTest {
         verify(mMockRetryPolicy).retry(any(TimeoutError.class));
     }
 
+    @Test public void asyncRetriesSocketTimeoutThenSucceeds() throws Exception {
+        MockAsyncHttpStack mockHttpStack = new MockAsyncHttpStack();
+        mockHttpStack.addException(new SocketTimeoutException());
+        mockHttpStack.addResponse(new HttpResponse(200, Collections.<Header>emptyList(), 6,
+                new ByteArrayInputStream("foobar".getBytes())));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        final NetworkResponse[] result = new NetworkResponse[1];
+        httpNetwork.performRequest(request, new AsyncNetwork.OnRequestComplete() {
+            @Override
+            public void onSuccess(NetworkResponse networkResponse) {
+                result[0] = networkResponse;
+            }
+
+            @Override
+            public void onError(VolleyError volleyError) {
+                fail();
+            }
+        });
+        verify(mMockRetryPolicy).retry(any(TimeoutError.class));
+        assertEquals(2, mockHttpStack.getRequestCount());
+        assertEquals("foobar", new String(result[0].data));
+    }
+
+    @Test public void asyncServerErrorNotRetried() throws Exception {
+        MockAsyncHttpStack mockHttpStack = new MockAsyncHttpStack();
+        mockHttpStack.addResponse(new HttpResponse(500, Collections.<Header>emptyList(), 0,
+                new ByteArrayInputStream(new byte[0])));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        final VolleyError[] result = new VolleyError[1];
+        httpNetwork.performRequest(request, new AsyncNetwork.OnRequestComplete() {
+            @Override
+            public void onSuccess(NetworkResponse networkResponse) {
+                fail();
+            }
+
+            @Override
+            public void onError(VolleyError volleyError) {
+                result[0] = volleyError;
+            }
+        });
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+        assertTrue(result[0] instanceof ServerError);
+    }
+
+    @Test public void asyncUnexpectedExceptionIsReportedToCallback() throws Exception {
+        MockAsyncHttpStack mockHttpStack = new MockAsyncHttpStack();
+        final IllegalStateException failure = new IllegalStateException("broken stream");
+        InputStream brokenStream = new InputStream() {
+            @Override
+            public int read() {
+                throw failure;
+            }
+        };
+        mockHttpStack.addResponse(
+                new HttpResponse(200, Collections.<Header>emptyList(), 6, brokenStream));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        final VolleyError[] result = new VolleyError[1];
+        httpNetwork.performRequest(buildRequest(), new AsyncNetwork.OnRequestComplete() {
+            @Override
+            public void onSuccess(NetworkResponse networkResponse) {
+                fail();
+            }
+
+            @Override
+            public void onError(VolleyError volleyError) {
+                result[0] = volleyError;
+            }
+        });
+        assertTrue(result[0] != null);
+        assertTrue(result[0].getCause() == failure);
+    }
+
     @Test public void noConnection() throws Exception {
         MockHttpStack mockHttpStack = new MockHttpStack();
         mockHttpStack.setExceptionToThrow(new IOException());
@@ -308,8 +393,137 @@ public class BasicNetworkTest {
         }
     }
 
+    @Test public void circuitBreakerFailsFastOnceOpen() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new IOException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 2, 0.5, 1.0, 60000);
+        httpNetwork.setCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 2; i++) {
+            try {
+                httpNetwork.performRequest(buildRequest());
+                fail();
+            } catch (NoConnectionError e) {
+                // expected
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("foo"));
+
+        // The stack would now succeed, but the circuit is open.
+        mockHttpStack.setExceptionToThrow(null);
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, Collections.<Header>emptyList(), 0, null));
+        try {
+            httpNetwork.performRequest(buildRequest());
+            fail();
+        } catch (CircuitOpenError e) {
+            // expected
+        }
+        assertEquals(null, mockHttpStack.getLastUrl());
+    }
+
+    @Test public void circuitBreakerIgnoresHostCase() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new IOException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 2, 0.5, 1.0, 60000);
+        httpNetwork.setCircuitBreaker(circuitBreaker);
+        String[] urls = {"http://FOO/a", "http://Foo/b"};
+        for (String url : urls) {
+            try {
+                httpNetwork.performRequest(buildRequest(url));
+                fail();
+            } catch (NoConnectionError e) {
+                // expected
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("foo"));
+    }
+
+    @Test public void retryBackoffSchedulesRetries() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new SocketTimeoutException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        httpNetwork.setRetryBackoff(100, 1000);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 2, 1));
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (RetryLaterError e) {
+            assertTrue(e.getError() instanceof TimeoutError);
+            assertTrue(e.getDelayMs() >= 50 && e.getDelayMs() <= 100);
+        }
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (RetryLaterError e) {
+            assertTrue(e.getDelayMs() >= 100 && e.getDelayMs() <= 200);
+        }
+        // Out of retries.
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (TimeoutError e) {
+            // expected
+        }
+    }
+
+    @Test public void retryBackoffStaysWithinMaxDelayAfterManyRetries() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new SocketTimeoutException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        httpNetwork.setRetryBackoff(100, Long.MAX_VALUE / 3);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 100, 1));
+        long lastDelayMs = 0;
+        for (int i = 0; i < 100; i++) {
+            try {
+                httpNetwork.performRequest(request);
+                fail();
+            } catch (RetryLaterError e) {
+                assertTrue(e.getDelayMs() > 0);
+                assertTrue(e.getDelayMs() <= Long.MAX_VALUE / 3);
+                lastDelayMs = e.getDelayMs();
+            }
+        }
+        assertTrue(lastDelayMs >= Long.MAX_VALUE / 6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void retryBackoffRejectsNegativeDelay() {
+        new BasicNetwork(new MockHttpStack()).setRetryBackoff(-1, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void retryBackoffRejectsMaxDelayBelowInitialDelay() {
+        new BasicNetwork(new MockHttpStack()).setRetryBackoff(1000, 100);
+    }
+
+    @Test public void retryBackoffHonorsRetryAfter() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        List<Header> headers = new ArrayList<>();
+        headers.add(new Header("Retry-After", "5"));
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(429, headers, 0, new ByteArrayInputStream(new byte[0])));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        httpNetwork.setRetryBackoff(100, 1000);
+        try {
+            httpNetwork.performRequest(buildRequest());
+            fail();
+        } catch (RetryLaterError e) {
+            assertTrue(e.getError() instanceof ClientError);
+            assertEquals(5000, e.getRetryAfterMs());
+            assertEquals(5000, e.getDelayMs());
+        }
+    }
+
     private static Request<String> buildRequest() {
-        return new Request<String>(Request.Method.GET, "http://foo", null) {
+        return buildRequest("http://foo");
+    }
+
+    private static Request<String> buildRequest(String url) {
+        return new Request<String>(Request.Method.GET, url, null) {
 
             @Override
             protected Response<String> parseNetworkResponse(NetworkResponse response) {
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.ClientError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchingNetworkTest {
+
+    /** Packs the cache keys of the calls, one per line; each line of the response is a body. */
+    private static class LineEncoder implements BatchEncoder {
+        @Override
+        public String getBatchKey(Request<?> request) {
+            return request.getMethod() == Request.Method.GET ? "api" : null;
+        }
+
+        @Override
+        public BatchRequest encode(String batchKey, List<Request<?>> calls) {
+            StringBuilder body = new StringBuilder();
+            for (Request<?> call : calls) {
+                body.append(call.getCacheKey()).append('\n');
+            }
+            return new BatchRequest("http://api.com/batch", calls,
+                    Collections.<String, String>emptyMap(), "text/plain",
+                    body.toString().getBytes());
+        }
+
+        @Override
+        public List<NetworkResponse> decode(BatchRequest batch, NetworkResponse response) {
+            List<NetworkResponse> responses = new ArrayList<>();
+            for (String line : new String(response.data).split("\n")) {
+                int statusCode = line.startsWith("missing") ? 404 : 200;
+                responses.add(new NetworkResponse(statusCode, line.getBytes(),
+                        Collections.<String, String>emptyMap(), false));
+            }
+            return responses;
+        }
+    }
+
+    /** Answers batch requests with their own body, and other requests with their cache key. */
+    private static class EchoNetwork implements Network {
+        final List<Request<?>> requests = Collections.synchronizedList(new ArrayList<Request<?>>());
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            requests.add(request);
+            if (request instanceof BatchRequest) {
+                return new NetworkResponse(request.getBody());
+            }
+            return new NetworkResponse(request.getCacheKey().getBytes());
+        }
+    }
+
+    private static MockRequest newRequest(String cacheKey) {
+        MockRequest request = new MockRequest();
+        request.setCacheKey(cacheKey);
+        return request;
+    }
+
+    @Test public void packsConcurrentRequestsIntoOneBatch() throws Exception {
+        EchoNetwork network = new EchoNetwork();
+        final BatchingNetwork batchingNetwork =
+                new BatchingNetwork(network, new LineEncoder(), 10000, 3);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<NetworkResponse>> futures = new ArrayList<>();
+        for (final String key : new String[] { "a", "b", "missing" }) {
+            futures.add(executor.submit(new Callable<NetworkResponse>() {
+                @Override
+                public NetworkResponse call() throws Exception {
+                    return batchingNetwork.performRequest(newRequest(key));
+                }
+            }));
+        }
+
+        List<String> bodies = new ArrayList<>();
+        int failures = 0;
+        for (Future<NetworkResponse> future : futures) {
+            try {
+                bodies.add(new String(future.get(10, TimeUnit.SECONDS).data));
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ClientError);
+                failures++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(1, network.requests.size());
+        assertTrue(network.requests.get(0) instanceof BatchRequest);
+        assertTrue(bodies.contains("a"));
+        assertTrue(bodies.contains("b"));
+        assertEquals(1, failures);
+        assertEquals(1, batchingNetwork.getBatchCount());
+        assertEquals(3, batchingNetwork.getBatchedRequestCount());
+        assertEquals(2, batchingNetwork.getRoundTripsSaved());
+    }
+
+    /** Collects the outcomes of asynchronous requests. */
+    private static class Callbacks {
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        final List<VolleyError> errors =
+                Collections.synchronizedList(new ArrayList<VolleyError>());
+        final CountDownLatch done;
+
+        Callbacks(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        AsyncNetwork.OnRequestComplete newCallback() {
+            return new AsyncNetwork.OnRequestComplete() {
+                @Override
+                public void onSuccess(NetworkResponse networkResponse) {
+                    bodies.add(new String(networkResponse.data));
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(VolleyError volleyError) {
+                    errors.add(volleyError);
+                    done.countDown();
+                }
+            };
+        }
+    }
+
+    @Test public void asyncRequestsFillBatchWithoutBlockingTheCaller() throws Exception {
+        EchoNetwork network = new EchoNetwork();
+        BatchingNetwork batchingNetwork =
+                new BatchingNetwork(network, new LineEncoder(), 10000, 6);
+        Callbacks callbacks = new Callbacks(6);
+        // More requests than the default number of dispatchers, all from one thread.
+        for (String key : new String[] { "a", "b", "c", "d", "e", "missing" }) {
+            batchingNetwork.performRequest(newRequest(key), callbacks.newCallback());
+        }
+
+        assertTrue(callbacks.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, network.requests.size());
+        assertTrue(network.requests.get(0) instanceof BatchRequest);
+        assertEquals(5, callbacks.bodies.size());
+        assertTrue(callbacks.bodies.contains("e"));
+        assertEquals(1, callbacks.errors.size());
+        assertTrue(callbacks.errors.get(0) instanceof ClientError);
+        assertEquals(6, batchingNetwork.getBatchedRequestCount());
+    }
+
+    @Test public void asyncBatchIsSentWhenWindowEnds() throws Exception {
+        EchoNetwork network = new EchoNetwork();
+        BatchingNetwork batchingNetwork = new BatchingNetwork(network, new LineEncoder(), 200, 10);
+        Callbacks callbacks = new Callbacks(2);
+        batchingNetwork.performRequest(newRequest("a"), callbacks.newCallback());
+        batchingNetwork.performRequest(newRequest("b"), callbacks.newCallback());
+
+        assertTrue(callbacks.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, network.requests.size());
+        assertTrue(callbacks.bodies.contains("a"));
+        assertTrue(callbacks.bodies.contains("b"));
+        assertEquals(1, batchingNetwork.getBatchCount());
+    }
+
+    @Test public void asyncCallbackGetsUnexpectedExceptionOfLoneRequest() throws Exception {
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                throw new RuntimeException("Bad URL");
+            }
+        };
+        BatchingNetwork batchingNetwork = new BatchingNetwork(network, new LineEncoder(), 10, 10);
+        Callbacks callbacks = new Callbacks(1);
+        batchingNetwork.performRequest(newRequest("a"), callbacks.newCallback());
+
+        assertTrue(callbacks.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, callbacks.errors.size());
+        assertEquals("Bad URL", callbacks.errors.get(0).getCause().getMessage());
+    }
+
+    @Test public void sendsLoneRequestOnItsOwnAfterWindow() throws Exception {
+        EchoNetwork network = new EchoNetwork();
+        BatchingNetwork batchingNetwork = new BatchingNetwork(network, new LineEncoder(), 10, 3);
+        MockRequest request = newRequest("a");
+
+        assertArrayEquals("a".getBytes(), batchingNetwork.performRequest(request).data);
+        assertEquals(1, network.requests.size());
+        assertSame(request, network.requests.get(0));
+        assertEquals(0, batchingNetwork.getBatchCount());
+    }
+
+    @Test public void sendsUnbatchableRequestDirectly() throws Exception {
+        EchoNetwork network = new EchoNetwork();
+        BatchingNetwork batchingNetwork =
+                new BatchingNetwork(network, new LineEncoder(), 10000, 3);
+        MockRequest request = new MockRequest("http://api.com/post", null) {
+            @Override
+            public int getMethod() {
+                return Method.POST;
+            }
+        };
+
+        batchingNetwork.performRequest(request);
+        assertSame(request, network.requests.get(0));
+    }
+
+    @Test public void propagatesNetworkError() throws Exception {
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                throw new VolleyError("down");
+            }
+        };
+        BatchingNetwork batchingNetwork = new BatchingNetwork(network, new LineEncoder(), 10, 1);
+        try {
+            batchingNetwork.performRequest(newRequest("a"));
+            fail("Expected VolleyError");
+        } catch (VolleyError e) {
+            assertEquals("down", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.toolbox.CircuitBreaker.State;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CircuitBreakerTest {
+
+    private final List<State> mTransitions = new ArrayList<>();
+
+    private CircuitBreaker newCircuitBreaker(long openDurationMs) {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(4, 4, 0.5, 0.25, openDurationMs);
+        circuitBreaker.setStateListener(new CircuitBreaker.StateListener() {
+            @Override
+            public void onStateChanged(String host, State previous, State current) {
+                mTransitions.add(current);
+            }
+        });
+        return circuitBreaker;
+    }
+
+    @Before public void setUp() {
+        mTransitions.clear();
+    }
+
+    @Test public void opensOnFailureRate() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(60000);
+        circuitBreaker.onSuccess("a.com");
+        circuitBreaker.onSuccess("a.com");
+        circuitBreaker.onFailure("a.com", false);
+        assertEquals(State.CLOSED, circuitBreaker.getState("a.com"));
+        circuitBreaker.onFailure("a.com", false);
+        assertEquals(State.OPEN, circuitBreaker.getState("a.com"));
+        assertFalse(circuitBreaker.allowAttempt("a.com"));
+        // Other hosts are unaffected.
+        assertTrue(circuitBreaker.allowAttempt("b.com"));
+    }
+
+    @Test public void opensOnTimeoutRate() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(60000);
+        circuitBreaker.onSuccess("a.com");
+        circuitBreaker.onSuccess("a.com");
+        circuitBreaker.onSuccess("a.com");
+        circuitBreaker.onFailure("a.com", true);
+        assertEquals(State.OPEN, circuitBreaker.getState("a.com"));
+    }
+
+    @Test public void slidingWindowForgetsOldFailures() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(60000);
+        circuitBreaker.onFailure("a.com", false);
+        for (int i = 0; i < 6; i++) {
+            circuitBreaker.onSuccess("a.com");
+        }
+        circuitBreaker.onFailure("a.com", false);
+        assertEquals(State.CLOSED, circuitBreaker.getState("a.com"));
+    }
+
+    @Test public void probeClosesOrReopensCircuit() {
+        CircuitBreaker circuitBreaker = newCircuitBreaker(0);
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onFailure("a.com", false);
+        }
+        assertTrue(circuitBreaker.allowAttempt("a.com"));
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState("a.com"));
+        circuitBreaker.onFailure("a.com", false);
+        assertEquals(State.OPEN, circuitBreaker.getState("a.com"));
+
+        assertTrue(circuitBreaker.allowAttempt("a.com"));
+        circuitBreaker.onSuccess("a.com");
+        assertEquals(State.CLOSED, circuitBreaker.getState("a.com"));
+        assertEquals(Arrays.asList(State.OPEN, State.HALF_OPEN, State.OPEN, State.HALF_OPEN,
+                State.CLOSED), mTransitions);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class HedgingNetworkTest {
+
+    /** Stalls on its first call until interrupted, then answers each call immediately. */
+    private static class StallingNetwork implements Network {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch stallInterrupted = new CountDownLatch(1);
+        final long stallMs;
+
+        StallingNetwork(long stallMs) {
+            this.stallMs = stallMs;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                try {
+                    Thread.sleep(stallMs);
+                } catch (InterruptedException e) {
+                    stallInterrupted.countDown();
+                    throw new VolleyError(e);
+                }
+            }
+            return new NetworkResponse(Integer.toString(call).getBytes());
+        }
+    }
+
+    @Test public void hedgeWinsOverStalledAttempt() throws Exception {
+        StallingNetwork network = new StallingNetwork(10000);
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 10, 1.0);
+
+        NetworkResponse response = hedgingNetwork.performRequest(new MockRequest());
+
+        assertArrayEquals("2".getBytes(), response.data);
+        assertEquals(1, hedgingNetwork.getHedgeCount());
+        assertEquals(1, hedgingNetwork.getHedgeWinCount());
+        // The stalled attempt is cancelled.
+        assertTrue(network.stallInterrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test public void noHedgeWithoutBudget() throws Exception {
+        StallingNetwork network = new StallingNetwork(50);
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 10, 0);
+
+        NetworkResponse response = hedgingNetwork.performRequest(new MockRequest());
+
+        assertArrayEquals("1".getBytes(), response.data);
+        assertEquals(1, network.calls.get());
+        assertEquals(0, hedgingNetwork.getHedgeCount());
+    }
+
+    @Test public void onlyGetsAreHedged() throws Exception {
+        StallingNetwork network = new StallingNetwork(50);
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 10, 1.0);
+        MockRequest post = new MockRequest() {
+            @Override
+            public int getMethod() {
+                return Method.POST;
+            }
+        };
+
+        hedgingNetwork.performRequest(post);
+
+        assertEquals(1, network.calls.get());
+        assertEquals(0, hedgingNetwork.getHedgeCount());
+    }
+
+    @Test public void hedgeRetriesIndependentlyOfPrimary() throws Exception {
+        final AtomicReference<Request<?>> hedgeRequest = new AtomicReference<>();
+        StallingNetwork network = new StallingNetwork(10000) {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                if (calls.get() == 1) {
+                    // The hedge: use up its retries, as a retrying network would.
+                    hedgeRequest.set(request);
+                    try {
+                        request.getRetryPolicy().retry(new TimeoutError());
+                        fail("The hedge should not retry");
+                    } catch (TimeoutError expected) {
+                        // The hedge has no retries of its own.
+                    }
+                }
+                return super.performRequest(request);
+            }
+        };
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 10, 1.0);
+        MockRequest request = new MockRequest();
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+
+        hedgingNetwork.performRequest(request);
+
+        assertNotSame(request, hedgeRequest.get());
+        assertEquals(request.getUrl(), hedgeRequest.get().getUrl());
+        assertNotSame(retryPolicy, hedgeRequest.get().getRetryPolicy());
+        // The primary's retry state is untouched by the hedge.
+        assertEquals(0, retryPolicy.getCurrentRetryCount());
+    }
+
+    @Test public void losingAttemptIsDetachedFromRequest() throws Exception {
+        final AtomicBoolean loserRetried = new AtomicBoolean();
+        final AtomicBoolean loserCanceled = new AtomicBoolean();
+        final CountDownLatch loserDone = new CountDownLatch(1);
+        StallingNetwork network = new StallingNetwork(10000) {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                try {
+                    return super.performRequest(request);
+                } catch (VolleyError e) {
+                    // The stalled primary, cancelled once the hedge has won.
+                    try {
+                        request.getRetryPolicy().retry(e);
+                        loserRetried.set(true);
+                    } catch (VolleyError gaveUp) {
+                        // expected
+                    }
+                    loserCanceled.set(request.isCanceled());
+                    loserDone.countDown();
+                    throw e;
+                }
+            }
+        };
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 10, 1.0);
+        MockRequest request = new MockRequest();
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+
+        assertArrayEquals("2".getBytes(), hedgingNetwork.performRequest(request).data);
+
+        assertTrue(loserDone.await(10, TimeUnit.SECONDS));
+        assertFalse(loserRetried.get());
+        assertTrue(loserCanceled.get());
+        assertFalse(request.isCanceled());
+        assertEquals(0, retryPolicy.getCurrentRetryCount());
+    }
+}